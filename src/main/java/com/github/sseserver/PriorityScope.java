@@ -0,0 +1,36 @@
+package com.github.sseserver;
+
+import com.github.sseserver.util.LambdaUtil;
+
+import java.util.concurrent.Callable;
+
+/**
+ * {@link SendService#scopePriority(SendService.Priority, Callable)} 的当前线程优先级, 所有发送实现共用
+ */
+final class PriorityScope {
+    private static final ThreadLocal<SendService.Priority> PRIORITY_THREAD_LOCAL = new ThreadLocal<>();
+
+    private PriorityScope() {
+    }
+
+    static SendService.Priority get() {
+        return PRIORITY_THREAD_LOCAL.get();
+    }
+
+    static <T> T call(SendService.Priority priority, Callable<T> runnable) {
+        SendService.Priority old = PRIORITY_THREAD_LOCAL.get();
+        PRIORITY_THREAD_LOCAL.set(priority);
+        try {
+            return runnable.call();
+        } catch (Exception e) {
+            LambdaUtil.sneakyThrows(e);
+            return null;
+        } finally {
+            if (old != null) {
+                PRIORITY_THREAD_LOCAL.set(old);
+            } else {
+                PRIORITY_THREAD_LOCAL.remove();
+            }
+        }
+    }
+}
@@ -16,6 +16,26 @@ public interface SendService<RESPONSE> {
 
     <T> T scopeOnWriteable(Callable<T> runnable);
 
+    /**
+     * 范围内的发送使用这个优先级, 链接的出站队列总是先写优先级高的事件
+     * 优先级放在当前线程上, 实现发送时用 {@link #currentPriority()} 取, 不支持优先级的实现不用管
+     *
+     * @param priority 优先级, null=按事件名决定
+     * @param runnable 范围
+     * @param <T>      返回值
+     * @return runnable的返回值
+     */
+    default <T> T scopePriority(Priority priority, Callable<T> runnable) {
+        return PriorityScope.call(priority, runnable);
+    }
+
+    /**
+     * @return 当前线程 {@link #scopePriority(Priority, Callable)} 指定的优先级, null=没指定
+     */
+    static Priority currentPriority() {
+        return PriorityScope.get();
+    }
+
     RESPONSE sendAll(String eventName, Object body);
 
     RESPONSE sendAllListening(String eventName, Object body);
@@ -76,5 +96,44 @@ public interface SendService<RESPONSE> {
         return sendByTenantIdListening(Collections.singletonList(tenantId), eventName, body);
     }
 
+    /**
+     * 出站优先级, 从低到高
+     */
+    enum Priority {
+        /**
+         * 可以延后的批量广播
+         */
+        LOW,
+        /**
+         * 默认
+         */
+        NORMAL,
+        /**
+         * 业务上重要的, 比如支付结果
+         */
+        HIGH,
+        /**
+         * 控制消息, 比如强制下线 connect-close, 不受限流影响
+         */
+        CRITICAL;
+
+        /**
+         * @param name 枚举名, 忽略大小写
+         * @return null=没有或不认识 (比如新版本的远程服务)
+         */
+        public static Priority parse(Object name) {
+            if (name instanceof Priority) {
+                return (Priority) name;
+            }
+            if (name != null) {
+                for (Priority priority : values()) {
+                    if (priority.name().equalsIgnoreCase(name.toString())) {
+                        return priority;
+                    }
+                }
+            }
+            return null;
+        }
+    }
 
 }
@@ -0,0 +1,293 @@
+package com.github.sseserver.local;
+
+import com.github.sseserver.util.ConcurrentLongSet;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 链接注册表(分片)
+ * 1. 链接按链接ID分片, 业务维度索引按索引key分片. 每个分片只持有自己那一份 链接表 与 业务维度与链接ID的关系表
+ * 2. 链接ID存在原始类型集合 {@link ConcurrentLongSet} 里, 不装箱
+ * 3. 索引的增删都在 {@link ConcurrentHashMap#compute} 里完成, 只锁住单个key所在的桶, 不再需要进程级别的全局锁.
+ * 所以重连风暴时, 不同用户/令牌/租户/频道的上下线互不阻塞
+ *
+ * @see LocalConnectionServiceImpl
+ */
+public class ConnectionRegistry {
+    public static final int DEFAULT_SHARDS = Integer.getInteger("sseserver.ConnectionRegistry.shards",
+            Runtime.getRuntime().availableProcessors() * 4);
+
+    private final Shard[] shards;
+    private final int mask;
+
+    public ConnectionRegistry() {
+        this(DEFAULT_SHARDS);
+    }
+
+    public ConnectionRegistry(int shards) {
+        int size = 1;
+        while (size < shards) {
+            size <<= 1;
+        }
+        this.shards = new Shard[size];
+        for (int i = 0; i < size; i++) {
+            this.shards[i] = new Shard();
+        }
+        this.mask = size - 1;
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    private Shard shard(long connectionId) {
+        return shards[spread(Long.hashCode(connectionId)) & mask];
+    }
+
+    private Shard shard(String key) {
+        return shards[spread(key.hashCode()) & mask];
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /* connection */
+
+    public <ACCESS_USER> SseEmitter<ACCESS_USER> put(SseEmitter<ACCESS_USER> connection) {
+        return shard(connection.getId()).connectionMap.put(connection.getId(), connection);
+    }
+
+    public <ACCESS_USER> SseEmitter<ACCESS_USER> get(long connectionId) {
+        return shard(connectionId).connectionMap.get(connectionId);
+    }
+
+    public <ACCESS_USER> SseEmitter<ACCESS_USER> remove(long connectionId) {
+        return shard(connectionId).connectionMap.remove(connectionId);
+    }
+
+    /**
+     * @return 全部链接(只读视图, 弱一致性)
+     */
+    public <ACCESS_USER> Collection<SseEmitter<ACCESS_USER>> connections() {
+        return new ShardView<SseEmitter<ACCESS_USER>>() {
+            @Override
+            Collection<SseEmitter<ACCESS_USER>> get(Shard shard) {
+                return (Collection) shard.connectionMap.values();
+            }
+        };
+    }
+
+    /**
+     * 用于分批处理全部链接, 例: 心跳
+     *
+     * @param shardIndex 分片下标 [0, {@link #getShardCount()})
+     * @return 分片内的链接(只读视图, 弱一致性)
+     */
+    public <ACCESS_USER> Collection<SseEmitter<ACCESS_USER>> connections(int shardIndex) {
+        return Collections.unmodifiableCollection((Collection) shards[shardIndex].connectionMap.values());
+    }
+
+    /**
+     * @return 全部链接ID(只读视图, 弱一致性)
+     */
+    public Collection<Long> connectionIds() {
+        return new ShardView<Long>() {
+            @Override
+            Collection<Long> get(Shard shard) {
+                return shard.connectionMap.keySet();
+            }
+        };
+    }
+
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.connectionMap.size();
+        }
+        return size;
+    }
+
+    /* index */
+
+    /**
+     * 添加索引
+     *
+     * @param index        业务维度
+     * @param key          业务维度的值
+     * @param connectionId 链接ID
+     * @return true=新增成功, false=已存在
+     */
+    public boolean addIndex(Index index, String key, long connectionId) {
+        boolean[] add = new boolean[1];
+        shard(key).indexMap(index).compute(key, (k, idSet) -> {
+            if (idSet == null) {
+                idSet = new ConcurrentLongSet();
+            }
+            add[0] = idSet.add(connectionId);
+            return idSet;
+        });
+        return add[0];
+    }
+
+    /**
+     * 移除索引, 如果业务维度下已没有链接, 则一起移除业务维度的值
+     *
+     * @param index        业务维度
+     * @param key          业务维度的值
+     * @param connectionId 链接ID
+     * @return true=移除成功, false=不存在
+     */
+    public boolean removeIndex(Index index, String key, long connectionId) {
+        boolean[] remove = new boolean[1];
+        shard(key).indexMap(index).computeIfPresent(key, (k, idSet) -> {
+            remove[0] = idSet.remove(connectionId);
+            return idSet.isEmpty() ? null : idSet;
+        });
+        return remove[0];
+    }
+
+    /**
+     * @param index 业务维度
+     * @param key   业务维度的值
+     * @return 链接ID(只读视图), 不存在返回null
+     */
+    public Set<Long> getIndex(Index index, String key) {
+        ConcurrentLongSet idSet = shard(key).indexMap(index).get(key);
+        return idSet != null ? Collections.unmodifiableSet(idSet) : null;
+    }
+
+    public boolean containsIndex(Index index, String key) {
+        ConcurrentLongSet idSet = shard(key).indexMap(index).get(key);
+        return idSet != null && !idSet.isEmpty();
+    }
+
+    /**
+     * @param index 业务维度
+     * @return 业务维度的值的数量
+     */
+    public int indexSize(Index index) {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.indexMap(index).size();
+        }
+        return size;
+    }
+
+    /**
+     * @param index 业务维度
+     * @return 业务维度的值(只读视图, 弱一致性)
+     */
+    public Collection<String> indexKeys(Index index) {
+        return new ShardView<String>() {
+            @Override
+            Collection<String> get(Shard shard) {
+                return shard.indexMap(index).keySet();
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionRegistry{" +
+                "shards=" + shards.length +
+                ", size=" + size() +
+                '}';
+    }
+
+    /**
+     * 业务维度
+     */
+    public enum Index {
+        ACCESS_TOKEN,
+        USER_ID,
+        TENANT_ID,
+        CHANNEL,
+        /**
+         * 前端JS 已正在监听的钩子, 值是 {@link SseEmitter.SseEventBuilder#name(String)}
+         */
+        LISTENER
+    }
+
+    private static class Shard {
+        final Map<Long, SseEmitter> connectionMap = new ConcurrentHashMap<>();
+        final Map<String, ConcurrentLongSet>[] indexMaps = new Map[Index.values().length];
+
+        Shard() {
+            for (int i = 0; i < indexMaps.length; i++) {
+                indexMaps[i] = new ConcurrentHashMap<>();
+            }
+        }
+
+        Map<String, ConcurrentLongSet> indexMap(Index index) {
+            return indexMaps[index.ordinal()];
+        }
+    }
+
+    /**
+     * 把所有分片拼起来的只读视图
+     */
+    private abstract class ShardView<E> extends AbstractCollection<E> {
+        abstract Collection<E> get(Shard shard);
+
+        @Override
+        public Iterator<E> iterator() {
+            return new Iterator<E>() {
+                private int shardIndex;
+                private Iterator<E> iterator = get(shards[0]).iterator();
+
+                @Override
+                public boolean hasNext() {
+                    while (!iterator.hasNext()) {
+                        if (++shardIndex >= shards.length) {
+                            return false;
+                        }
+                        iterator = get(shards[shardIndex]).iterator();
+                    }
+                    return true;
+                }
+
+                @Override
+                public E next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return iterator.next();
+                }
+            };
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            for (Shard shard : shards) {
+                if (get(shard).contains(o)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public int size() {
+            int size = 0;
+            for (Shard shard : shards) {
+                size += get(shard).size();
+            }
+            return size;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            for (Shard shard : shards) {
+                if (!get(shard).isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
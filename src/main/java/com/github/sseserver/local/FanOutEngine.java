@@ -0,0 +1,181 @@
+package com.github.sseserver.local;
+
+import com.github.sseserver.util.CompletableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * 群发引擎
+ * 1. 按链接ID把目标链接分到固定的分区, 每个分区是一个串行的工作线程, 所以同一个链接的事件顺序不变.
+ * 2. 几个慢的链接只会拖慢自己所在的分区, 不会阻塞调用方的业务线程.
+ * 3. 发送结果(成功数量)异步返回.
+ *
+ * @see LocalConnectionServiceImpl#setFanOutThreads(int)
+ */
+public class FanOutEngine {
+    private static final Logger log = LoggerFactory.getLogger(FanOutEngine.class);
+    private final ThreadPoolExecutor[] partitions;
+
+    /**
+     * @param threads 分区数量(工作线程数量)
+     * @param name    线程名
+     */
+    public FanOutEngine(int threads, Supplier<String> name) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be greater than 0: " + threads);
+        }
+        this.partitions = new ThreadPoolExecutor[threads];
+        for (int i = 0; i < threads; i++) {
+            int partition = i;
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                    60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, threadName(name) + "-fanout-" + partition);
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            this.partitions[i] = executor;
+        }
+    }
+
+    private static String threadName(Supplier<String> name) {
+        try {
+            return name.get();
+        } catch (Exception e) {
+            return FanOutEngine.class.getSimpleName();
+        }
+    }
+
+    private static int spread(long connectionId) {
+        int h = Long.hashCode(connectionId);
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h & 0x7fffffff;
+    }
+
+    public int getThreads() {
+        return partitions.length;
+    }
+
+    /**
+     * @return 排队中还未执行的分区任务数
+     */
+    public int getQueueSize() {
+        int size = 0;
+        for (ThreadPoolExecutor partition : partitions) {
+            size += partition.getQueue().size();
+        }
+        return size;
+    }
+
+    /**
+     * 群发
+     *
+     * @param targets 目标链接, 调用方线程里遍历一次
+     * @param sender  在分区线程里发送, true=发送成功
+     * @return 发送成功的数量
+     */
+    public <ACCESS_USER> CompletableFuture<Integer> fanOut(Collection<? extends SseEmitter<ACCESS_USER>> targets,
+                                                           Predicate<SseEmitter<ACCESS_USER>> sender) {
+        List<SseEmitter<ACCESS_USER>>[] partitionTargets = new List[partitions.length];
+        int partitionCount = 0;
+        for (SseEmitter<ACCESS_USER> target : targets) {
+            int index = spread(target.getId()) % partitions.length;
+            List<SseEmitter<ACCESS_USER>> list = partitionTargets[index];
+            if (list == null) {
+                partitionTargets[index] = list = new ArrayList<>();
+                partitionCount++;
+            }
+            list.add(target);
+        }
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        if (partitionCount == 0) {
+            future.complete(0);
+            return future;
+        }
+
+        AtomicInteger remaining = new AtomicInteger(partitionCount);
+        AtomicInteger count = new AtomicInteger();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        for (int i = 0; i < partitionTargets.length; i++) {
+            List<SseEmitter<ACCESS_USER>> list = partitionTargets[i];
+            if (list == null) {
+                continue;
+            }
+            Runnable task = () -> {
+                try {
+                    int succeed = 0;
+                    for (SseEmitter<ACCESS_USER> target : list) {
+                        try {
+                            if (sender.test(target)) {
+                                succeed++;
+                            }
+                        } catch (Throwable e) {
+                            error.compareAndSet(null, e);
+                        }
+                    }
+                    count.addAndGet(succeed);
+                } finally {
+                    if (remaining.decrementAndGet() == 0) {
+                        Throwable throwable = error.get();
+                        if (throwable != null) {
+                            future.completeExceptionally(throwable);
+                        } else {
+                            future.complete(count.get());
+                        }
+                    }
+                }
+            };
+            try {
+                partitions[i].execute(task);
+            } catch (RuntimeException e) {
+                // 已关闭, 在调用方线程里发
+                if (log.isWarnEnabled()) {
+                    log.warn("fanOut execute error {}, run on caller thread", e.toString());
+                }
+                task.run();
+            }
+        }
+        return future;
+    }
+
+    public void shutdown() {
+        for (ThreadPoolExecutor partition : partitions) {
+            partition.shutdown();
+        }
+    }
+
+    /**
+     * 调用方如何拿发送结果
+     */
+    public enum Mode {
+        /**
+         * 调用方等待全部分区发送完, 返回发送成功的数量
+         */
+        AWAIT,
+        /**
+         * 调用方立即返回, 返回的是派发出去的链接数量. 实际发送结果只能通过异步接口拿
+         */
+        FIRE_AND_FORGET
+    }
+
+    @Override
+    public String toString() {
+        return "FanOutEngine{" +
+                "threads=" + partitions.length +
+                ", queueSize=" + getQueueSize() +
+                '}';
+    }
+}
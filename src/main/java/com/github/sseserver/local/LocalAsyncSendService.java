@@ -0,0 +1,178 @@
+package com.github.sseserver.local;
+
+import com.github.sseserver.SendService;
+import com.github.sseserver.util.CompletableFuture;
+import com.github.sseserver.util.LambdaUtil;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * 本机异步推送
+ * 1. 查找目标链接和群发都在专用的线程池里执行, 调用方线程立即返回.
+ * 2. 按提交顺序一个一个派发, 同一个链接收到的顺序和事件ID(重放用)的顺序都和提交顺序一致.
+ * 开启了群发引擎 {@link LocalConnectionServiceImpl#setFanOutThreads(int)} 时, 派发只是分到群发引擎的分区, 在分区线程里发送;
+ * 没开启时在派发线程里逐个发送.
+ * 3. {@link #scopeOnWriteable(Callable)} 的范围会带到异步线程, {@link #scopePriority(Priority, Callable)} 的优先级带在事件帧上.
+ *
+ * @see LocalConnectionService#async()
+ */
+public class LocalAsyncSendService implements SendService<CompletionStage<Integer>> {
+    private final LocalConnectionServiceImpl service;
+    private final Executor executor;
+    private final ThreadLocal<Boolean> scopeOnWriteableThreadLocal = new ThreadLocal<>();
+    /**
+     * 待派发的任务, 同一时间只有一个线程在派发
+     */
+    private final Queue<Runnable> dispatchQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean dispatching = new AtomicBoolean();
+
+    public LocalAsyncSendService(LocalConnectionServiceImpl service, Executor executor) {
+        this.service = service;
+        this.executor = executor;
+    }
+
+    @Override
+    public <T> T scopeOnWriteable(Callable<T> runnable) {
+        scopeOnWriteableThreadLocal.set(true);
+        try {
+            return runnable.call();
+        } catch (Exception e) {
+            LambdaUtil.sneakyThrows(e);
+            return null;
+        } finally {
+            scopeOnWriteableThreadLocal.remove();
+        }
+    }
+
+    /**
+     * 在异步线程里按提交顺序找目标链接, 然后群发
+     *
+     * @param targets   目标链接
+     * @param eventName 事件名
+     * @param body      事件内容
+     * @param index     记录重放时按什么找目标, null=全部
+     * @param keys      index的值
+     * @param listening 是否只发给监听了的
+     * @return 发送成功的数量
+     */
+    protected CompletableFuture<Integer> submit(Supplier<? extends Collection<? extends SseEmitter>> targets,
+                                                String eventName, Object body,
+                                                ConnectionRegistry.Index index, Collection<?> keys, boolean listening) {
+        boolean onlyWriteable = Boolean.TRUE.equals(scopeOnWriteableThreadLocal.get());
+        Priority priority = SendService.currentPriority();
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        Runnable task = () -> {
+            try {
+                // 事件ID(重放用)在派发时取, 和派发顺序一致
+                SseFrame frame = service.record(service.newFrame(eventName, body, priority), index, keys, listening);
+                java.util.concurrent.CompletableFuture<Integer> sendFuture = onlyWriteable ?
+                        service.scopeOnWriteable(() -> service.sendAsync((Collection) targets.get(), frame)) :
+                        service.sendAsync((Collection) targets.get(), frame);
+                sendFuture.whenComplete((count, throwable) -> {
+                    if (throwable != null) {
+                        future.completeExceptionally(throwable);
+                    } else {
+                        future.complete(count);
+                    }
+                });
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        };
+        dispatchQueue.add(task);
+        scheduleDispatch();
+        return future;
+    }
+
+    private void scheduleDispatch() {
+        if (!dispatching.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(this::dispatch);
+        } catch (RuntimeException e) {
+            // 线程池已关闭, 在调用方线程里发
+            dispatch();
+        }
+    }
+
+    private void dispatch() {
+        try {
+            Runnable task;
+            while ((task = dispatchQueue.poll()) != null) {
+                task.run();
+            }
+        } finally {
+            dispatching.set(false);
+        }
+        // 退出前别的线程刚提交的
+        if (!dispatchQueue.isEmpty()) {
+            scheduleDispatch();
+        }
+    }
+
+    @Override
+    public CompletionStage<Integer> sendAll(String eventName, Object body) {
+        return submit(service.registry::connections, eventName, body, null, null, false);
+    }
+
+    @Override
+    public CompletionStage<Integer> sendAllListening(String eventName, Object body) {
+        return submit(() -> service.getConnectionByListening(eventName), eventName, body, null, null, true);
+    }
+
+    @Override
+    public CompletionStage<Integer> sendByChannel(Collection<String> channels, String eventName, Object body) {
+        return submit(() -> service.collect(channels, service::getConnectionByChannel, null), eventName, body, ConnectionRegistry.Index.CHANNEL, channels, false);
+    }
+
+    @Override
+    public CompletionStage<Integer> sendByChannelListening(Collection<String> channels, String eventName, Object body) {
+        return submit(() -> service.collect(channels, service::getConnectionByChannel, eventName), eventName, body, ConnectionRegistry.Index.CHANNEL, channels, true);
+    }
+
+    @Override
+    public CompletionStage<Integer> sendByAccessToken(Collection<String> accessTokens, String eventName, Object body) {
+        return submit(() -> service.collect(accessTokens, service::getConnectionByAccessToken, null), eventName, body, ConnectionRegistry.Index.ACCESS_TOKEN, accessTokens, false);
+    }
+
+    @Override
+    public CompletionStage<Integer> sendByAccessTokenListening(Collection<String> accessTokens, String eventName, Object body) {
+        return submit(() -> service.collect(accessTokens, service::getConnectionByAccessToken, eventName), eventName, body, ConnectionRegistry.Index.ACCESS_TOKEN, accessTokens, true);
+    }
+
+    @Override
+    public CompletionStage<Integer> sendByUserId(Collection<? extends Serializable> userIds, String eventName, Object body) {
+        return submit(() -> service.collect(userIds, service::getConnectionByUserId, null), eventName, body, ConnectionRegistry.Index.USER_ID, userIds, false);
+    }
+
+    @Override
+    public CompletionStage<Integer> sendByUserIdListening(Collection<? extends Serializable> userIds, String eventName, Object body) {
+        return submit(() -> service.collect(userIds, service::getConnectionByUserId, eventName), eventName, body, ConnectionRegistry.Index.USER_ID, userIds, true);
+    }
+
+    @Override
+    public CompletionStage<Integer> sendByTenantId(Collection<? extends Serializable> tenantIds, String eventName, Object body) {
+        return submit(() -> service.collect(tenantIds, service::getConnectionByTenantId, null), eventName, body, ConnectionRegistry.Index.TENANT_ID, tenantIds, false);
+    }
+
+    @Override
+    public CompletionStage<Integer> sendByTenantIdListening(Collection<? extends Serializable> tenantIds, String eventName, Object body) {
+        return submit(() -> service.collect(tenantIds, service::getConnectionByTenantId, eventName), eventName, body, ConnectionRegistry.Index.TENANT_ID, tenantIds, true);
+    }
+
+    @Override
+    public String toString() {
+        return "LocalAsyncSendService{" +
+                "service=" + service.getBeanName() +
+                '}';
+    }
+}
@@ -3,12 +3,14 @@ package com.github.sseserver.local;
 import com.github.sseserver.ConnectionQueryService;
 import com.github.sseserver.DistributedConnectionService;
 import com.github.sseserver.SendService;
+import com.github.sseserver.util.HashedWheelTimer;
 
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.function.Consumer;
 
@@ -28,6 +30,41 @@ public interface LocalConnectionService extends DistributedConnectionService, Co
 
     ScheduledExecutorService getScheduled();
 
+    /**
+     * 时间轮定时器, 新增和取消都是O(1). 用于链接超时等数量大, 不要求精确的定时任务
+     *
+     * @return 时间轮定时器
+     */
+    HashedWheelTimer getTimer();
+
+    /**
+     * 异步推送, 查找链接和群发都不在调用方线程里执行
+     *
+     * @return Integer 是成功发送的连接数量
+     */
+    SendService<CompletionStage<Integer>> async();
+
+    /* delta */
+
+    /**
+     * 增量发送同一份文档 (JSON Merge Patch), 每个链接只发和上次相比变化的部分
+     *
+     * @param connections 目标链接
+     * @param eventName   事件名
+     * @param key         文档的key, 比如 dashboard
+     * @param document    JsonNode, JSON字符串, 或者任意对象
+     * @return 发送成功的数量, 没有变化的不算
+     * @see SseEmitter#newDeltaData(String, Object)
+     */
+    int sendDelta(Collection<? extends SseEmitter> connections, String eventName, String key, Object document);
+
+    /**
+     * 前端的增量版本对不上时, 重发一次全量
+     *
+     * @return true=发了
+     */
+    <ACCESS_USER> boolean sendDeltaSnapshot(SseEmitter<ACCESS_USER> emitter, String eventName, String key);
+
     /* connect */
 
     /**
@@ -1,11 +1,14 @@
 package com.github.sseserver.local;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.github.sseserver.SendService;
 import com.github.sseserver.qos.MessageRepository;
 import com.github.sseserver.qos.QosCompletableFuture;
 import com.github.sseserver.remote.*;
 import com.github.sseserver.springboot.SseServerBeanDefinitionRegistrar;
 import com.github.sseserver.util.LambdaUtil;
+import com.github.sseserver.util.HashedWheelTimer;
+import com.github.sseserver.util.JsonMergePatch;
 import com.github.sseserver.util.PlatformDependentUtil;
 import com.github.sseserver.util.TypeUtil;
 import com.github.sseserver.util.WebUtil;
@@ -24,6 +27,7 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -41,18 +45,14 @@ import java.util.stream.Collectors;
  */
 public class LocalConnectionServiceImpl implements LocalConnectionService, BeanNameAware, BeanFactoryAware {
     private final static Logger log = LoggerFactory.getLogger(LocalConnectionServiceImpl.class);
+    public static int timerTickDuration = Integer.getInteger("sseserver.LocalConnectionServiceImpl.timerTickDuration",
+            100);
+    public static int timerTicksPerWheel = Integer.getInteger("sseserver.LocalConnectionServiceImpl.timerTicksPerWheel",
+            512);
     /**
-     * 业务维度与链接ID的关系表
+     * 链接与业务维度与链接ID的关系表 (分片, 无全局锁)
      */
-    protected final Object mutex = new Object();
-    protected final Map<String, Set<Long>> accessToken2ConnectionIdMap = new ConcurrentHashMap<>();
-    protected final Map<String, Set<Long>> channel2ConnectionIdMap = new ConcurrentHashMap<>();
-    protected final Map<String, Set<Long>> tenantId2ConnectionIdMap = new ConcurrentHashMap<>();
-    protected final Map<String, Set<Long>> userId2ConnectionIdMap = new ConcurrentHashMap<>();
-    /**
-     * 链接
-     */
-    protected final Map<Long, SseEmitter> connectionMap = new ConcurrentHashMap<>();
+    protected final ConnectionRegistry registry = new ConnectionRegistry();
     /**
      * 永久事件监听。
      * {@link #connectListenerList ,#disconnectListeners}
@@ -74,10 +74,60 @@ public class LocalConnectionServiceImpl implements LocalConnectionService, BeanN
     private String beanName = getClass().getSimpleName();
     private final ScheduledThreadPoolExecutor scheduled = PlatformDependentUtil.newScheduled(
             1, this::getBeanName, e -> log.warn("Scheduled error {}", e.toString(), e));
+    private final HashedWheelTimer timer = new HashedWheelTimer(
+            timerTickDuration, TimeUnit.MILLISECONDS, timerTicksPerWheel,
+            () -> getBeanName() + "-timer", e -> log.warn("Timer error {}", e.toString(), e));
     private int reconnectTime = 5000;
     private Integer serverPort;
     private volatile BatchActiveRunnable clusterBatchActiveRunnable;
     private long clusterBatchActiveDelay = 100L;
+    /**
+     * 心跳间隔, 0=不开启
+     */
+    private long heartbeatInterval = 0L;
+    private volatile int heartbeatGeneration;
+    private int heartbeatShardIndex;
+    /**
+     * 群发引擎, null=在调用方线程里发送
+     */
+    private volatile FanOutEngine fanOutEngine;
+    private FanOutEngine.Mode fanOutMode = FanOutEngine.Mode.AWAIT;
+    /**
+     * 出站队列容量, 0=不开启(同步写)
+     */
+    private int outboundQueueCapacity = 0;
+    private OutboundQueue.OverflowPolicy outboundOverflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+    private long outboundBlockTimeout = 1000L;
+    private int outboundWriterThreads = Runtime.getRuntime().availableProcessors() * 2;
+    private volatile ThreadPoolExecutor outboundWriter;
+    /**
+     * 合并写的等待窗口(毫秒), 0=不等待
+     */
+    private long coalesceWindow = 0L;
+    /**
+     * 一次写最多合并多少个事件, 1=不合并
+     */
+    private int coalesceMaxEvents = 1;
+    /**
+     * 值合并的事件名 = 最小发送间隔(毫秒), 0=不限频率
+     */
+    protected final Map<String, Long> conflateEventMap = new ConcurrentHashMap<>();
+    private int asyncSendThreads = Runtime.getRuntime().availableProcessors();
+    private volatile ThreadPoolExecutor asyncSendExecutor;
+    private volatile LocalAsyncSendService asyncSendService;
+    /**
+     * 出站限流, null=不限流
+     */
+    private volatile RateLimiter rateLimiter;
+    /**
+     * 事件名 = 默认的出站优先级, 发送时没有用 {@link #scopePriority(Priority, Callable)} 指定才用
+     */
+    protected final Map<String, Priority> priorityEventMap = newPriorityEventMap();
+    /**
+     * 断线重连补发的缓冲, null=不补发
+     */
+    private volatile ReplayBuffer replayBuffer;
+    private long replayMaxAge = 300_000L;
 
     public LocalConnectionServiceImpl() {
         this.primary = false;
@@ -87,11 +137,37 @@ public class LocalConnectionServiceImpl implements LocalConnectionService, BeanN
         this.primary = primary;
     }
 
+    private static Map<String, Priority> newPriorityEventMap() {
+        Map<String, Priority> map = new ConcurrentHashMap<>();
+        // 控制消息总是先写
+        map.put("connect-finish", Priority.CRITICAL);
+        map.put("connect-close", Priority.CRITICAL);
+        map.put("sse-set-duration", Priority.CRITICAL);
+        return map;
+    }
+
     @Override
     public ScheduledExecutorService getScheduled() {
         return scheduled;
     }
 
+    @Override
+    public HashedWheelTimer getTimer() {
+        return timer;
+    }
+
+    @Override
+    public SendService<CompletionStage<Integer>> async() {
+        if (asyncSendService == null) {
+            synchronized (this) {
+                if (asyncSendService == null) {
+                    asyncSendService = new LocalAsyncSendService(this, getAsyncSendExecutor());
+                }
+            }
+        }
+        return asyncSendService;
+    }
+
     @Override
     public SendService<QosCompletableFuture<Integer>> qos() {
         String beanName = SseServerBeanDefinitionRegistrar.getAtLeastOnceBeanName(this.beanName);
@@ -143,8 +219,18 @@ public class LocalConnectionServiceImpl implements LocalConnectionService, BeanN
         result.onCompletion(completionCallBack(result));
         result.onError(errorCallBack(result));
         result.onTimeout(timeoutCallBack(result));
+        if (outboundQueueCapacity > 0 || isCoalesce() || !conflateEventMap.isEmpty()) {
+            // 只开合并写或值合并, 没开出站队列时, 队列不限制容量
+            int capacity = outboundQueueCapacity > 0 ? outboundQueueCapacity : Integer.MAX_VALUE;
+            OutboundQueue outboundQueue = new OutboundQueue(result, capacity,
+                    outboundOverflowPolicy, outboundBlockTimeout, getOutboundWriter(),
+                    coalesceWindow, coalesceMaxEvents, scheduled);
+            outboundQueue.setConflateEventMap(conflateEventMap);
+            outboundQueue.setPriorityEventMap(priorityEventMap);
+            result.setOutboundQueue(outboundQueue);
+        }
         if (keepaliveTime > 0) {
-            result.setTimeoutCheckFuture(scheduled.schedule(
+            result.setTimeoutCheckTimeout(timer.newTimeout(
                     result::disconnectByTimeoutCheck, keepaliveTime, TimeUnit.MILLISECONDS));
         }
 
@@ -161,76 +247,67 @@ public class LocalConnectionServiceImpl implements LocalConnectionService, BeanN
             String channel = wrapStringKey(e.getChannel());
 
             notifyListener(e, disconnectListenerList, disconnectListenerMap);
-            synchronized (mutex) {
-                connectionMap.remove(id);
-
-                Collection<Long> tokenEmitterList = accessToken2ConnectionIdMap.get(accessToken);
-                if (tokenEmitterList != null) {
-                    tokenEmitterList.remove(id);
-                    if (tokenEmitterList.isEmpty()) {
-                        accessToken2ConnectionIdMap.remove(accessToken);
-                    }
-                }
-
-                Collection<Long> userList = userId2ConnectionIdMap.get(userId);
-                if (userList != null) {
-                    userList.remove(id);
-                    if (userList.isEmpty()) {
-                        userId2ConnectionIdMap.remove(userId);
-                    }
-                }
-
-                Collection<Long> tenantList = tenantId2ConnectionIdMap.get(tenantId);
-                if (tenantList != null) {
-                    tenantList.remove(id);
-                    if (tenantList.isEmpty()) {
-                        tenantId2ConnectionIdMap.remove(tenantId);
-                    }
-                }
-
-                Collection<Long> channelList = channel2ConnectionIdMap.get(channel);
-                if (channelList != null) {
-                    channelList.remove(id);
-                    if (channelList.isEmpty()) {
-                        channel2ConnectionIdMap.remove(channel);
-                    }
-                }
+            registry.remove(id);
+            registry.removeIndex(ConnectionRegistry.Index.ACCESS_TOKEN, accessToken, id);
+            registry.removeIndex(ConnectionRegistry.Index.USER_ID, userId, id);
+            registry.removeIndex(ConnectionRegistry.Index.TENANT_ID, tenantId, id);
+            registry.removeIndex(ConnectionRegistry.Index.CHANNEL, channel, id);
+            removeListenerIndex(id, e.getListeners());
+            RateLimiter rateLimiter = this.rateLimiter;
+            if (rateLimiter != null) {
+                rateLimiter.remove(e);
             }
         });
         result.addConnectListener(e -> {
             String channel = wrapStringKey(e.getChannel());
-            synchronized (mutex) {
-                channel2ConnectionIdMap.computeIfAbsent(channel, o -> Collections.newSetFromMap(new ConcurrentHashMap<>(3)))
-                        .add(e.getId());
+            List<String> listeners = new ArrayList<>(e.getListeners());
+            registry.addIndex(ConnectionRegistry.Index.CHANNEL, channel, id);
+            addListenerIndex(id, listeners);
+            if (e.isDisconnect()) {
+                // 与断开并发时, 断开可能已先执行完
+                registry.removeIndex(ConnectionRegistry.Index.CHANNEL, channel, id);
+                removeListenerIndex(id, listeners);
             }
             if (log.isDebugEnabled()) {
                 log.debug("sse {} connection create : {}", beanName, e);
             }
             notifyListener(e, connectListenerList, connectListenerMap);
             notifyActive(userId, accessToken);
+            replay(e);
         });
         result.addListeningWatch(e -> {
+            updateListenerIndex(e);
             for (Consumer<SseChangeEvent<?, Set<String>>> changeEventConsumer : new ArrayList<>(listeningChangeWatchList)) {
                 changeEventConsumer.accept(e);
             }
         });
 
-        synchronized (mutex) {
-            connectionMap.put(id, result);
-            accessToken2ConnectionIdMap.computeIfAbsent(accessToken, o -> Collections.newSetFromMap(new ConcurrentHashMap<>(3)))
-                    .add(id);
-            tenantId2ConnectionIdMap.computeIfAbsent(tenantId, o -> Collections.newSetFromMap(new ConcurrentHashMap<>(3)))
-                    .add(id);
-            userId2ConnectionIdMap.computeIfAbsent(userId, o -> Collections.newSetFromMap(new ConcurrentHashMap<>(3)))
-                    .add(id);
+        // 先建索引再发布链接, 查到链接时索引都在
+        registry.addIndex(ConnectionRegistry.Index.ACCESS_TOKEN, accessToken, id);
+        registry.addIndex(ConnectionRegistry.Index.TENANT_ID, tenantId, id);
+        registry.addIndex(ConnectionRegistry.Index.USER_ID, userId, id);
+        registry.put(result);
+        if (result.isDisconnect()) {
+            // 与断开并发时, 断开可能已先执行完
+            registry.remove(id);
+            registry.removeIndex(ConnectionRegistry.Index.ACCESS_TOKEN, accessToken, id);
+            registry.removeIndex(ConnectionRegistry.Index.TENANT_ID, tenantId, id);
+            registry.removeIndex(ConnectionRegistry.Index.USER_ID, userId, id);
         }
 
         if (attributeMap != null) {
             result.getAttributeMap().putAll(attributeMap);
         }
+        SseEmitter.SseEventBuilderFuture<SseEmitter> connectFinish = SseEmitter.event();
+        if (replayBuffer != null) {
+            // 不带id, 不然会覆盖前端记的最后一个事件ID
+            result.setReplay(true);
+            connectFinish.defaultId(-1);
+        } else {
+            connectFinish.id(id.toString());
+        }
         try {
-            result.send(SseEmitter.event()
-                    .id(id.toString())
+            result.send(connectFinish
                     .reconnectTime(reconnectTime)
                     .name("connect-finish")
                     .data("{\"connectionId\":\"" + id + "\""
@@ -257,6 +334,61 @@ public class LocalConnectionServiceImpl implements LocalConnectionService, BeanN
         this.clusterBatchActiveDelay = clusterBatchActiveDelay;
     }
 
+    public long getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    /**
+     * 开启心跳. 给全部链接发SSE注释帧, 写失败的链接会被断开.
+     * 一个间隔内按分片 {@link ConnectionRegistry#getShardCount()} 分批发送, 不会在一个时刻给全部链接发
+     *
+     * @param heartbeatInterval 心跳间隔(毫秒), 0=不开启
+     */
+    public synchronized void setHeartbeatInterval(long heartbeatInterval) {
+        this.heartbeatInterval = heartbeatInterval;
+        int generation = ++heartbeatGeneration;
+        if (heartbeatInterval > 0) {
+            scheduleHeartbeat(generation);
+        }
+    }
+
+    private void scheduleHeartbeat(int generation) {
+        long delay = Math.max(1L, heartbeatInterval / registry.getShardCount());
+        timer.newTimeout(() -> scheduled.execute(() -> heartbeat(generation)), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void heartbeat(int generation) {
+        if (generation != heartbeatGeneration) {
+            return;
+        }
+        int shardIndex = heartbeatShardIndex;
+        heartbeatShardIndex = (shardIndex + 1) % registry.getShardCount();
+        int count = 0;
+        int evictCount = 0;
+        int pendingCount = 0;
+        // 在写线程里写, 对端不读时阻塞的是写线程, 不阻塞共用的定时线程
+        Executor writer = getOutboundWriter();
+        try {
+            for (SseEmitter<?> connection : registry.connections(shardIndex)) {
+                count++;
+                if (connection.isHeartbeatPending()) {
+                    pendingCount++;
+                } else if (!connection.heartbeat(writer)) {
+                    evictCount++;
+                }
+            }
+        } finally {
+            synchronized (this) {
+                if (generation == heartbeatGeneration) {
+                    scheduleHeartbeat(generation);
+                }
+            }
+        }
+        if ((evictCount > 0 || pendingCount > 0) && log.isInfoEnabled()) {
+            log.info("sse {} heartbeat shard {} evict {}/{} connection, last heartbeat still writing {}", beanName, shardIndex, evictCount, count, pendingCount);
+        }
+    }
+
     private void notifyActive(String userId, String accessToken) {
         localActive(userId, accessToken);
         if (clusterBatchActiveRunnable != null || isEnableCluster()) {
@@ -267,8 +399,11 @@ public class LocalConnectionServiceImpl implements LocalConnectionService, BeanN
                     }
                 }
             }
-            clusterBatchActiveRunnable.add(userId, accessToken);
-            getScheduled().schedule(clusterBatchActiveRunnable, clusterBatchActiveDelay, TimeUnit.MILLISECONDS);
+            BatchActiveRunnable runnable = clusterBatchActiveRunnable;
+            if (runnable.add(userId, accessToken)) {
+                // 一个批次只调度一次
+                timer.newTimeout(() -> scheduled.execute(runnable), clusterBatchActiveDelay, TimeUnit.MILLISECONDS);
+            }
         }
     }
 
@@ -415,7 +550,7 @@ public class LocalConnectionServiceImpl implements LocalConnectionService, BeanN
 
     @Override
     public <ACCESS_USER> Collection<SseEmitter<ACCESS_USER>> getConnectionAll() {
-        return (Collection) connectionMap.values();
+        return registry.connections();
     }
 
     @Override
@@ -423,13 +558,13 @@ public class LocalConnectionServiceImpl implements LocalConnectionService, BeanN
         if (connectionId == null) {
             return null;
         } else {
-            return connectionMap.get(connectionId);
+            return registry.get(connectionId);
         }
     }
 
     @Override
     public <ACCESS_USER> List<SseEmitter<ACCESS_USER>> getConnectionByChannel(String channel) {
-        Collection<Long> idList = channel2ConnectionIdMap.get(wrapStringKey(channel));
+        Collection<Long> idList = registry.getIndex(ConnectionRegistry.Index.CHANNEL, wrapStringKey(channel));
         if (idList == null || idList.isEmpty()) {
             return Collections.emptyList();
         }
@@ -442,7 +577,7 @@ public class LocalConnectionServiceImpl implements LocalConnectionService, BeanN
 
     @Override
     public <ACCESS_USER> List<SseEmitter<ACCESS_USER>> getConnectionByAccessToken(String accessToken) {
-        Collection<Long> idList = accessToken2ConnectionIdMap.get(wrapStringKey(accessToken));
+        Collection<Long> idList = registry.getIndex(ConnectionRegistry.Index.ACCESS_TOKEN, wrapStringKey(accessToken));
         if (idList == null || idList.isEmpty()) {
             return Collections.emptyList();
         }
@@ -455,7 +590,7 @@ public class LocalConnectionServiceImpl implements LocalConnectionService, BeanN
 
     @Override
     public <ACCESS_USER> List<SseEmitter<ACCESS_USER>> getConnectionByTenantId(Serializable tenantId) {
-        Collection<Long> idList = tenantId2ConnectionIdMap.get(wrapStringKey(tenantId));
+        Collection<Long> idList = registry.getIndex(ConnectionRegistry.Index.TENANT_ID, wrapStringKey(tenantId));
         if (idList == null || idList.isEmpty()) {
             return Collections.emptyList();
         }
@@ -468,7 +603,7 @@ public class LocalConnectionServiceImpl implements LocalConnectionService, BeanN
 
     @Override
     public <ACCESS_USER> List<SseEmitter<ACCESS_USER>> getConnectionByUserId(Serializable userId) {
-        Collection<Long> idList = userId2ConnectionIdMap.get(wrapStringKey(userId));
+        Collection<Long> idList = registry.getIndex(ConnectionRegistry.Index.USER_ID, wrapStringKey(userId));
         if (idList == null || idList.isEmpty()) {
             return Collections.emptyList();
         }
@@ -539,11 +674,62 @@ public class LocalConnectionServiceImpl implements LocalConnectionService, BeanN
 
     @Override
     public <ACCESS_USER> List<SseEmitter<ACCESS_USER>> getConnectionByListening(String sseListenerName) {
-        return (List) connectionMap.values().stream()
-                .filter(e -> e.existListener(sseListenerName))
+        Collection<Long> idList = registry.getIndex(ConnectionRegistry.Index.LISTENER, sseListenerName);
+        if (idList == null || idList.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return idList.stream()
+                .map(this::<ACCESS_USER>getConnectionById)
+                .filter(e -> e != null && e.existListener(sseListenerName))
                 .collect(Collectors.toList());
     }
 
+    /**
+     * 维护 监听的钩子与链接ID的关系表
+     *
+     * @param event 前端JS 增减了监听的钩子
+     */
+    protected void updateListenerIndex(SseChangeEvent<?, Set<String>> event) {
+        SseEmitter<?> connection = event.getInstance();
+        if (!connection.isConnect()) {
+            // 还没连上的, 等连上时统一建索引
+            return;
+        }
+        long id = connection.getId();
+        Set<String> before = event.getBefore();
+        Set<String> after = event.getAfter();
+        List<String> addList = new ArrayList<>();
+        for (String name : after) {
+            if (!before.contains(name)) {
+                addList.add(name);
+            }
+        }
+        List<String> removeList = new ArrayList<>();
+        for (String name : before) {
+            if (!after.contains(name)) {
+                removeList.add(name);
+            }
+        }
+        addListenerIndex(id, addList);
+        removeListenerIndex(id, removeList);
+        if (connection.isDisconnect()) {
+            // 与断开并发时, 断开可能已先执行完
+            removeListenerIndex(id, addList);
+        }
+    }
+
+    protected void addListenerIndex(long connectionId, Collection<String> listeners) {
+        for (String listener : listeners) {
+            registry.addIndex(ConnectionRegistry.Index.LISTENER, listener, connectionId);
+        }
+    }
+
+    protected void removeListenerIndex(long connectionId, Collection<String> listeners) {
+        for (String listener : listeners) {
+            registry.removeIndex(ConnectionRegistry.Index.LISTENER, listener, connectionId);
+        }
+    }
+
     @Override
     public <ACCESS_USER> List<ConnectionDTO<ACCESS_USER>> getConnectionDTOAll() {
         return this.<ACCESS_USER>getConnectionAll().stream()
@@ -560,8 +746,7 @@ public class LocalConnectionServiceImpl implements LocalConnectionService, BeanN
 
     @Override
     public boolean isOnline(Serializable userId) {
-        Set<Long> idList = userId2ConnectionIdMap.get(wrapStringKey(userId));
-        return idList != null && !idList.isEmpty();
+        return registry.containsIndex(ConnectionRegistry.Index.USER_ID, wrapStringKey(userId));
     }
 
     @Override
@@ -575,8 +760,7 @@ public class LocalConnectionServiceImpl implements LocalConnectionService, BeanN
 
     @Override
     public <ACCESS_USER> List<ACCESS_USER> getUsersByListening(String sseListenerName) {
-        return getConnectionAll().stream()
-                .filter(e -> e.existListener(sseListenerName))
+        return this.<ACCESS_USER>getConnectionByListening(sseListenerName).stream()
                 .map(e -> (ACCESS_USER) e.getAccessUser())
                 .filter(Objects::nonNull)
                 .distinct()
@@ -595,12 +779,12 @@ public class LocalConnectionServiceImpl implements LocalConnectionService, BeanN
 
     @Override
     public Collection<Long> getConnectionIds() {
-        return Collections.unmodifiableCollection(connectionMap.keySet());
+        return registry.connectionIds();
     }
 
     @Override
     public Collection<String> getAccessTokens() {
-        return Collections.unmodifiableCollection(accessToken2ConnectionIdMap.keySet());
+        return registry.indexKeys(ConnectionRegistry.Index.ACCESS_TOKEN);
     }
 
     @Override
@@ -634,9 +818,9 @@ public class LocalConnectionServiceImpl implements LocalConnectionService, BeanN
     @Override
     public <T> Collection<T> getUserIds(Class<T> type) {
         if (type == String.class) {
-            return (Collection<T>) Collections.unmodifiableCollection(userId2ConnectionIdMap.keySet());
+            return (Collection<T>) registry.indexKeys(ConnectionRegistry.Index.USER_ID);
         } else {
-            return userId2ConnectionIdMap.keySet().stream()
+            return registry.indexKeys(ConnectionRegistry.Index.USER_ID).stream()
                     .map(e -> TypeUtil.cast(e, type))
                     .filter(Objects::nonNull)
                     .collect(Collectors.toList());
@@ -645,8 +829,7 @@ public class LocalConnectionServiceImpl implements LocalConnectionService, BeanN
 
     @Override
     public <T> List<T> getUserIdsByListening(String sseListenerName, Class<T> type) {
-        return getConnectionAll().stream()
-                .filter(e -> e.existListener(sseListenerName))
+        return getConnectionByListening(sseListenerName).stream()
                 .map(SseEmitter::getUserId)
                 .filter(Objects::nonNull)
                 .map(e -> TypeUtil.cast(e, type))
@@ -672,7 +855,7 @@ public class LocalConnectionServiceImpl implements LocalConnectionService, BeanN
      */
     @Override
     public int getAccessTokenCount() {
-        return accessToken2ConnectionIdMap.size();
+        return registry.indexSize(ConnectionRegistry.Index.ACCESS_TOKEN);
     }
 
     /**
@@ -680,7 +863,7 @@ public class LocalConnectionServiceImpl implements LocalConnectionService, BeanN
      */
     @Override
     public int getUserCount() {
-        return userId2ConnectionIdMap.size();
+        return registry.indexSize(ConnectionRegistry.Index.USER_ID);
     }
 
     /**
@@ -688,7 +871,7 @@ public class LocalConnectionServiceImpl implements LocalConnectionService, BeanN
      */
     @Override
     public int getConnectionCount() {
-        return connectionMap.size();
+        return registry.size();
     }
 
     protected Runnable completionCallBack(SseEmitter sseEmitter) {
@@ -761,22 +944,531 @@ public class LocalConnectionServiceImpl implements LocalConnectionService, BeanN
         }
     }
 
+    /**
+     * 创建事件帧, 带上 {@link #scopePriority(Priority, Callable)} 的优先级
+     */
+    protected SseFrame newFrame(String eventName, Object body) {
+        return newFrame(eventName, body, SendService.currentPriority());
+    }
+
+    /**
+     * 开启了补发 {@link #setReplayCapacity(int)} 时, 事件帧带全局递增的事件ID
+     */
+    protected SseFrame newFrame(String eventName, Object body, Priority priority) {
+        ReplayBuffer replayBuffer = this.replayBuffer;
+        if (replayBuffer == null) {
+            return new SseFrame(eventName, body, null, priority);
+        }
+        return new SseFrame(eventName, body, null, priority, replayBuffer.nextEventId());
+    }
+
+    /**
+     * 记到补发缓冲里, 没开补发什么都不做
+     *
+     * @param frame     事件帧
+     * @param index     目标的类型, null=所有人
+     * @param keys      目标
+     * @param listening true=只发给在监听这个事件的链接
+     * @return frame
+     */
+    protected SseFrame record(SseFrame frame, ConnectionRegistry.Index index, Collection<?> keys, boolean listening) {
+        ReplayBuffer replayBuffer = this.replayBuffer;
+        if (replayBuffer != null) {
+            replayBuffer.record(frame, index, keys, listening);
+        }
+        return frame;
+    }
+
+    /**
+     * 前端带着 Last-Event-ID 重连, 补发错过的事件
+     */
+    protected void replay(SseEmitter<?> emitter) {
+        ReplayBuffer replayBuffer = this.replayBuffer;
+        Long lastEventId = emitter.getLastEventId();
+        if (replayBuffer == null || lastEventId == null) {
+            return;
+        }
+        List<SseFrame> frames = replayBuffer.missed(emitter, lastEventId);
+        for (SseFrame frame : frames) {
+            if (!send(emitter, frame)) {
+                break;
+            }
+        }
+        if (!frames.isEmpty() && log.isDebugEnabled()) {
+            log.debug("sse {} connection replay {} events after {} : {}", beanName, frames.size(), lastEventId, emitter);
+        }
+    }
+
+    /**
+     * @return 发送时指定的优先级, 没指定按事件名, 都没有是 {@link Priority#NORMAL}
+     */
+    public Priority getPriority(SseFrame frame) {
+        Priority priority = frame.getPriority();
+        if (priority == null && frame.getName() != null) {
+            priority = priorityEventMap.get(frame.getName());
+        }
+        return priority != null ? priority : Priority.NORMAL;
+    }
+
+    /**
+     * 设置事件的默认出站优先级, 比如支付结果. 开启出站队列 {@link #setOutboundQueueCapacity(int)} 后,
+     * 每个链接总是先写优先级高的, 队列满了先丢优先级低的.
+     * 默认 connect-finish, connect-close, sse-set-duration 是 {@link Priority#CRITICAL}
+     *
+     * @param eventName 事件名
+     * @param priority  优先级
+     */
+    public void addPriorityEvent(String eventName, Priority priority) {
+        priorityEventMap.put(Objects.requireNonNull(eventName), Objects.requireNonNull(priority));
+    }
+
+    public void removePriorityEvent(String eventName) {
+        priorityEventMap.remove(eventName);
+    }
+
+    /**
+     * @return 事件名 = 默认的出站优先级
+     */
+    public Map<String, Priority> getPriorityEventMap() {
+        return Collections.unmodifiableMap(priorityEventMap);
+    }
+
     public <ACCESS_USER> boolean send(SseEmitter<ACCESS_USER> emitter, String name, Object body) {
+        return send(emitter, newFrame(name, body));
+    }
+
+    @Override
+    public int sendDelta(Collection<? extends SseEmitter> connections, String eventName, String key, Object document) {
+        // 只转换一次, 所有链接共用同一棵JSON树
+        JsonNode node = JsonMergePatch.toJsonNode(document);
+        int count = 0;
+        for (SseEmitter emitter : connections) {
+            // 按链接算补丁, 帧不能共用
+            String data = emitter.newDeltaData(key, node);
+            if (data != null && send(emitter, newFrame(eventName, data))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public <ACCESS_USER> boolean sendDeltaSnapshot(SseEmitter<ACCESS_USER> emitter, String eventName, String key) {
+        String data = emitter.newDeltaSnapshotData(key);
+        return data != null && send(emitter, newFrame(eventName, data));
+    }
+
+    public int getFanOutThreads() {
+        FanOutEngine fanOutEngine = this.fanOutEngine;
+        return fanOutEngine != null ? fanOutEngine.getThreads() : 0;
+    }
+
+    /**
+     * 开启群发引擎. 目标链接按链接ID分到固定的工作线程里发送, 不再阻塞调用方线程, 同一个链接的事件顺序不变
+     *
+     * @param fanOutThreads 工作线程数, 0=不开启(在调用方线程里发送)
+     */
+    public synchronized void setFanOutThreads(int fanOutThreads) {
+        FanOutEngine old = this.fanOutEngine;
+        this.fanOutEngine = fanOutThreads > 0 ? new FanOutEngine(fanOutThreads, this::getBeanName) : null;
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    /**
+     * 开启每个链接的出站队列. 发送只是入队, 由异步写线程写给前端, 慢的链接不会阻塞发送方. 只对之后新建的链接生效
+     *
+     * @param outboundQueueCapacity 每个链接的队列容量, 0=不开启(同步写)
+     */
+    public void setOutboundQueueCapacity(int outboundQueueCapacity) {
+        this.outboundQueueCapacity = outboundQueueCapacity;
+    }
+
+    public OutboundQueue.OverflowPolicy getOutboundOverflowPolicy() {
+        return outboundOverflowPolicy;
+    }
+
+    /**
+     * @param outboundOverflowPolicy 出站队列满了怎么办
+     */
+    public void setOutboundOverflowPolicy(OutboundQueue.OverflowPolicy outboundOverflowPolicy) {
+        this.outboundOverflowPolicy = Objects.requireNonNull(outboundOverflowPolicy);
+    }
+
+    public long getOutboundBlockTimeout() {
+        return outboundBlockTimeout;
+    }
+
+    /**
+     * @param outboundBlockTimeout {@link OutboundQueue.OverflowPolicy#BLOCK} 时发送方最多等多久(毫秒)
+     */
+    public void setOutboundBlockTimeout(long outboundBlockTimeout) {
+        this.outboundBlockTimeout = outboundBlockTimeout;
+    }
+
+    public int getOutboundWriterThreads() {
+        return outboundWriterThreads;
+    }
+
+    /**
+     * @param outboundWriterThreads 出站队列和心跳的异步写线程数
+     */
+    public void setOutboundWriterThreads(int outboundWriterThreads) {
+        this.outboundWriterThreads = outboundWriterThreads;
+        ThreadPoolExecutor outboundWriter = this.outboundWriter;
+        if (outboundWriter != null) {
+            if (outboundWriterThreads > outboundWriter.getMaximumPoolSize()) {
+                outboundWriter.setMaximumPoolSize(outboundWriterThreads);
+                outboundWriter.setCorePoolSize(outboundWriterThreads);
+            } else {
+                outboundWriter.setCorePoolSize(outboundWriterThreads);
+                outboundWriter.setMaximumPoolSize(outboundWriterThreads);
+            }
+        }
+    }
+
+    public long getCoalesceWindow() {
+        return coalesceWindow;
+    }
+
+    /**
+     * 开启合并写. 窗口内同一个链接入队的多个事件, 合成一次写和一次flush (聊天输入中, 进度这种频繁的小事件).
+     * 会自动开启出站队列. 只对之后新建的链接生效
+     *
+     * @param coalesceWindow 等待窗口(毫秒), 一般5~20毫秒. 0=不等待. 没设置合并数量时, 默认最多合并64个
+     * @see #setCoalesceMaxEvents(int)
+     */
+    public void setCoalesceWindow(long coalesceWindow) {
+        this.coalesceWindow = Math.max(coalesceWindow, 0L);
+        if (this.coalesceWindow > 0 && coalesceMaxEvents <= 1) {
+            this.coalesceMaxEvents = 64;
+        }
+    }
+
+    public int getCoalesceMaxEvents() {
+        return coalesceMaxEvents;
+    }
+
+    /**
+     * @param coalesceMaxEvents 一次写最多合并多少个事件, 攒够了不等窗口结束. 1=不合并
+     */
+    public void setCoalesceMaxEvents(int coalesceMaxEvents) {
+        if (coalesceMaxEvents <= 0) {
+            throw new IllegalArgumentException("coalesceMaxEvents must be greater than 0: " + coalesceMaxEvents);
+        }
+        this.coalesceMaxEvents = coalesceMaxEvents;
+    }
+
+    /**
+     * @return true=开启了合并写
+     */
+    public boolean isCoalesce() {
+        return coalesceWindow > 0 || coalesceMaxEvents > 1;
+    }
+
+    /**
+     * 开启值合并, 只关心最新值的事件(未读数, 实时价格). 链接还有没写出去的同名事件时, 新的值直接替换旧的值, 不排队.
+     * 会自动开启出站队列, 只对之后新建的链接生效
+     *
+     * @param eventName 事件名
+     */
+    public void addConflateEvent(String eventName) {
+        addConflateEvent(eventName, 0L);
+    }
+
+    /**
+     * 开启值合并, 并限制每个链接这个事件的最大发送频率. 慢的前端会收到更少, 但更新的值
+     *
+     * @param eventName   事件名
+     * @param minInterval 同一个链接两次发送的最小间隔(毫秒), 0=不限频率
+     */
+    public void addConflateEvent(String eventName, long minInterval) {
+        conflateEventMap.put(Objects.requireNonNull(eventName), Math.max(minInterval, 0L));
+    }
+
+    public void removeConflateEvent(String eventName) {
+        conflateEventMap.remove(eventName);
+    }
+
+    /**
+     * @return 值合并的事件名 = 最小发送间隔(毫秒)
+     */
+    public Map<String, Long> getConflateEventMap() {
+        return Collections.unmodifiableMap(conflateEventMap);
+    }
+
+    public int getAsyncSendThreads() {
+        return asyncSendThreads;
+    }
+
+    /**
+     * @param asyncSendThreads 异步推送 {@link #async()} 的线程数. async()本身按提交顺序一次派发一个, 要并行发送请开启群发引擎 {@link #setFanOutThreads(int)}
+     */
+    public void setAsyncSendThreads(int asyncSendThreads) {
+        if (asyncSendThreads <= 0) {
+            throw new IllegalArgumentException("asyncSendThreads must be greater than 0: " + asyncSendThreads);
+        }
+        this.asyncSendThreads = asyncSendThreads;
+        ThreadPoolExecutor asyncSendExecutor = this.asyncSendExecutor;
+        if (asyncSendExecutor != null) {
+            if (asyncSendThreads > asyncSendExecutor.getMaximumPoolSize()) {
+                asyncSendExecutor.setMaximumPoolSize(asyncSendThreads);
+                asyncSendExecutor.setCorePoolSize(asyncSendThreads);
+            } else {
+                asyncSendExecutor.setCorePoolSize(asyncSendThreads);
+                asyncSendExecutor.setMaximumPoolSize(asyncSendThreads);
+            }
+        }
+    }
+
+    /**
+     * 设置出站限流 (令牌桶, 突发容量是一秒的量), 一个事件要同时满足所有设置了的范围
+     *
+     * @param scope           范围: 服务/租户/用户/链接
+     * @param eventsPerSecond 每秒事件数, 0=不限制
+     * @param bytesPerSecond  每秒字节数, 0=不限制
+     */
+    public void setRateLimit(RateLimiter.Scope scope, double eventsPerSecond, long bytesPerSecond) {
+        getOrCreateRateLimiter().setLimit(scope, eventsPerSecond, bytesPerSecond);
+    }
+
+    /**
+     * @param rateLimitPolicy 超过限流怎么办, 默认 {@link RateLimiter.Policy#DELAY}
+     */
+    public void setRateLimitPolicy(RateLimiter.Policy rateLimitPolicy) {
+        getOrCreateRateLimiter().setPolicy(Objects.requireNonNull(rateLimitPolicy));
+    }
+
+    /**
+     * @return null=没开限流
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * 开启断线重连补发. 前端带着 Last-Event-ID 重连时, 补发这段时间里错过的事件 (只限本机)
+     *
+     * @param replayCapacity 每个用户/accessToken/租户/频道最多保留多少个事件, 0=关闭
+     */
+    public void setReplayCapacity(int replayCapacity) {
+        synchronized (this) {
+            if (replayCapacity <= 0) {
+                this.replayBuffer = null;
+                return;
+            }
+            ReplayBuffer buffer = new ReplayBuffer(replayCapacity, replayMaxAge);
+            if (this.replayBuffer == null) {
+                // 定时删掉过期的事件, 每次都取最新的缓冲
+                scheduled.scheduleWithFixedDelay(() -> {
+                    ReplayBuffer replayBuffer = this.replayBuffer;
+                    if (replayBuffer != null) {
+                        replayBuffer.evictExpired();
+                    }
+                }, 60, 60, TimeUnit.SECONDS);
+            }
+            this.replayBuffer = buffer;
+        }
+    }
+
+    public int getReplayCapacity() {
+        ReplayBuffer replayBuffer = this.replayBuffer;
+        return replayBuffer != null ? replayBuffer.getCapacity() : 0;
+    }
+
+    /**
+     * @param replayMaxAge 补发的事件最多保留多久(毫秒), 在 {@link #setReplayCapacity(int)} 之前设置
+     */
+    public void setReplayMaxAge(long replayMaxAge) {
+        this.replayMaxAge = replayMaxAge;
+    }
+
+    public long getReplayMaxAge() {
+        return replayMaxAge;
+    }
+
+    /**
+     * @return null=没开补发
+     */
+    public ReplayBuffer getReplayBuffer() {
+        return replayBuffer;
+    }
+
+    protected RateLimiter getOrCreateRateLimiter() {
+        if (rateLimiter == null) {
+            synchronized (this) {
+                if (rateLimiter == null) {
+                    RateLimiter limiter = new RateLimiter(scheduled, getAsyncSendExecutor(), this::getLocalMessageRepository);
+                    // 定时删掉空闲的桶, 不然每个用户/租户的桶会一直留着
+                    scheduled.scheduleWithFixedDelay(limiter::evictIdle, 60, 60, TimeUnit.SECONDS);
+                    rateLimiter = limiter;
+                }
+            }
+        }
+        return rateLimiter;
+    }
+
+    protected Executor getAsyncSendExecutor() {
+        if (asyncSendExecutor == null) {
+            synchronized (this) {
+                if (asyncSendExecutor == null) {
+                    AtomicInteger id = new AtomicInteger();
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(asyncSendThreads, asyncSendThreads,
+                            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                        Thread thread = new Thread(r, getBeanName() + "-async-" + id.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    executor.allowCoreThreadTimeOut(true);
+                    asyncSendExecutor = executor;
+                }
+            }
+        }
+        return asyncSendExecutor;
+    }
+
+    protected Executor getOutboundWriter() {
+        if (outboundWriter == null) {
+            synchronized (this) {
+                if (outboundWriter == null) {
+                    AtomicInteger id = new AtomicInteger();
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(outboundWriterThreads, outboundWriterThreads,
+                            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                        Thread thread = new Thread(r, getBeanName() + "-writer-" + id.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    executor.allowCoreThreadTimeOut(true);
+                    outboundWriter = executor;
+                }
+            }
+        }
+        return outboundWriter;
+    }
+
+    public FanOutEngine.Mode getFanOutMode() {
+        return fanOutMode;
+    }
+
+    /**
+     * 开启群发引擎后, 同步的send*接口如何返回
+     *
+     * @param fanOutMode AWAIT=等待发送完, 返回成功数量. FIRE_AND_FORGET=立即返回派发的链接数量.
+     *                   {@link #scopeOnWriteable(Callable)} 里总是等待发送完
+     */
+    public void setFanOutMode(FanOutEngine.Mode fanOutMode) {
+        this.fanOutMode = Objects.requireNonNull(fanOutMode);
+    }
+
+    /**
+     * 群发事件帧, 异步返回发送成功的数量
+     * 开启了群发引擎 {@link #setFanOutThreads(int)} 时在工作线程里发送, 否则在调用方线程里发送
+     *
+     * @param targets 目标链接
+     * @param frame   事件帧
+     * @return 发送成功的数量
+     */
+    public <ACCESS_USER> CompletableFuture<Integer> sendAsync(Collection<? extends SseEmitter<ACCESS_USER>> targets, SseFrame frame) {
+        boolean onlyWriteable = Boolean.TRUE.equals(scopeOnWriteableThreadLocal.get());
+        FanOutEngine fanOutEngine = this.fanOutEngine;
+        if (fanOutEngine != null) {
+            return fanOutEngine.fanOut(targets, e -> send(e, frame, onlyWriteable));
+        }
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        try {
+            int count = 0;
+            for (SseEmitter<ACCESS_USER> target : targets) {
+                if (send(target, frame, onlyWriteable)) {
+                    count++;
+                }
+            }
+            future.complete(count);
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    protected Integer dispatch(Collection<? extends SseEmitter> targets, SseFrame frame) {
+        boolean onlyWriteable = Boolean.TRUE.equals(scopeOnWriteableThreadLocal.get());
+        FanOutEngine fanOutEngine = this.fanOutEngine;
+        if (fanOutEngine == null) {
+            int count = 0;
+            for (SseEmitter target : targets) {
+                if (send(target, frame, onlyWriteable)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+        CompletableFuture<Integer> future = fanOutEngine.fanOut((Collection) targets, e -> send((SseEmitter) e, frame, onlyWriteable));
+        if (fanOutMode == FanOutEngine.Mode.FIRE_AND_FORGET && !onlyWriteable) {
+            return targets.size();
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LambdaUtil.sneakyThrows(e);
+            return null;
+        } catch (ExecutionException e) {
+            LambdaUtil.sneakyThrows(e.getCause());
+            return null;
+        }
+    }
+
+    protected <KEY> List<SseEmitter> collect(Collection<KEY> keys, Function<KEY, ? extends Collection<? extends SseEmitter>> getter, String listening) {
+        List<SseEmitter> list = new ArrayList<>();
+        for (KEY key : keys) {
+            for (SseEmitter value : getter.apply(key)) {
+                if (listening == null || value.existListener(listening)) {
+                    list.add(value);
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * 发送共享的事件帧, 群发时同一个帧只序列化一次
+     *
+     * @param emitter 链接
+     * @param frame   事件帧
+     * @return true=发送成功
+     */
+    public <ACCESS_USER> boolean send(SseEmitter<ACCESS_USER> emitter, SseFrame frame) {
+        return send(emitter, frame, Boolean.TRUE.equals(scopeOnWriteableThreadLocal.get()));
+    }
+
+    protected <ACCESS_USER> boolean send(SseEmitter<ACCESS_USER> emitter, SseFrame frame, boolean onlyWriteable) {
         if (emitter != null && emitter.isActive()) {
-            Boolean sendAtWriteable = scopeOnWriteableThreadLocal.get();
-            if (sendAtWriteable != null && sendAtWriteable && !emitter.isWriteable()) {
+            if (onlyWriteable && !emitter.isWriteable()) {
                 return false;
             }
-            try {
-                emitter.send(name, body);
-                return true;
-            } catch (IOException e) {
-                emitter.disconnect();
+            RateLimiter rateLimiter = this.rateLimiter;
+            if (rateLimiter != null && getPriority(frame) != Priority.CRITICAL) {
+                // 控制消息不限流
+                return rateLimiter.send(emitter, frame, this::sendNow);
             }
+            return sendNow(emitter, frame);
         }
         return false;
     }
 
+    private boolean sendNow(SseEmitter<?> emitter, SseFrame frame) {
+        try {
+            return emitter.send(frame);
+        } catch (IOException e) {
+            emitter.disconnect();
+            return false;
+        }
+    }
+
     public int getReconnectTime() {
         return reconnectTime;
     }
@@ -802,128 +1494,52 @@ public class LocalConnectionServiceImpl implements LocalConnectionService, BeanN
 
     @Override
     public Integer sendAll(String eventName, Object body) {
-        int count = 0;
-        for (SseEmitter value : connectionMap.values()) {
-            if (send(value, eventName, body)) {
-                count++;
-            }
-        }
-        return count;
+        return dispatch(registry.connections(), record(newFrame(eventName, body), null, null, false));
     }
 
     @Override
     public Integer sendAllListening(String eventName, Object body) {
-        int count = 0;
-        for (SseEmitter value : connectionMap.values()) {
-            if (value.existListener(eventName) && send(value, eventName, body)) {
-                count++;
-            }
-        }
-        return count;
+        return dispatch(getConnectionByListening(eventName), record(newFrame(eventName, body), null, null, true));
     }
 
     @Override
     public Integer sendByChannel(Collection<String> channels, String eventName, Object body) {
-        int count = 0;
-        for (String channel : channels) {
-            for (SseEmitter value : getConnectionByChannel(channel)) {
-                if (send(value, eventName, body)) {
-                    count++;
-                }
-            }
-        }
-        return count;
+        return dispatch(collect(channels, this::getConnectionByChannel, null), record(newFrame(eventName, body), ConnectionRegistry.Index.CHANNEL, channels, false));
     }
 
     @Override
     public Integer sendByChannelListening(Collection<String> channels, String eventName, Object body) {
-        int count = 0;
-        for (String channel : channels) {
-            for (SseEmitter value : getConnectionByChannel(channel)) {
-                if (value.existListener(eventName) && send(value, eventName, body)) {
-                    count++;
-                }
-            }
-        }
-        return count;
+        return dispatch(collect(channels, this::getConnectionByChannel, eventName), record(newFrame(eventName, body), ConnectionRegistry.Index.CHANNEL, channels, true));
     }
 
     @Override
     public Integer sendByAccessToken(Collection<String> accessTokens, String eventName, Object body) {
-        int count = 0;
-        for (String accessToken : accessTokens) {
-            for (SseEmitter value : getConnectionByAccessToken(accessToken)) {
-                if (send(value, eventName, body)) {
-                    count++;
-                }
-            }
-        }
-        return count;
+        return dispatch(collect(accessTokens, this::getConnectionByAccessToken, null), record(newFrame(eventName, body), ConnectionRegistry.Index.ACCESS_TOKEN, accessTokens, false));
     }
 
     @Override
     public Integer sendByAccessTokenListening(Collection<String> accessTokens, String eventName, Object body) {
-        int count = 0;
-        for (String accessToken : accessTokens) {
-            for (SseEmitter value : getConnectionByAccessToken(accessToken)) {
-                if (value.existListener(eventName) && send(value, eventName, body)) {
-                    count++;
-                }
-            }
-        }
-        return count;
+        return dispatch(collect(accessTokens, this::getConnectionByAccessToken, eventName), record(newFrame(eventName, body), ConnectionRegistry.Index.ACCESS_TOKEN, accessTokens, true));
     }
 
     @Override
     public Integer sendByUserId(Collection<? extends Serializable> userIds, String eventName, Object body) {
-        int count = 0;
-        for (Serializable userId : userIds) {
-            for (SseEmitter value : getConnectionByUserId(userId)) {
-                if (send(value, eventName, body)) {
-                    count++;
-                }
-            }
-        }
-        return count;
+        return dispatch(collect(userIds, this::getConnectionByUserId, null), record(newFrame(eventName, body), ConnectionRegistry.Index.USER_ID, userIds, false));
     }
 
     @Override
     public Integer sendByUserIdListening(Collection<? extends Serializable> userIds, String eventName, Object body) {
-        int count = 0;
-        for (Serializable userId : userIds) {
-            for (SseEmitter value : getConnectionByUserId(userId)) {
-                if (value.existListener(eventName) && send(value, eventName, body)) {
-                    count++;
-                }
-            }
-        }
-        return count;
+        return dispatch(collect(userIds, this::getConnectionByUserId, eventName), record(newFrame(eventName, body), ConnectionRegistry.Index.USER_ID, userIds, true));
     }
 
     @Override
     public Integer sendByTenantId(Collection<? extends Serializable> tenantIds, String eventName, Object body) {
-        int count = 0;
-        for (Serializable tenantId : tenantIds) {
-            for (SseEmitter value : getConnectionByTenantId(tenantId)) {
-                if (send(value, eventName, body)) {
-                    count++;
-                }
-            }
-        }
-        return count;
+        return dispatch(collect(tenantIds, this::getConnectionByTenantId, null), record(newFrame(eventName, body), ConnectionRegistry.Index.TENANT_ID, tenantIds, false));
     }
 
     @Override
     public Integer sendByTenantIdListening(Collection<? extends Serializable> tenantIds, String eventName, Object body) {
-        int count = 0;
-        for (Serializable tenantId : tenantIds) {
-            for (SseEmitter value : getConnectionByTenantId(tenantId)) {
-                if (value.existListener(eventName) && send(value, eventName, body)) {
-                    count++;
-                }
-            }
-        }
-        return count;
+        return dispatch(collect(tenantIds, this::getConnectionByTenantId, eventName), record(newFrame(eventName, body), ConnectionRegistry.Index.TENANT_ID, tenantIds, true));
     }
 
     @Override
@@ -939,31 +1555,41 @@ public class LocalConnectionServiceImpl implements LocalConnectionService, BeanN
     @Override
     public String toString() {
         return "LocalConnectionServiceImpl{" +
-                beanName + "[" + connectionMap.size() + "]" +
+                beanName + "[" + registry.size() + "]" +
                 '}';
     }
 
     private static class BatchActiveRunnable implements Runnable {
         private final LocalConnectionServiceImpl localConnectionService;
         private final Set<Request> requestSet = new LinkedHashSet<>();
+        private boolean scheduled;
 
         private BatchActiveRunnable(LocalConnectionServiceImpl localConnectionService) {
             this.localConnectionService = localConnectionService;
         }
 
-        public void add(String userId, String accessToken) {
+        /**
+         * @return true=批次里的第一个, 需要调度
+         */
+        public boolean add(String userId, String accessToken) {
             synchronized (requestSet) {
                 requestSet.add(new Request(userId, accessToken));
+                if (scheduled) {
+                    return false;
+                }
+                scheduled = true;
+                return true;
             }
         }
 
         @Override
         public void run() {
-            if (requestSet.isEmpty()) {
-                return;
-            }
             ArrayList<Map<String, Object>> activeList = new ArrayList<>();
             synchronized (requestSet) {
+                scheduled = false;
+                if (requestSet.isEmpty()) {
+                    return;
+                }
                 for (Request request : requestSet) {
                     activeList.add(request.toMap());
                 }
@@ -262,14 +262,18 @@ public class LocalController implements Closeable {
 
             if (service != null) {
                 Object scopeOnWriteable = body("scopeOnWriteable");
-                if (Boolean.TRUE.equals(scopeOnWriteable)) {
-                    service.scopeOnWriteable(() -> {
+                SendService.Priority priority = SendService.Priority.parse(body("priority"));
+                service.scopePriority(priority, () -> {
+                    if (Boolean.TRUE.equals(scopeOnWriteable)) {
+                        service.scopeOnWriteable(() -> {
+                            handleCase(request, rpcMethodName, service);
+                            return null;
+                        });
+                    } else {
                         handleCase(request, rpcMethodName, service);
-                        return null;
-                    });
-                } else {
-                    handleCase(request, rpcMethodName, service);
-                }
+                    }
+                    return null;
+                });
             } else {
                 writeResponse(request, 0);
             }
@@ -659,6 +663,7 @@ public class LocalController implements Closeable {
             private final String eventName;
             private final String id;
             private final int filters;
+            private final long expireTime;
 
             public RemoteRequestMessage(HttpPrincipal principal, Map body) {
                 this.principal = principal;
@@ -671,6 +676,9 @@ public class LocalController implements Closeable {
                 this.eventName = body(body, "eventName");
                 this.id = body(body, "id");
                 this.filters = body(body, "filters");
+                // 旧版本没有这个字段
+                Object expireTime = body(body, "expireTime");
+                this.expireTime = expireTime instanceof Number ? ((Number) expireTime).longValue() : 0L;
                 setArrayClassName(body(body, "arrayClassName"));
                 setObjectClassName(body(body, "objectClassName"));
             }
@@ -723,6 +731,11 @@ public class LocalController implements Closeable {
             public int getFilters() {
                 return filters;
             }
+
+            @Override
+            public long getExpireTime() {
+                return expireTime;
+            }
         }
 
         public class RequestQuery implements MessageRepository.Query {
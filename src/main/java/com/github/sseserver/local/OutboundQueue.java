@@ -0,0 +1,683 @@
+package com.github.sseserver.local;
+
+import com.github.sseserver.SendService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter.SseEventBuilder;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 链接的出站队列 (有界)
+ * 1. 发送只是入队, 由异步写线程按顺序写给前端, 一个卡住的TCP窗口不会阻塞发送方.
+ * 2. 队列满了按 {@link OverflowPolicy} 处理, 内存不会无限增长.
+ * 3. 同一时刻一个链接最多只有一个写任务, 所以事件顺序不变.
+ * 4. 开启合并写后, 窗口内入队的多个事件合成一次写和一次flush, 减少chunk和系统调用.
+ * 5. 开启值合并(conflation)的事件名, 队列里同名的事件只保留最新的值, 还可以限制每个事件名的最大发送频率.
+ * 6. 每个优先级 {@link SendService.Priority} 一条队列, 总是先写优先级高的. 队列满了先丢优先级低的,
+ * 批量广播积压时, 控制消息(比如强制下线)不用排在后面.
+ *
+ * @see LocalConnectionServiceImpl#setOutboundQueueCapacity(int)
+ * @see LocalConnectionServiceImpl#setCoalesceWindow(long)
+ * @see LocalConnectionServiceImpl#addConflateEvent(String, long)
+ */
+public class OutboundQueue {
+    private static final Logger log = LoggerFactory.getLogger(OutboundQueue.class);
+    /**
+     * 一个写任务最多连续写多少个事件, 写完让出线程给别的链接
+     */
+    private static final int DRAIN_BATCH = Integer.getInteger("sseserver.OutboundQueue.drainBatch", 64);
+    private static final SendService.Priority[] PRIORITIES = SendService.Priority.values();
+
+    private final SseEmitter<?> emitter;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
+    private final Executor writer;
+    /**
+     * 合并写的等待窗口, 0=不等待
+     */
+    private final long coalesceWindowNanos;
+    /**
+     * 一次写最多合并多少个事件, 攒够了不等窗口结束
+     */
+    private final int coalesceMaxEvents;
+    private final ScheduledExecutorService scheduler;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    /**
+     * 每个优先级一条队列, 下标是 {@link SendService.Priority#ordinal()}. 元素是 SseEventBuilder 或 {@link ConflatedSlot}
+     */
+    private final ArrayDeque<Object>[] lanes;
+    /**
+     * 值合并中的事件名 = 还没写出的槽位
+     */
+    private final Map<String, ConflatedSlot> conflatedMap = new HashMap<>();
+    /**
+     * 值合并的事件名 = 上次写出的时间
+     */
+    private final Map<String, Long> conflatedLastWriteMap = new HashMap<>();
+    /**
+     * 值合并的事件名 = 最小发送间隔(毫秒), 0=不限频率. 由外部共享, 可以随时修改
+     */
+    private volatile Map<String, Long> conflateEventMap = Collections.emptyMap();
+    /**
+     * 事件名 = 默认优先级, 发送时没指定优先级才用. 由外部共享, 可以随时修改
+     */
+    private volatile Map<String, SendService.Priority> priorityEventMap = Collections.emptyMap();
+    private final Runnable drainTask = this::drain;
+    private ScheduledFuture<?> delayedDrain;
+    private boolean draining;
+    private boolean writeable;
+    private boolean closed;
+    /**
+     * 所有优先级的事件数, 持有锁时读写
+     */
+    private int queued;
+    private volatile int size;
+    private volatile long dropCount;
+    private volatile long conflateCount;
+
+    /**
+     * @param emitter          链接
+     * @param capacity         队列容量
+     * @param overflowPolicy   队列满了怎么办
+     * @param blockTimeoutMs   {@link OverflowPolicy#BLOCK} 时最多等多久
+     * @param writer           异步写线程
+     */
+    public OutboundQueue(SseEmitter<?> emitter, int capacity, OverflowPolicy overflowPolicy,
+                         long blockTimeoutMs, Executor writer) {
+        this(emitter, capacity, overflowPolicy, blockTimeoutMs, writer, 0L, 1, null);
+    }
+
+    /**
+     * @param emitter           链接
+     * @param capacity          队列容量
+     * @param overflowPolicy    队列满了怎么办
+     * @param blockTimeoutMs    {@link OverflowPolicy#BLOCK} 时最多等多久
+     * @param writer            异步写线程
+     * @param coalesceWindowMs  合并写的等待窗口(毫秒), 0=不等待
+     * @param coalesceMaxEvents 一次写最多合并多少个事件, 1=不合并
+     * @param scheduler         等待窗口的定时器, coalesceWindowMs大于0时必填
+     */
+    public OutboundQueue(SseEmitter<?> emitter, int capacity, OverflowPolicy overflowPolicy,
+                         long blockTimeoutMs, Executor writer,
+                         long coalesceWindowMs, int coalesceMaxEvents, ScheduledExecutorService scheduler) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be greater than 0: " + capacity);
+        }
+        this.emitter = emitter;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMs);
+        this.writer = writer;
+        this.lanes = new ArrayDeque[PRIORITIES.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ArrayDeque<>(Math.min(capacity, 16));
+        }
+        if (coalesceMaxEvents <= 0) {
+            throw new IllegalArgumentException("coalesceMaxEvents must be greater than 0: " + coalesceMaxEvents);
+        }
+        if (coalesceWindowMs > 0 && scheduler == null) {
+            throw new IllegalArgumentException("coalesceWindowMs require scheduler");
+        }
+        this.coalesceWindowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(coalesceWindowMs, 0L));
+        this.coalesceMaxEvents = coalesceMaxEvents;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * 入队
+     *
+     * @param builder 事件
+     * @return true=入队成功. false=被丢弃或链接已关闭 (事件的Future会异常结束)
+     */
+    public boolean offer(SseEventBuilder builder) {
+        SseEventBuilder dropped = null;
+        IOException droppedCause = null;
+        boolean accepted = false;
+        boolean disconnect = false;
+        boolean startDrain = false;
+        String name = eventName(builder);
+        String conflateKey = conflateKey(name);
+        SendService.Priority priority = priority(builder, name);
+        lock.lock();
+        try {
+            ConflatedSlot slot = conflateKey != null ? conflatedMap.get(conflateKey) : null;
+            if (closed) {
+                dropped = builder;
+                droppedCause = new ClosedChannelException();
+            } else if (slot != null) {
+                // 还没写出去, 新的值替换旧的值, 位置不变
+                dropped = slot.latest;
+                droppedCause = new ConflatedException(conflateKey);
+                slot.latest = builder;
+                conflateCount++;
+                accepted = true;
+            } else if (conflateKey != null && scheduleConflated(conflateKey, builder, priority)) {
+                // 限频了, 到时间再入队
+                accepted = true;
+            } else if (queued >= capacity && !makeRoom(priority)) {
+                dropCount++;
+                dropped = builder;
+                droppedCause = new DropException(overflowPolicy, capacity);
+                disconnect = overflowPolicy == OverflowPolicy.DISCONNECT;
+            } else {
+                if (queued >= capacity) {
+                    // 优先级低的先丢, 同优先级丢最旧的
+                    dropped = detach(pollLowest(priority));
+                    droppedCause = new DropException(overflowPolicy, capacity);
+                    dropCount++;
+                }
+                if (conflateKey != null) {
+                    slot = new ConflatedSlot(conflateKey, builder, priority);
+                    conflatedMap.put(conflateKey, slot);
+                    add(slot, priority);
+                } else {
+                    add(builder, priority);
+                }
+                accepted = true;
+                if (writeable && !draining) {
+                    draining = true;
+                    startDrain = !scheduleDrain(priority);
+                } else if (delayedDrain != null
+                        && (queued >= coalesceMaxEvents || priority == SendService.Priority.CRITICAL)
+                        && delayedDrain.cancel(false)) {
+                    // 攒够了或有控制消息, 不等窗口结束
+                    delayedDrain = null;
+                    startDrain = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (dropped != null) {
+            fail(dropped, droppedCause);
+        }
+        if (disconnect) {
+            if (log.isInfoEnabled()) {
+                log.info("sse connection slow consumer disconnect, queue capacity {} : {}", capacity, emitter);
+            }
+            // 对端写不动了, 不发connect-close, 让前端自动重连
+            emitter.disconnect(false);
+        }
+        if (startDrain) {
+            execute();
+        }
+        return accepted;
+    }
+
+    private static String eventName(SseEventBuilder builder) {
+        if (builder instanceof SseEmitter.SseEventBuilderFuture) {
+            return ((SseEmitter.SseEventBuilderFuture<?>) builder).getName();
+        } else if (builder instanceof SseEmitter.SseFrameEvent) {
+            return ((SseEmitter.SseFrameEvent) builder).getName();
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * @return 开启了值合并的事件名, null=没开启
+     */
+    private String conflateKey(String name) {
+        return name != null && conflateEventMap.containsKey(name) ? name : null;
+    }
+
+    /**
+     * 发送时指定的优先级, 没指定按事件名, 都没有是 {@link SendService.Priority#NORMAL}
+     */
+    private SendService.Priority priority(SseEventBuilder builder, String name) {
+        SendService.Priority priority = null;
+        if (builder instanceof SseEmitter.SseEventBuilderFuture) {
+            priority = ((SseEmitter.SseEventBuilderFuture<?>) builder).getPriority();
+        } else if (builder instanceof SseEmitter.SseFrameEvent) {
+            priority = ((SseEmitter.SseFrameEvent) builder).getPriority();
+        }
+        if (priority == null && name != null) {
+            priority = priorityEventMap.get(name);
+        }
+        return priority != null ? priority : SendService.Priority.NORMAL;
+    }
+
+    /**
+     * 入队. 调用时持有锁
+     */
+    private void add(Object element, SendService.Priority priority) {
+        lanes[priority.ordinal()].addLast(element);
+        size = ++queued;
+    }
+
+    /**
+     * 从优先级最高的队列取. 调用时持有锁
+     */
+    private Object pollHighest() {
+        for (int i = lanes.length - 1; i >= 0; i--) {
+            Object element = lanes[i].pollFirst();
+            if (element != null) {
+                size = --queued;
+                return element;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 从不高于这个优先级的, 最低的队列里取最旧的. 调用时持有锁
+     */
+    private Object pollLowest(SendService.Priority max) {
+        for (int i = 0; i <= max.ordinal(); i++) {
+            Object element = lanes[i].pollFirst();
+            if (element != null) {
+                size = --queued;
+                return element;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true=有不高于这个优先级的事件. 调用时持有锁
+     */
+    private boolean hasLowest(int maxOrdinal) {
+        for (int i = 0; i <= maxOrdinal; i++) {
+            if (!lanes[i].isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 距离上次写出还不到最小间隔, 先放到槽位里, 到时间再入队. 调用时持有锁
+     *
+     * @return true=已延迟. false=可以立即入队
+     */
+    private boolean scheduleConflated(String key, SseEventBuilder builder, SendService.Priority priority) {
+        Long minInterval = conflateEventMap.get(key);
+        Long lastWrite = conflatedLastWriteMap.get(key);
+        if (minInterval == null || minInterval <= 0L || lastWrite == null || scheduler == null) {
+            return false;
+        }
+        long delay = lastWrite + TimeUnit.MILLISECONDS.toNanos(minInterval) - System.nanoTime();
+        if (delay <= 0L) {
+            return false;
+        }
+        ConflatedSlot slot = new ConflatedSlot(key, builder, priority);
+        try {
+            slot.delayed = scheduler.schedule(() -> enqueueConflated(slot), delay, TimeUnit.NANOSECONDS);
+        } catch (RuntimeException e) {
+            // 定时器已关闭, 立即入队
+            return false;
+        }
+        conflatedMap.put(key, slot);
+        return true;
+    }
+
+    /**
+     * 限频的槽位到时间了, 入队
+     */
+    private void enqueueConflated(ConflatedSlot slot) {
+        boolean startDrain = false;
+        lock.lock();
+        try {
+            if (closed || conflatedMap.get(slot.key) != slot) {
+                return;
+            }
+            slot.delayed = null;
+            add(slot, slot.priority);
+            if (writeable && !draining) {
+                draining = true;
+                startDrain = !scheduleDrain(slot.priority);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (startDrain) {
+            execute();
+        }
+    }
+
+    /**
+     * 出队的元素转为事件, 值合并的槽位在这一刻定下最终的值. 调用时持有锁
+     */
+    private SseEventBuilder detach(Object element) {
+        if (element instanceof ConflatedSlot) {
+            ConflatedSlot slot = (ConflatedSlot) element;
+            conflatedMap.remove(slot.key);
+            conflatedLastWriteMap.put(slot.key, System.nanoTime());
+            return slot.latest;
+        }
+        return (SseEventBuilder) element;
+    }
+
+    /**
+     * 开启了等待窗口, 等窗口结束再写. 控制消息不等. 调用时持有锁
+     *
+     * @return true=已延迟写. false=需要立即写
+     */
+    private boolean scheduleDrain(SendService.Priority priority) {
+        if (coalesceWindowNanos <= 0L || queued >= coalesceMaxEvents || priority == SendService.Priority.CRITICAL) {
+            return false;
+        }
+        try {
+            delayedDrain = scheduler.schedule(this::execute, coalesceWindowNanos, TimeUnit.NANOSECONDS);
+            return true;
+        } catch (RuntimeException e) {
+            // 定时器已关闭, 立即写
+            return false;
+        }
+    }
+
+    /**
+     * 队列满时, 有优先级更低的就丢掉一个, 否则按策略腾位置. 调用时持有锁
+     *
+     * @return true=可以入队
+     */
+    private boolean makeRoom(SendService.Priority priority) {
+        if (hasLowest(priority.ordinal() - 1)) {
+            return true;
+        }
+        switch (overflowPolicy) {
+            case DROP_OLDEST: {
+                return hasLowest(priority.ordinal());
+            }
+            case BLOCK: {
+                long nanos = blockTimeoutNanos;
+                try {
+                    while (queued >= capacity && !closed) {
+                        if (nanos <= 0L) {
+                            return false;
+                        }
+                        nanos = notFull.awaitNanos(nanos);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                return !closed;
+            }
+            case DROP_NEWEST:
+            case DISCONNECT:
+            default: {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 链接写就绪后, 开始写
+     */
+    void writeableReady() {
+        boolean startDrain = false;
+        lock.lock();
+        try {
+            writeable = true;
+            if (!closed && queued > 0 && !draining) {
+                draining = true;
+                startDrain = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (startDrain) {
+            execute();
+        }
+    }
+
+    /**
+     * 链接断开后, 队列里剩下的事件都异常结束
+     */
+    void close() {
+        List<SseEventBuilder> remaining;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (delayedDrain != null) {
+                delayedDrain.cancel(false);
+                delayedDrain = null;
+            }
+            remaining = new ArrayList<>(queued + conflatedMap.size());
+            for (ArrayDeque<Object> lane : lanes) {
+                for (Object element : lane) {
+                    if (!(element instanceof ConflatedSlot)) {
+                        remaining.add((SseEventBuilder) element);
+                    }
+                }
+                lane.clear();
+            }
+            for (ConflatedSlot slot : conflatedMap.values()) {
+                if (slot.delayed != null) {
+                    slot.delayed.cancel(false);
+                }
+                remaining.add(slot.latest);
+            }
+            conflatedMap.clear();
+            queued = 0;
+            size = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (!remaining.isEmpty()) {
+            ClosedChannelException exception = new ClosedChannelException();
+            for (SseEventBuilder builder : remaining) {
+                fail(builder, exception);
+            }
+        }
+    }
+
+    private void execute() {
+        try {
+            writer.execute(drainTask);
+        } catch (RuntimeException e) {
+            // 写线程池已关闭, 在当前线程写
+            drain();
+        }
+    }
+
+    private void drain() {
+        for (int written = 0; written < DRAIN_BATCH; ) {
+            SseEventBuilder builder;
+            lock.lock();
+            try {
+                delayedDrain = null;
+                builder = poll();
+                if (builder == null) {
+                    draining = false;
+                    return;
+                }
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            written += builder instanceof SseEmitter.SseBatchEvent ? ((SseEmitter.SseBatchEvent) builder).size() : 1;
+            try {
+                emitter.write(builder);
+            } catch (IOException | RuntimeException e) {
+                lock.lock();
+                try {
+                    draining = false;
+                } finally {
+                    lock.unlock();
+                }
+                emitter.disconnect();
+                return;
+            }
+        }
+        // 还有没写完的, 重新排队, 让出线程
+        execute();
+    }
+
+    /**
+     * 取出一次要写的事件, 优先级高的先取, 开启合并写时多个事件合成一个. 调用时持有锁
+     */
+    private SseEventBuilder poll() {
+        SseEventBuilder first = detach(pollHighest());
+        if (first == null || coalesceMaxEvents <= 1 || queued == 0) {
+            return first;
+        }
+        int count = Math.min(queued + 1, coalesceMaxEvents);
+        List<SseEventBuilder> events = new ArrayList<>(count);
+        events.add(first);
+        while (events.size() < count) {
+            events.add(detach(pollHighest()));
+        }
+        return new SseEmitter.SseBatchEvent(events);
+    }
+
+    private static void fail(SseEventBuilder builder, IOException cause) {
+        if (builder instanceof CompletableFuture) {
+            ((CompletableFuture<?>) builder).completeExceptionally(cause);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getDropCount() {
+        return dropCount;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public long getCoalesceWindow(TimeUnit unit) {
+        return unit.convert(coalesceWindowNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public int getCoalesceMaxEvents() {
+        return coalesceMaxEvents;
+    }
+
+    /**
+     * @return 被更新的值替换掉的事件数
+     */
+    public long getConflateCount() {
+        return conflateCount;
+    }
+
+    /**
+     * @param conflateEventMap 值合并的事件名 = 最小发送间隔(毫秒), 0=不限频率. 可以是外部共享的并发Map
+     */
+    public void setConflateEventMap(Map<String, Long> conflateEventMap) {
+        this.conflateEventMap = conflateEventMap != null ? conflateEventMap : Collections.emptyMap();
+    }
+
+    /**
+     * @param priorityEventMap 事件名 = 默认优先级. 可以是外部共享的并发Map
+     */
+    public void setPriorityEventMap(Map<String, SendService.Priority> priorityEventMap) {
+        this.priorityEventMap = priorityEventMap != null ? priorityEventMap : Collections.emptyMap();
+    }
+
+    /**
+     * @return 这个优先级等待写的事件数量
+     */
+    public int size(SendService.Priority priority) {
+        lock.lock();
+        try {
+            return lanes[priority.ordinal()].size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "OutboundQueue{" +
+                "size=" + size +
+                ", capacity=" + capacity +
+                ", dropCount=" + dropCount +
+                ", conflateCount=" + conflateCount +
+                ", overflowPolicy=" + overflowPolicy +
+                '}';
+    }
+
+    /**
+     * 队列满了怎么办
+     */
+    public enum OverflowPolicy {
+        /**
+         * 丢弃队列里最旧的事件
+         */
+        DROP_OLDEST,
+        /**
+         * 丢弃新的事件
+         */
+        DROP_NEWEST,
+        /**
+         * 断开慢的链接, 让前端重连
+         */
+        DISCONNECT,
+        /**
+         * 发送方等待队列有空位, 超时后丢弃新的事件
+         */
+        BLOCK
+    }
+
+    /**
+     * 值合并的槽位, 同一个事件名在队列里只占一个位置
+     */
+    private static class ConflatedSlot {
+        private final String key;
+        private final SendService.Priority priority;
+        private SseEventBuilder latest;
+        /**
+         * 限频中, 等定时器入队. null=已在队列里
+         */
+        private ScheduledFuture<?> delayed;
+
+        private ConflatedSlot(String key, SseEventBuilder latest, SendService.Priority priority) {
+            this.key = key;
+            this.latest = latest;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * 事件被同名的新值替换了, 没有写给前端
+     */
+    public static class ConflatedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ConflatedException(String eventName) {
+            super("sse event conflated by newer value, eventName = " + eventName);
+        }
+    }
+
+    /**
+     * 事件被出站队列丢弃
+     */
+    public static class DropException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public DropException(OverflowPolicy overflowPolicy, int capacity) {
+            super("sse outbound queue full, capacity = " + capacity + ", overflowPolicy = " + overflowPolicy);
+        }
+    }
+}
@@ -0,0 +1,551 @@
+package com.github.sseserver.local;
+
+import com.github.sseserver.qos.AtLeastOnceMessage;
+import com.github.sseserver.qos.Message;
+import com.github.sseserver.qos.MessageRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
+import java.util.function.Supplier;
+
+/**
+ * 出站限流 (令牌桶)
+ * 1. 可以按 服务/租户/用户/链接 分别限制每秒事件数和每秒字节数, 一个事件要同时满足所有配置了的范围.
+ * 2. 超过限制按 {@link Policy} 处理: 延迟发送(同一个链接按顺序), 丢弃, 或存到 {@link MessageRepository} 等重连后补发.
+ * 3. 字节数在写出后扣减(允许欠一点), 出站队列异步写时帧还没序列化, 按data的长度估算.
+ *
+ * @see LocalConnectionServiceImpl#setRateLimit(Scope, double, long)
+ */
+public class RateLimiter {
+    private static final Logger log = LoggerFactory.getLogger(RateLimiter.class);
+    private static final Object SERVICE_KEY = "";
+    private static final int OFFERED = 0;
+    private static final int DROPPED = 1;
+    private static final int CLOSED = 2;
+    /**
+     * 还没序列化的对象事件, 按多少字节扣限流 (不知道序列化后多大, 估一个)
+     */
+    public static int objectBytesEstimate = Integer.getInteger("sseserver.RateLimiter.objectBytesEstimate", 256);
+
+    private final Limit[] limits = new Limit[Scope.values().length];
+    private final Map<Object, Bucket>[] bucketMaps = new Map[Scope.values().length];
+    private final Map<Long, Delayed> delayedMap = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+    private final Supplier<MessageRepository> messageRepository;
+    private volatile Policy policy = Policy.DELAY;
+    private volatile int maxDelayedEvents = 1000;
+
+    /**
+     * @param scheduler         延迟发送的定时器
+     * @param executor          延迟发送的线程
+     * @param messageRepository {@link Policy#ENQUEUE} 存消息的地方
+     */
+    public RateLimiter(ScheduledExecutorService scheduler, Executor executor, Supplier<MessageRepository> messageRepository) {
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.messageRepository = messageRepository;
+        for (int i = 0; i < bucketMaps.length; i++) {
+            bucketMaps[i] = new ConcurrentHashMap<>();
+        }
+    }
+
+    /**
+     * 设置限制, 对已经存在的桶也立即生效
+     *
+     * @param scope           范围
+     * @param eventsPerSecond 每秒事件数, 0=不限制
+     * @param bytesPerSecond  每秒字节数, 0=不限制
+     */
+    public void setLimit(Scope scope, double eventsPerSecond, long bytesPerSecond) {
+        Limit limit = eventsPerSecond > 0 || bytesPerSecond > 0 ? new Limit(eventsPerSecond, bytesPerSecond) : null;
+        limits[scope.ordinal()] = limit;
+        bucketMaps[scope.ordinal()].clear();
+    }
+
+    public Limit getLimit(Scope scope) {
+        return limits[scope.ordinal()];
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+    public int getMaxDelayedEvents() {
+        return maxDelayedEvents;
+    }
+
+    /**
+     * @param maxDelayedEvents {@link Policy#DELAY} 时每个链接最多延迟多少个事件, 超过的丢弃
+     */
+    public void setMaxDelayedEvents(int maxDelayedEvents) {
+        this.maxDelayedEvents = maxDelayedEvents;
+    }
+
+    /**
+     * 限流后发送
+     *
+     * @param emitter 链接
+     * @param frame   事件帧
+     * @param sender  真正的发送
+     * @return true=已发送或已延迟/已存储. false=发送失败或被丢弃
+     */
+    public boolean send(SseEmitter<?> emitter, SseFrame frame, BiPredicate<SseEmitter<?>, SseFrame> sender) {
+        // 前面还有延迟的, 排在后面, 保证顺序
+        Delayed delayed = delayedMap.get(emitter.getId());
+        if (delayed != null) {
+            int offer = delayed.offer(frame, maxDelayedEvents);
+            if (offer != CLOSED) {
+                return offer == OFFERED;
+            }
+            delayedMap.remove(emitter.getId(), delayed);
+        }
+        long waitNanos = tryAcquire(emitter);
+        if (waitNanos <= 0L) {
+            return sendNow(emitter, frame, sender);
+        }
+        switch (policy) {
+            case DROP: {
+                emitter.incrementRateLimitDropCount();
+                return false;
+            }
+            case ENQUEUE: {
+                if (enqueue(emitter, frame)) {
+                    emitter.incrementRateLimitEnqueueCount();
+                    return true;
+                }
+                emitter.incrementRateLimitDropCount();
+                return false;
+            }
+            case DELAY:
+            default: {
+                return delay(emitter, frame, sender, waitNanos);
+            }
+        }
+    }
+
+    private boolean sendNow(SseEmitter<?> emitter, SseFrame frame, BiPredicate<SseEmitter<?>, SseFrame> sender) {
+        boolean send = sender.test(emitter, frame);
+        if (send) {
+            consumeBytes(emitter, frame);
+        }
+        return send;
+    }
+
+    /**
+     * 检查所有范围, 都够了才一起扣减事件令牌
+     *
+     * @return 0=通过. 大于0=还要等多久(纳秒)
+     */
+    protected long tryAcquire(SseEmitter<?> emitter) {
+        long waitNanos = 0L;
+        Bucket[] buckets = null;
+        for (Scope scope : Scope.values()) {
+            Bucket bucket = bucket(scope, emitter);
+            if (bucket == null) {
+                continue;
+            }
+            waitNanos = Math.max(waitNanos, bucket.waitNanos());
+            if (buckets == null) {
+                buckets = new Bucket[limits.length];
+            }
+            buckets[scope.ordinal()] = bucket;
+        }
+        if (waitNanos > 0L || buckets == null) {
+            return waitNanos;
+        }
+        for (Bucket bucket : buckets) {
+            if (bucket != null) {
+                bucket.consumeEvent();
+            }
+        }
+        return 0L;
+    }
+
+    protected void consumeBytes(SseEmitter<?> emitter, SseFrame frame) {
+        int bytes = frame.getEncodedLength();
+        if (bytes < 0) {
+            // 还没序列化, 估算: data + event:/data: 这些帧头, 不能按0算
+            Object data = frame.getData();
+            String name = frame.getName();
+            bytes = data instanceof CharSequence ? ((CharSequence) data).length()
+                    : data instanceof byte[] ? ((byte[]) data).length
+                    : data != null ? objectBytesEstimate : 0;
+            bytes += 8 + (name != null ? name.length() + 7 : 0);
+        }
+        for (Scope scope : Scope.values()) {
+            Bucket bucket = bucket(scope, emitter);
+            if (bucket != null) {
+                bucket.consumeBytes(bytes);
+            }
+        }
+    }
+
+    private Bucket bucket(Scope scope, SseEmitter<?> emitter) {
+        Limit limit = limits[scope.ordinal()];
+        if (limit == null) {
+            return null;
+        }
+        Object key;
+        switch (scope) {
+            case TENANT: {
+                key = emitter.getTenantId();
+                break;
+            }
+            case USER: {
+                key = emitter.getUserId();
+                break;
+            }
+            case CONNECTION: {
+                key = emitter.getId();
+                break;
+            }
+            case SERVICE:
+            default: {
+                key = SERVICE_KEY;
+                break;
+            }
+        }
+        if (key == null) {
+            return null;
+        }
+        return bucketMaps[scope.ordinal()].computeIfAbsent(key, k -> new Bucket(limit));
+    }
+
+    private boolean delay(SseEmitter<?> emitter, SseFrame frame, BiPredicate<SseEmitter<?>, SseFrame> sender, long waitNanos) {
+        Delayed delayed = delayedMap.computeIfAbsent(emitter.getId(), k -> new Delayed(emitter, sender));
+        int offer = delayed.offer(frame, maxDelayedEvents);
+        if (offer == CLOSED) {
+            // 刚好发完关闭了, 重新来
+            delayedMap.remove(emitter.getId(), delayed);
+            return send(emitter, frame, sender);
+        }
+        return offer == OFFERED;
+    }
+
+    private boolean enqueue(SseEmitter<?> emitter, SseFrame frame) {
+        MessageRepository repository;
+        try {
+            repository = messageRepository.get();
+        } catch (Exception e) {
+            repository = null;
+        }
+        if (repository == null) {
+            return false;
+        }
+        AtLeastOnceMessage message;
+        String accessToken = emitter.getAccessToken();
+        Serializable userId = emitter.getUserId();
+        if (accessToken != null) {
+            message = new AtLeastOnceMessage(frame.getName(), frame.getData(), Message.FILTER_ACCESS_TOKEN);
+            message.setAccessTokenList(Collections.singletonList(accessToken));
+        } else if (userId != null) {
+            message = new AtLeastOnceMessage(frame.getName(), frame.getData(), Message.FILTER_USER_ID);
+            message.setUserIdList(Collections.singletonList(userId));
+        } else {
+            return false;
+        }
+        message.setId(Message.newId("limit", emitter.getServerId()));
+        try {
+            repository.insert(message);
+            return true;
+        } catch (Exception e) {
+            if (log.isWarnEnabled()) {
+                log.warn("rate limit enqueue error {}, emitter = {}", e.toString(), emitter, e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 删掉已经满了(空闲)的桶, 定时调用
+     */
+    public void evictIdle() {
+        for (Map<Object, Bucket> bucketMap : bucketMaps) {
+            bucketMap.values().removeIf(Bucket::isFull);
+        }
+    }
+
+    /**
+     * 链接断开后清理
+     */
+    public void remove(SseEmitter<?> emitter) {
+        bucketMaps[Scope.CONNECTION.ordinal()].remove(emitter.getId());
+        Delayed delayed = delayedMap.remove(emitter.getId());
+        if (delayed != null) {
+            delayed.close();
+        }
+    }
+
+    /**
+     * @return 所有链接延迟中的事件数
+     */
+    public int getDelayedSize() {
+        int size = 0;
+        for (Delayed delayed : delayedMap.values()) {
+            size += delayed.size();
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimiter{" +
+                "policy=" + policy +
+                ", delayed=" + getDelayedSize() +
+                '}';
+    }
+
+    /**
+     * 限流范围
+     */
+    public enum Scope {
+        /**
+         * 整个服务共用一个桶
+         */
+        SERVICE,
+        /**
+         * 每个租户一个桶
+         */
+        TENANT,
+        /**
+         * 每个用户一个桶
+         */
+        USER,
+        /**
+         * 每个链接一个桶
+         */
+        CONNECTION
+    }
+
+    /**
+     * 超过限制怎么办
+     */
+    public enum Policy {
+        /**
+         * 延迟到有令牌了再发, 同一个链接的顺序不变
+         */
+        DELAY,
+        /**
+         * 丢弃
+         */
+        DROP,
+        /**
+         * 存到 MessageRepository, 等前端重连后补发
+         */
+        ENQUEUE
+    }
+
+    /**
+     * 每秒事件数和字节数
+     */
+    public static class Limit {
+        private final double eventsPerSecond;
+        private final long bytesPerSecond;
+
+        public Limit(double eventsPerSecond, long bytesPerSecond) {
+            this.eventsPerSecond = eventsPerSecond;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        public double getEventsPerSecond() {
+            return eventsPerSecond;
+        }
+
+        public long getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return "Limit{" +
+                    "eventsPerSecond=" + eventsPerSecond +
+                    ", bytesPerSecond=" + bytesPerSecond +
+                    '}';
+        }
+    }
+
+    /**
+     * 令牌桶, 容量是一秒的量
+     */
+    private static class Bucket {
+        private final double eventsPerNano;
+        private final double bytesPerNano;
+        private final double eventCapacity;
+        private final double byteCapacity;
+        private double events;
+        private double bytes;
+        private long lastRefill = System.nanoTime();
+
+        Bucket(Limit limit) {
+            this.eventsPerNano = limit.eventsPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.bytesPerNano = (double) limit.bytesPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.eventCapacity = Math.max(limit.eventsPerSecond, 1D);
+            this.byteCapacity = Math.max(limit.bytesPerSecond, 1D);
+            this.events = eventCapacity;
+            this.bytes = byteCapacity;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            long elapsed = now - lastRefill;
+            if (elapsed > 0) {
+                lastRefill = now;
+                events = Math.min(eventCapacity, events + elapsed * eventsPerNano);
+                bytes = Math.min(byteCapacity, bytes + elapsed * bytesPerNano);
+            }
+        }
+
+        synchronized long waitNanos() {
+            refill();
+            long wait = 0L;
+            if (eventsPerNano > 0 && events < 1D) {
+                wait = (long) Math.ceil((1D - events) / eventsPerNano);
+            }
+            // 字节允许欠, 还清了才能发
+            if (bytesPerNano > 0 && bytes <= 0D) {
+                wait = Math.max(wait, (long) Math.ceil((1D - bytes) / bytesPerNano));
+            }
+            return wait;
+        }
+
+        synchronized void consumeEvent() {
+            if (eventsPerNano > 0) {
+                events -= 1D;
+            }
+        }
+
+        synchronized void consumeBytes(int n) {
+            if (bytesPerNano > 0) {
+                refill();
+                bytes -= n;
+            }
+        }
+
+        synchronized boolean isFull() {
+            refill();
+            return (eventsPerNano <= 0 || events >= eventCapacity) && (bytesPerNano <= 0 || bytes >= byteCapacity);
+        }
+    }
+
+    /**
+     * 一个链接延迟中的事件, 按顺序发
+     */
+    private class Delayed implements Runnable {
+        private final SseEmitter<?> emitter;
+        private final BiPredicate<SseEmitter<?>, SseFrame> sender;
+        private final ArrayDeque<SseFrame> frames = new ArrayDeque<>();
+        private boolean scheduled;
+        private boolean closed;
+
+        Delayed(SseEmitter<?> emitter, BiPredicate<SseEmitter<?>, SseFrame> sender) {
+            this.emitter = emitter;
+            this.sender = sender;
+        }
+
+        /**
+         * @return {@link #OFFERED}=已延迟, {@link #DROPPED}=延迟队列满了被丢弃, {@link #CLOSED}=已关闭, 要重新走限流
+         */
+        int offer(SseFrame frame, int maxDelayedEvents) {
+            boolean schedule;
+            synchronized (this) {
+                if (closed) {
+                    return CLOSED;
+                }
+                if (frames.size() >= maxDelayedEvents) {
+                    emitter.incrementRateLimitDropCount();
+                    return DROPPED;
+                }
+                frames.addLast(frame);
+                emitter.incrementRateLimitDelayCount();
+                schedule = !scheduled;
+                scheduled = true;
+            }
+            if (schedule) {
+                schedule(tryAcquireWait());
+            }
+            return OFFERED;
+        }
+
+        private long tryAcquireWait() {
+            // 只看还要等多久, 不扣令牌
+            long waitNanos = 0L;
+            for (Scope scope : Scope.values()) {
+                Bucket bucket = bucket(scope, emitter);
+                if (bucket != null) {
+                    waitNanos = Math.max(waitNanos, bucket.waitNanos());
+                }
+            }
+            return waitNanos;
+        }
+
+        private void schedule(long waitNanos) {
+            try {
+                scheduler.schedule(() -> executor.execute(this), Math.max(waitNanos, 1000000L), TimeUnit.NANOSECONDS);
+            } catch (RuntimeException e) {
+                // 定时器已关闭
+                close();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                if (!emitter.isActive()) {
+                    close();
+                    delayedMap.remove(emitter.getId(), this);
+                    return;
+                }
+                SseFrame frame;
+                synchronized (this) {
+                    frame = frames.peekFirst();
+                    if (frame == null) {
+                        closed = true;
+                        scheduled = false;
+                        delayedMap.remove(emitter.getId(), this);
+                        return;
+                    }
+                }
+                long waitNanos = tryAcquire(emitter);
+                if (waitNanos > 0L) {
+                    schedule(waitNanos);
+                    return;
+                }
+                synchronized (this) {
+                    frames.pollFirst();
+                }
+                try {
+                    sendNow(emitter, frame, sender);
+                } catch (Exception e) {
+                    if (log.isWarnEnabled()) {
+                        log.warn("rate limit delayed send error {}, emitter = {}", e.toString(), emitter, e);
+                    }
+                }
+            }
+        }
+
+        void close() {
+            synchronized (this) {
+                closed = true;
+                frames.clear();
+            }
+        }
+
+        synchronized int size() {
+            return frames.size();
+        }
+    }
+}
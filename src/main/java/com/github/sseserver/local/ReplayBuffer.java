@@ -0,0 +1,221 @@
+package com.github.sseserver.local;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 断线重连的重放缓冲 (Last-Event-ID)
+ * 1. 按发送的目标 (所有人/accessToken/用户/租户/频道) 各保留最近的一小段事件, 每段有数量上限和过期时间.
+ * 2. 事件ID全局递增, 所有链接看到的同一个事件ID相同. 起始值是启动时的毫秒数x1000, 重启后也比之前的大.
+ * 3. 前端带着 Last-Event-ID 重连时, 只补发比它大的, 不用走 {@link com.github.sseserver.qos.AtLeastOnceSendService} 的仓库扫描.
+ * 4. 只在本机内存里, 重连到别的机器补不了, 要保证送达用QoS.
+ *
+ * @see LocalConnectionServiceImpl#setReplayCapacity(int)
+ */
+public class ReplayBuffer {
+    private static final String ALL_KEY = "*";
+
+    private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis() * 1000L);
+    private final Map<String, Ring> ringMap = new ConcurrentHashMap<>();
+    private final int capacity;
+    private final long maxAgeNanos;
+
+    /**
+     * @param capacity 每个目标最多保留多少个事件
+     * @param maxAgeMs 事件最多保留多久(毫秒)
+     */
+    public ReplayBuffer(int capacity, long maxAgeMs) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be greater than 0: " + capacity);
+        }
+        this.capacity = capacity;
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMs);
+    }
+
+    /**
+     * @return 下一个事件ID
+     */
+    public long nextEventId() {
+        return sequence.incrementAndGet();
+    }
+
+    /**
+     * 记录发给这些目标的事件
+     *
+     * @param frame     带事件ID {@link SseFrame#getEventId()} 的帧
+     * @param index     目标的类型, null=所有人
+     * @param keys      目标, index是null时不用
+     * @param listening true=只发给在监听这个事件的链接
+     */
+    public void record(SseFrame frame, ConnectionRegistry.Index index, Collection<?> keys, boolean listening) {
+        if (frame.getEventId() == SseEmitter.SseFrameEvent.NO_ID) {
+            return;
+        }
+        Entry entry = new Entry(frame, listening, System.nanoTime());
+        if (index == null) {
+            add(ALL_KEY, entry);
+        } else if (keys != null) {
+            for (Object key : keys) {
+                if (key != null) {
+                    add(ringKey(index, key), entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * 这个链接错过的事件, 按事件ID排序
+     *
+     * @param emitter     重连的链接
+     * @param lastEventId 前端收到的最后一个事件ID
+     * @return 要补发的帧
+     */
+    public List<SseFrame> missed(SseEmitter<?> emitter, long lastEventId) {
+        List<Entry> entries = new ArrayList<>();
+        long expire = System.nanoTime() - maxAgeNanos;
+        collect(ALL_KEY, lastEventId, expire, entries);
+        collect(ConnectionRegistry.Index.ACCESS_TOKEN, emitter.getAccessToken(), lastEventId, expire, entries);
+        collect(ConnectionRegistry.Index.USER_ID, emitter.getUserId(), lastEventId, expire, entries);
+        collect(ConnectionRegistry.Index.TENANT_ID, emitter.getTenantId(), lastEventId, expire, entries);
+        collect(ConnectionRegistry.Index.CHANNEL, emitter.getChannel(), lastEventId, expire, entries);
+        if (entries.isEmpty()) {
+            return new ArrayList<>(0);
+        }
+        entries.sort((o1, o2) -> Long.compare(o1.frame.getEventId(), o2.frame.getEventId()));
+        Set<String> listeners = emitter.getListeners();
+        List<SseFrame> frames = new ArrayList<>(entries.size());
+        long prev = SseEmitter.SseFrameEvent.NO_ID;
+        for (Entry entry : entries) {
+            long eventId = entry.frame.getEventId();
+            // 同一个事件可能同时发给了用户和频道
+            if (eventId == prev) {
+                continue;
+            }
+            prev = eventId;
+            if (entry.listening && (listeners == null || !listeners.contains(entry.frame.getName()))) {
+                continue;
+            }
+            frames.add(entry.frame);
+        }
+        return frames;
+    }
+
+    private void collect(ConnectionRegistry.Index index, Object key, long lastEventId, long expire, List<Entry> entries) {
+        if (key != null) {
+            collect(ringKey(index, key), lastEventId, expire, entries);
+        }
+    }
+
+    private void collect(String ringKey, long lastEventId, long expire, List<Entry> entries) {
+        Ring ring = ringMap.get(ringKey);
+        if (ring != null) {
+            ring.collect(lastEventId, expire, entries);
+        }
+    }
+
+    /**
+     * 删掉过期的事件和空的目标, 定时调用
+     */
+    public void evictExpired() {
+        long expire = System.nanoTime() - maxAgeNanos;
+        for (String key : ringMap.keySet()) {
+            ringMap.computeIfPresent(key, (k, ring) -> ring.evict(expire) ? null : ring);
+        }
+    }
+
+    /**
+     * 和 {@link #evictExpired()} 删空的目标互斥, 不会加到已删掉的里
+     */
+    private void add(String key, Entry entry) {
+        ringMap.compute(key, (k, ring) -> {
+            if (ring == null) {
+                ring = new Ring();
+            }
+            ring.add(entry);
+            return ring;
+        });
+    }
+
+    private static String ringKey(ConnectionRegistry.Index index, Object key) {
+        return index.name() + ":" + key;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getMaxAge(TimeUnit unit) {
+        return unit.convert(maxAgeNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return 有缓冲的目标数
+     */
+    public int getRingCount() {
+        return ringMap.size();
+    }
+
+    @Override
+    public String toString() {
+        return "ReplayBuffer{" +
+                "rings=" + ringMap.size() +
+                ", capacity=" + capacity +
+                ", sequence=" + sequence +
+                '}';
+    }
+
+    private static class Entry {
+        private final SseFrame frame;
+        private final boolean listening;
+        private final long time;
+
+        private Entry(SseFrame frame, boolean listening, long time) {
+            this.frame = frame;
+            this.listening = listening;
+            this.time = time;
+        }
+    }
+
+    /**
+     * 一个目标最近的事件, 满了丢最旧的
+     */
+    private class Ring {
+        private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+
+        synchronized void add(Entry entry) {
+            if (entries.size() >= capacity) {
+                entries.pollFirst();
+            }
+            entries.addLast(entry);
+        }
+
+        /**
+         * 并发发送时记录的顺序和事件ID的顺序可能不一致, 所以都看一遍
+         */
+        synchronized void collect(long lastEventId, long expire, List<Entry> result) {
+            for (Entry entry : entries) {
+                if (entry.frame.getEventId() > lastEventId && entry.time - expire >= 0) {
+                    result.add(entry);
+                }
+            }
+        }
+
+        /**
+         * @return true=已经空了
+         */
+        synchronized boolean evict(long expire) {
+            Entry first;
+            while ((first = entries.peekFirst()) != null && first.time - expire < 0) {
+                entries.pollFirst();
+            }
+            return entries.isEmpty();
+        }
+    }
+}
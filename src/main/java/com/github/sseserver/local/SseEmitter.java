@@ -1,10 +1,17 @@
 package com.github.sseserver.local;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.github.sseserver.AccessToken;
 import com.github.sseserver.AccessUser;
+import com.github.sseserver.SendService;
 import com.github.sseserver.TenantAccessUser;
 import com.github.sseserver.qos.MessageRepository;
 import com.github.sseserver.remote.ConnectionDTO;
+import com.github.sseserver.util.HashedWheelTimer;
+import com.github.sseserver.util.JsonMergePatch;
+import com.github.sseserver.util.RollingBloomFilter;
 import com.github.sseserver.util.SnowflakeIdWorker;
 import com.github.sseserver.util.WebUtil;
 import org.slf4j.Logger;
@@ -14,15 +21,18 @@ import org.springframework.http.MediaType;
 import org.springframework.http.server.ServerHttpResponse;
 
 import javax.servlet.http.Cookie;
+import java.io.Flushable;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.nio.channels.ClosedChannelException;
 import java.nio.charset.Charset;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -35,10 +45,25 @@ import java.util.stream.Collectors;
 public class SseEmitter<ACCESS_USER> extends org.springframework.web.servlet.mvc.method.annotation.SseEmitter implements MessageRepository.Query {
     private final static Logger log = LoggerFactory.getLogger(SseEmitter.class);
     private static final MediaType TEXT_PLAIN = new MediaType("text", "plain", Charset.forName("UTF-8"));
+    private static final AtomicLongFieldUpdater<SseEmitter> RATE_LIMIT_DELAY_COUNT = AtomicLongFieldUpdater.newUpdater(SseEmitter.class, "rateLimitDelayCount");
+    private static final AtomicLongFieldUpdater<SseEmitter> RATE_LIMIT_DROP_COUNT = AtomicLongFieldUpdater.newUpdater(SseEmitter.class, "rateLimitDropCount");
+    private static final AtomicLongFieldUpdater<SseEmitter> RATE_LIMIT_ENQUEUE_COUNT = AtomicLongFieldUpdater.newUpdater(SseEmitter.class, "rateLimitEnqueueCount");
+    /**
+     * {@link #distinctMessageList(List, Function, String)} 每个消息类型至少记住最近多少个ID
+     */
+    public static int distinctCapacity = Integer.getInteger("sseserver.SseEmitter.distinctCapacity", 1024);
+    /**
+     * {@link #distinctMessageList(List, Function, String)} 的误判率
+     */
+    public static double distinctFpp = Double.parseDouble(System.getProperty("sseserver.SseEmitter.distinctFpp", "0.001"));
 
     private final long id = SnowflakeIdWorker.INSTANCE.nextId();
     private final ACCESS_USER accessUser;
     private final AtomicBoolean disconnect = new AtomicBoolean();
+    /**
+     * 心跳已提交, 还没写完
+     */
+    private final AtomicBoolean heartbeatPending = new AtomicBoolean();
     private final Queue<SseEventBuilder> earlySendQueue = new LinkedList<>();
     private final List<Consumer<SseEmitter<ACCESS_USER>>> connectListeners = new ArrayList<>(2);
     private final List<Consumer<SseEmitter<ACCESS_USER>>> disconnectListeners = new ArrayList<>(2);
@@ -66,10 +91,32 @@ public class SseEmitter<ACCESS_USER> extends org.springframework.web.servlet.mvc
      * 前端已正在监听的钩子, 值是 {@link SseEventBuilder#name(String)}
      */
     private Set<String> listeners;
-    private ScheduledFuture<?> timeoutCheckFuture;
+    private HashedWheelTimer.Timeout timeoutCheckTimeout;
+    /**
+     * 出站队列, null=同步写
+     */
+    private OutboundQueue outboundQueue;
     private HttpHeaders responseHeaders;
     private IOException sendError;
     private int defaultId;
+    /**
+     * 开启了重放 {@link ReplayBuffer}, 只有带共用事件ID的帧写id行, 前端的 lastEventId 不会被链接自己的ID覆盖
+     */
+    private boolean replay;
+    /**
+     * 前端重连时带的 Last-Event-ID, null=首次链接
+     */
+    private Long lastEventId;
+    /**
+     * 限流 {@link RateLimiter} 延迟/丢弃/存储的事件数量
+     */
+    private volatile long rateLimitDelayCount;
+    private volatile long rateLimitDropCount;
+    private volatile long rateLimitEnqueueCount;
+    /**
+     * 增量事件 key = 前端已有的文档, 用到才创建
+     */
+    private Map<String, DeltaState> deltaMap;
 
     /**
      * timeout = 0是永不过期
@@ -126,6 +173,25 @@ public class SseEmitter<ACCESS_USER> extends org.springframework.web.servlet.mvc
         this.serverId = serverId;
     }
 
+    public boolean isReplay() {
+        return replay;
+    }
+
+    void setReplay(boolean replay) {
+        this.replay = replay;
+    }
+
+    /**
+     * @return 前端重连时带的 Last-Event-ID, null=首次链接或不是重放的ID
+     */
+    public Long getLastEventId() {
+        return lastEventId;
+    }
+
+    public void setLastEventId(Long lastEventId) {
+        this.lastEventId = lastEventId;
+    }
+
     public IOException getSendError() {
         return sendError;
     }
@@ -437,6 +503,11 @@ public class SseEmitter<ACCESS_USER> extends org.springframework.web.servlet.mvc
             }
         }
 
+        OutboundQueue outboundQueue = this.outboundQueue;
+        if (outboundQueue != null) {
+            outboundQueue.writeableReady();
+        }
+
         for (Consumer<SseEmitter<ACCESS_USER>> connectListener : new ArrayList<>(connectListeners)) {
             try {
                 connectListener.accept(this);
@@ -462,7 +533,7 @@ public class SseEmitter<ACCESS_USER> extends org.springframework.web.servlet.mvc
     }
 
     /**
-     * 发送消息
+     * 发送消息. 不关心发送结果时用 {@link #send(SseFrame)}, 不创建Future
      *
      * @param name
      * @param data
@@ -472,7 +543,43 @@ public class SseEmitter<ACCESS_USER> extends org.springframework.web.servlet.mvc
      */
     public SseEventBuilderFuture<SseEmitter<ACCESS_USER>> send(String name, Object data) throws IOException {
         SseEventBuilderFuture event = event();
-        send(event.defaultId(++defaultId).name(name).data(data));
+        send(event.defaultId(nextDefaultId()).name(name).data(data));
+        return event;
+    }
+
+    /**
+     * 发送共享的事件帧, 事件ID用这个链接自己的
+     * 群发时同一个帧只序列化一次 {@link SseFrame}
+     *
+     * @param frame 事件帧
+     * @return true=已写出或已进入出站队列. false=被出站队列丢弃
+     * @throws IOException 如果当前处于写就绪 {@link #isWriteable()}, 异常在当前线程会生效.
+     */
+    public boolean send(SseFrame frame) throws IOException {
+        long id = frame.getEventId();
+        if (id == SseFrameEvent.NO_ID && !replay) {
+            id = ++defaultId;
+        }
+        return enqueueOrWrite(new SseFrameEvent(frame, id));
+    }
+
+    private int nextDefaultId() {
+        return replay ? -1 : ++defaultId;
+    }
+
+    /**
+     * 流式发送大事件, 内容按块读取后直接写给前端, 不在内存里拼成完整的内容
+     * 发完或失败后关闭数据源
+     *
+     * @param stream 事件内容
+     * @return 写完后的回调 (非阻塞写时是放进写缓冲后)
+     * @throws IOException 如果当前处于写就绪 {@link #isWriteable()}, 异常在当前线程会生效.
+     */
+    public SseStreamEvent<ACCESS_USER> send(SseStream stream) throws IOException {
+        SseStreamEvent<ACCESS_USER> event = new SseStreamEvent<>(stream, replay ? SseFrameEvent.NO_ID : ++defaultId);
+        if (!enqueueOrWrite(event)) {
+            stream.close();
+        }
         return event;
     }
 
@@ -485,44 +592,78 @@ public class SseEmitter<ACCESS_USER> extends org.springframework.web.servlet.mvc
      */
     @Override
     public void send(SseEventBuilder builder) throws IOException {
+        enqueueOrWrite(builder);
+    }
+
+    /**
+     * 有出站队列就入队, 否则同步写
+     *
+     * @param builder 事件
+     * @return true=已写出或已进入出站队列. false=被出站队列丢弃
+     * @throws IOException 同步写失败
+     */
+    boolean enqueueOrWrite(SseEventBuilder builder) throws IOException {
+        OutboundQueue outboundQueue = this.outboundQueue;
+        if (outboundQueue != null && isActive()) {
+            return outboundQueue.offer(builder);
+        }
+        write(builder);
+        return true;
+    }
+
+    /**
+     * 多段事件(event:/data: 文本 + 对象 + 结尾)包成一个批次交给handler, 整个事件只flush一次.
+     * 否则spring每段都会flush, 压缩时每段都是一次SYNC_FLUSH, 压缩后反而比不压缩大
+     *
+     * @param builder 事件
+     * @return 交给handler的事件
+     */
+    private static SseEventBuilder singleFlush(SseEventBuilder builder) {
+        if (builder instanceof SseEventBuilderFuture) {
+            return new SseBatchEvent(Collections.singletonList(builder));
+        }
+        return builder;
+    }
+
+    /**
+     * 同步写
+     *
+     * @param builder 事件
+     * @throws IOException 写失败
+     */
+    void write(SseEventBuilder builder) throws IOException {
         boolean active = isActive();
         if (!writeable && active) {
             earlySendQueue.add(builder);
             return;
         }
-        count++;
-        CompletableFuture<SseEmitter<ACCESS_USER>> future;
-        if (builder instanceof CompletableFuture) {
-            future = (CompletableFuture) builder;
-        } else {
-            future = null;
-        }
+        count += builder instanceof SseBatchEvent ? ((SseBatchEvent) builder).size() : 1;
         if (log.isDebugEnabled()) {
             if (builder instanceof SseEmitter.SseEventBuilderFuture) {
                 log.debug("sse connection send {} : {}, id = {}, name = {}, active = {}",
                         count, this, ((SseEventBuilderFuture) builder).id, ((SseEventBuilderFuture) builder).name, active);
+            } else if (builder instanceof SseFrameEvent) {
+                log.debug("sse connection send {} : {}, id = {}, name = {}, active = {}",
+                        count, this, ((SseFrameEvent) builder).getId(), ((SseFrameEvent) builder).getName(), active);
+            } else if (builder instanceof SseBatchEvent) {
+                log.debug("sse connection send {} : {}, batch = {}, active = {}",
+                        count, this, ((SseBatchEvent) builder).size(), active);
             } else {
                 log.debug("sse connection send {} : {}, active = {}", count, this, active);
             }
         }
         if (sendError != null) {
-            if (future != null) {
-                future.completeExceptionally(sendError);
-            }
+            completeExceptionally(builder, sendError);
             throw sendError;
         }
         if (!active) {
             sendError = new ClosedChannelException();
-            if (future != null) {
-                future.completeExceptionally(sendError);
-            }
+            completeExceptionally(builder, sendError);
             throw sendError;
         }
         try {
-            super.send(builder);
-            if (future != null) {
-                future.complete(this);
-            }
+            super.send(singleFlush(builder));
+            complete(builder);
         } catch (IllegalStateException e) {
             /* tomcat recycle bug.  socketWrapper is null. is read op cancel then recycle()
              * Http11OutputBuffer: 254行，对端网络关闭， 但没触发onError或onTimeout回调， 这时不知道是否不可用了
@@ -550,34 +691,168 @@ public class SseEmitter<ACCESS_USER> extends org.springframework.web.servlet.mvc
              */
             ClosedChannelException exception = new ClosedChannelException();
             this.sendError = exception;
-            if (future != null) {
-                future.completeExceptionally(sendError);
-            }
+            completeExceptionally(builder, sendError);
             disconnect();
             throw exception;
         } catch (IOException e) {
             this.sendError = e;
-            if (future != null) {
-                future.completeExceptionally(sendError);
-            }
+            completeExceptionally(builder, sendError);
             throw e;
         }
     }
 
+    private void complete(SseEventBuilder builder) {
+        if (builder instanceof SseBatchEvent) {
+            for (SseEventBuilder event : ((SseBatchEvent) builder).getEvents()) {
+                complete(event);
+            }
+        } else if (builder instanceof CompletableFuture) {
+            ((CompletableFuture) builder).complete(this);
+        }
+    }
+
+    private static void completeExceptionally(SseEventBuilder builder, Throwable error) {
+        if (builder instanceof SseBatchEvent) {
+            for (SseEventBuilder event : ((SseBatchEvent) builder).getEvents()) {
+                completeExceptionally(event, error);
+            }
+        } else if (builder instanceof CompletableFuture) {
+            ((CompletableFuture<?>) builder).completeExceptionally(error);
+        }
+    }
+
+    /**
+     * 发送心跳 (SSE注释帧, 前端EventSource会忽略)
+     * 用于尽早发现对端已经断开, 但容器没有触发onError或onTimeout回调的链接. 写失败会断开链接
+     *
+     * @return true=写成功或尚未写就绪. false=链接不可用, 已断开
+     */
+    public boolean heartbeat() {
+        if (isDisconnect()) {
+            return false;
+        }
+        if (!writeable) {
+            return true;
+        }
+        if (isActive()) {
+            try {
+                super.send(SseFrameEvent.HEARTBEAT);
+                return true;
+            } catch (IOException | IllegalStateException e) {
+                this.sendError = e instanceof IOException ? (IOException) e : new ClosedChannelException();
+            }
+        }
+        disconnect(false);
+        return false;
+    }
+
+    /**
+     * 在写线程里发送心跳, 不阻塞调用方.
+     * 对端不读了阻塞写时, 上一次心跳没写完的直接跳过, 一个卡住的链接最多占一个写线程, 等写超时失败后断开
+     *
+     * @param writer 写线程
+     * @return true=已提交或上一次还没写完. false=链接已断开
+     */
+    public boolean heartbeat(Executor writer) {
+        if (isDisconnect()) {
+            return false;
+        }
+        if (!heartbeatPending.compareAndSet(false, true)) {
+            return true;
+        }
+        try {
+            writer.execute(() -> {
+                try {
+                    heartbeat();
+                } finally {
+                    heartbeatPending.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            // 写线程已关闭, 下次再发
+            heartbeatPending.set(false);
+        }
+        return true;
+    }
+
+    /**
+     * @return true=心跳已提交, 还没写完
+     */
+    public boolean isHeartbeatPending() {
+        return heartbeatPending.get();
+    }
+
     public boolean isDisconnect() {
         return disconnect.get();
     }
 
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    void setOutboundQueue(OutboundQueue outboundQueue) {
+        this.outboundQueue = outboundQueue;
+    }
+
+    /**
+     * @return 出站队列里等待写的事件数量
+     */
+    public int getOutboundQueueSize() {
+        OutboundQueue outboundQueue = this.outboundQueue;
+        return outboundQueue != null ? outboundQueue.size() : 0;
+    }
+
+    /**
+     * @return 出站队列满了丢弃的事件数量
+     */
+    public long getOutboundDropCount() {
+        OutboundQueue outboundQueue = this.outboundQueue;
+        return outboundQueue != null ? outboundQueue.getDropCount() : 0L;
+    }
+
+    /**
+     * @return 被限流延迟发送的事件数量
+     */
+    public long getRateLimitDelayCount() {
+        return rateLimitDelayCount;
+    }
+
+    /**
+     * @return 被限流丢弃的事件数量
+     */
+    public long getRateLimitDropCount() {
+        return rateLimitDropCount;
+    }
+
+    /**
+     * @return 被限流存到MessageRepository的事件数量
+     */
+    public long getRateLimitEnqueueCount() {
+        return rateLimitEnqueueCount;
+    }
+
+    void incrementRateLimitDelayCount() {
+        RATE_LIMIT_DELAY_COUNT.incrementAndGet(this);
+    }
+
+    void incrementRateLimitDropCount() {
+        RATE_LIMIT_DROP_COUNT.incrementAndGet(this);
+    }
+
+    void incrementRateLimitEnqueueCount() {
+        RATE_LIMIT_ENQUEUE_COUNT.incrementAndGet(this);
+    }
+
     private void cancelTimeoutTask() {
-        ScheduledFuture future = this.timeoutCheckFuture;
-        if (future != null) {
-            this.timeoutCheckFuture = null;
-            future.cancel(false);
+        HashedWheelTimer.Timeout timeout = this.timeoutCheckTimeout;
+        if (timeout != null) {
+            this.timeoutCheckTimeout = null;
+            timeout.cancel();
         }
     }
 
-    void setTimeoutCheckFuture(ScheduledFuture<?> timeoutCheckFuture) {
-        this.timeoutCheckFuture = timeoutCheckFuture;
+    void setTimeoutCheckTimeout(HashedWheelTimer.Timeout timeoutCheckTimeout) {
+        this.timeoutCheckTimeout = timeoutCheckTimeout;
     }
 
     void disconnectByTimeoutCheck() {
@@ -605,10 +880,14 @@ public class SseEmitter<ACCESS_USER> extends org.springframework.web.servlet.mvc
                 }
             }
             disconnectListeners.clear();
+            OutboundQueue outboundQueue = this.outboundQueue;
+            if (outboundQueue != null) {
+                outboundQueue.close();
+            }
             if (sendClose && isActive()) {
                 try {
                     SseEventBuilderFuture event = event();
-                    super.send(event.defaultId(++defaultId).name("connect-close").data("{\"connectionId\": \"" + id + "\"}"));
+                    super.send(singleFlush(event.defaultId(nextDefaultId()).name("connect-close").data("{\"connectionId\": \"" + id + "\"}")));
                 } catch (IOException | IllegalStateException ignored) {
                 }
             }
@@ -638,13 +917,120 @@ public class SseEmitter<ACCESS_USER> extends org.springframework.web.servlet.mvc
         return true;
     }
 
+    /**
+     * 增量事件: 和上次发给这个链接的同一个key的文档比较, 只发变化的部分 (JSON Merge Patch)
+     * 1. 第一次, 或者补丁表达不了 (比如新文档里有null值, 不是JSON对象) 时发全量.
+     * 2. 每次版本号加一, 补丁带着基于的版本号, sse.js发现对不上时会请求 {@link #newDeltaSnapshotData(String)} 重发全量.
+     * 3. 前端的监听收到的还是完整的文档, event.delta 里是版本信息.
+     *
+     * @param key      文档的key, 比如 dashboard
+     * @param document JsonNode, JSON字符串, 或者任意对象. 传JsonNode的话之后不能再修改
+     * @return 要发送的data, null=没有变化不用发
+     * @see JsonMergePatch
+     */
+    public String newDeltaData(String key, Object document) {
+        JsonNode target = JsonMergePatch.toJsonNode(document);
+        DeltaState state = getDeltaState(key);
+        synchronized (state) {
+            ObjectNode patch = state.document != null ? JsonMergePatch.diff(state.document, target) : null;
+            if (patch != null && patch.size() == 0) {
+                return null;
+            }
+            if (patch == null && target.equals(state.document)) {
+                return null;
+            }
+            int base = state.version;
+            state.document = target;
+            state.version++;
+            return patch != null ? deltaData(key, "patch", state.version, base, patch)
+                    : deltaData(key, "snapshot", state.version, base, target);
+        }
+    }
+
+    /**
+     * 前端的版本对不上时, 重发一次全量
+     *
+     * @param key 文档的key
+     * @return 要发送的data, null=没发过这个key
+     */
+    public String newDeltaSnapshotData(String key) {
+        DeltaState state = getDeltaState(key);
+        synchronized (state) {
+            if (state.document == null) {
+                return null;
+            }
+            int base = state.version;
+            state.version++;
+            return deltaData(key, "snapshot", state.version, base, state.document);
+        }
+    }
+
+    /**
+     * @param name     事件名
+     * @param key      文档的key
+     * @param document 新文档
+     * @return true=发了, false=没有变化或链接已断开
+     * @see #newDeltaData(String, Object)
+     */
+    public boolean sendDelta(String name, String key, Object document) throws IOException {
+        String data = newDeltaData(key, document);
+        return data != null && send(new SseFrame(name, data));
+    }
+
+    private synchronized DeltaState getDeltaState(String key) {
+        if (deltaMap == null) {
+            deltaMap = new HashMap<>(4);
+        }
+        return deltaMap.computeIfAbsent(key, k -> new DeltaState());
+    }
+
+    private static String deltaData(String key, String type, int version, int base, JsonNode data) {
+        ObjectNode envelope = JsonNodeFactory.instance.objectNode();
+        // sse.js按这个开头识别增量事件, 字段顺序不能变
+        ObjectNode delta = envelope.putObject("sseDelta");
+        delta.put("key", key);
+        delta.put("type", type);
+        delta.put("version", version);
+        delta.put("base", base);
+        envelope.set("data", data);
+        return JsonMergePatch.toJson(envelope);
+    }
+
+    private static class DeltaState {
+        private JsonNode document;
+        private int version;
+    }
+
+    /**
+     * 去掉这个链接已经收到过的消息, 用 {@link #distinctCapacity} 和 {@link #distinctFpp}
+     *
+     * @see #distinctMessageList(List, Function, String, int, double)
+     */
     public <MESSAGE, MESSAGE_ID> List<MESSAGE> distinctMessageList(List<MESSAGE> messageList,
                                                                    Function<MESSAGE, MESSAGE_ID> idGetter,
                                                                    String messageType) {
-        Set<MESSAGE_ID> distinctSet = (Set) getAttributeMap().computeIfAbsent(messageType, o -> new HashSet<>());
+        return distinctMessageList(messageList, idGetter, messageType, distinctCapacity, distinctFpp);
+    }
+
+    /**
+     * 去掉这个链接已经收到过的消息. 每个消息类型一个固定大小的滚动布隆过滤器, 长时间不断开的链接内存也不会一直涨.
+     * 至少记住最近capacity个ID, 没收到过的消息有fpp的概率被误判成收到过而去掉.
+     *
+     * @param messageList 消息
+     * @param idGetter    消息ID
+     * @param messageType 消息类型, 第一次调用时的capacity和fpp生效
+     * @param capacity    至少记住最近多少个ID
+     * @param fpp         误判率
+     * @return 没收到过的消息
+     * @see RollingBloomFilter
+     */
+    public <MESSAGE, MESSAGE_ID> List<MESSAGE> distinctMessageList(List<MESSAGE> messageList,
+                                                                   Function<MESSAGE, MESSAGE_ID> idGetter,
+                                                                   String messageType,
+                                                                   int capacity, double fpp) {
+        RollingBloomFilter filter = (RollingBloomFilter) getAttributeMap().computeIfAbsent(messageType, o -> new RollingBloomFilter(capacity, fpp));
         return messageList.stream()
-                .filter(e -> !distinctSet.contains(idGetter.apply(e)))
-                .peek(e -> distinctSet.add(idGetter.apply(e)))
+                .filter(e -> filter.add(idGetter.apply(e)))
                 .collect(Collectors.toList());
     }
 
@@ -708,11 +1094,27 @@ public class SseEmitter<ACCESS_USER> extends org.springframework.web.servlet.mvc
         private int defaultId;
         private String id;
         private String name;
+        private SendService.Priority priority;
         private StringBuilder sb;
 
         public SseEventBuilderFuture() {
         }
 
+        /**
+         * @param priority 出站优先级, null=按事件名决定
+         */
+        public SseEventBuilderFuture<ACCESS_USER> priority(SendService.Priority priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        public SendService.Priority getPriority() {
+            return priority;
+        }
+
+        /**
+         * @param defaultId 没有调用 {@link #id(String)} 时用的事件ID, 小于0=不写id行
+         */
         public SseEventBuilderFuture<ACCESS_USER> defaultId(int defaultId) {
             this.defaultId = defaultId;
             return this;
@@ -759,7 +1161,7 @@ public class SseEmitter<ACCESS_USER> extends org.springframework.web.servlet.mvc
 
         @Override
         public SseEventBuilderFuture<ACCESS_USER> data(Object object, MediaType mediaType) {
-            if (id == null) {
+            if (id == null && defaultId >= 0) {
                 id(Integer.toString(defaultId));
             }
             append("data:");
@@ -795,4 +1197,283 @@ public class SseEmitter<ACCESS_USER> extends org.springframework.web.servlet.mvc
         }
     }
 
+    /**
+     * 共享事件帧 + 链接自己的事件ID
+     * 由 {@link org.springframework.web.servlet.mvc.method.annotation.GithubSseEmitterReturnValueHandler} 直接写字节
+     *
+     * @see #send(SseFrame)
+     */
+    public static class SseFrameEvent implements SseEventBuilder {
+        /**
+         * 没有事件ID
+         */
+        public static final long NO_ID = -1L;
+        /**
+         * 心跳, 所有链接共用
+         */
+        static final SseFrameEvent HEARTBEAT = new SseFrameEvent(SseFrame.comment("heartbeat"), NO_ID);
+        private final SseFrame frame;
+        private final long id;
+        private Set<DataWithMediaType> dataToSend;
+
+        public SseFrameEvent(SseFrame frame, long id) {
+            this.frame = frame;
+            this.id = id;
+        }
+
+        public SseFrame getFrame() {
+            return frame;
+        }
+
+        /**
+         * @return 事件ID, {@link #NO_ID}=没有
+         */
+        public long getIdValue() {
+            return id;
+        }
+
+        public String getId() {
+            return id != NO_ID ? Long.toString(id) : null;
+        }
+
+        public String getName() {
+            return frame.getName();
+        }
+
+        public SendService.Priority getPriority() {
+            return frame.getPriority();
+        }
+
+        public void writeTo(OutputStream out, SseFrame.Encoder encoder) throws IOException {
+            frame.writeTo(out, id, encoder);
+        }
+
+        @Override
+        public SseEventBuilder comment(String comment) {
+            throw new UnsupportedOperationException("shared frame is immutable");
+        }
+
+        @Override
+        public SseEventBuilder name(String eventName) {
+            throw new UnsupportedOperationException("shared frame is immutable");
+        }
+
+        @Override
+        public SseEventBuilder id(String id) {
+            throw new UnsupportedOperationException("shared frame is immutable");
+        }
+
+        @Override
+        public SseEventBuilder reconnectTime(long reconnectTimeMillis) {
+            throw new UnsupportedOperationException("shared frame is immutable");
+        }
+
+        @Override
+        public SseEventBuilder data(Object object) {
+            throw new UnsupportedOperationException("shared frame is immutable");
+        }
+
+        @Override
+        public SseEventBuilder data(Object object, MediaType mediaType) {
+            throw new UnsupportedOperationException("shared frame is immutable");
+        }
+
+        @Override
+        public Set<DataWithMediaType> build() {
+            Set<DataWithMediaType> dataToSend = this.dataToSend;
+            if (dataToSend == null) {
+                this.dataToSend = dataToSend = Collections.singleton(new DataWithMediaType(this, null));
+            }
+            return dataToSend;
+        }
+
+        @Override
+        public String toString() {
+            return "SseFrameEvent{" +
+                    "id='" + id + '\'' +
+                    ", frame=" + frame +
+                    '}';
+        }
+    }
+
+    /**
+     * 流式的大事件 + 链接自己的事件ID
+     * 由 {@link org.springframework.web.servlet.mvc.method.annotation.GithubSseEmitterReturnValueHandler} 一块一块地写
+     *
+     * @see #send(SseStream)
+     */
+    public static class SseStreamEvent<ACCESS_USER> extends CompletableFuture<SseEmitter<ACCESS_USER>> implements SseEventBuilder {
+        private final SseStream stream;
+        private final long id;
+        private boolean idWritten;
+
+        public SseStreamEvent(SseStream stream, long id) {
+            this.stream = stream;
+            this.id = id;
+        }
+
+        public SseStream getStream() {
+            return stream;
+        }
+
+        public String getId() {
+            return id != SseFrameEvent.NO_ID ? Long.toString(id) : null;
+        }
+
+        public String getName() {
+            return stream.getName();
+        }
+
+        /**
+         * 下一块要写的字节, 第一块是 id: 行
+         *
+         * @return null=已经写完了
+         * @throws IOException 读数据源失败
+         */
+        public byte[] nextChunk() throws IOException {
+            if (!idWritten) {
+                idWritten = true;
+                if (id != SseFrameEvent.NO_ID) {
+                    return SseFrame.idLine(id);
+                }
+            }
+            return stream.nextChunk();
+        }
+
+        /**
+         * 一块一块地写, 每块flush一次
+         *
+         * @param out   输出流
+         * @param flush 每块写完后调用
+         * @throws IOException 读数据源或写失败, 会关闭数据源
+         */
+        public void writeTo(OutputStream out, Flushable flush) throws IOException {
+            try {
+                byte[] chunk;
+                while ((chunk = nextChunk()) != null) {
+                    out.write(chunk);
+                    flush.flush();
+                }
+            } finally {
+                stream.close();
+            }
+        }
+
+        /**
+         * 失败或被出站队列丢弃时, 关闭数据源
+         */
+        @Override
+        public boolean completeExceptionally(Throwable ex) {
+            stream.close();
+            return super.completeExceptionally(ex);
+        }
+
+        @Override
+        public SseEventBuilder comment(String comment) {
+            throw new UnsupportedOperationException("stream event is immutable");
+        }
+
+        @Override
+        public SseEventBuilder name(String eventName) {
+            throw new UnsupportedOperationException("stream event is immutable");
+        }
+
+        @Override
+        public SseEventBuilder id(String id) {
+            throw new UnsupportedOperationException("stream event is immutable");
+        }
+
+        @Override
+        public SseEventBuilder reconnectTime(long reconnectTimeMillis) {
+            throw new UnsupportedOperationException("stream event is immutable");
+        }
+
+        @Override
+        public SseEventBuilder data(Object object) {
+            throw new UnsupportedOperationException("stream event is immutable");
+        }
+
+        @Override
+        public SseEventBuilder data(Object object, MediaType mediaType) {
+            throw new UnsupportedOperationException("stream event is immutable");
+        }
+
+        @Override
+        public Set<DataWithMediaType> build() {
+            return Collections.singleton(new DataWithMediaType(this, null));
+        }
+
+        @Override
+        public String toString() {
+            return "SseStreamEvent{" +
+                    "id='" + id + '\'' +
+                    ", stream=" + stream +
+                    '}';
+        }
+    }
+
+    /**
+     * 合并写的多个事件, 一次写完再flush
+     * 由 {@link org.springframework.web.servlet.mvc.method.annotation.GithubSseEmitterReturnValueHandler} 展开
+     *
+     * @see OutboundQueue
+     */
+    public static class SseBatchEvent implements SseEventBuilder {
+        private final List<SseEventBuilder> events;
+
+        public SseBatchEvent(List<SseEventBuilder> events) {
+            this.events = events;
+        }
+
+        public List<SseEventBuilder> getEvents() {
+            return events;
+        }
+
+        public int size() {
+            return events.size();
+        }
+
+        @Override
+        public SseEventBuilder comment(String comment) {
+            throw new UnsupportedOperationException("batch event is immutable");
+        }
+
+        @Override
+        public SseEventBuilder name(String eventName) {
+            throw new UnsupportedOperationException("batch event is immutable");
+        }
+
+        @Override
+        public SseEventBuilder id(String id) {
+            throw new UnsupportedOperationException("batch event is immutable");
+        }
+
+        @Override
+        public SseEventBuilder reconnectTime(long reconnectTimeMillis) {
+            throw new UnsupportedOperationException("batch event is immutable");
+        }
+
+        @Override
+        public SseEventBuilder data(Object object) {
+            throw new UnsupportedOperationException("batch event is immutable");
+        }
+
+        @Override
+        public SseEventBuilder data(Object object, MediaType mediaType) {
+            throw new UnsupportedOperationException("batch event is immutable");
+        }
+
+        @Override
+        public Set<DataWithMediaType> build() {
+            return Collections.singleton(new DataWithMediaType(this, null));
+        }
+
+        @Override
+        public String toString() {
+            return "SseBatchEvent{" +
+                    "size=" + events.size() +
+                    '}';
+        }
+    }
+
 }
@@ -0,0 +1,250 @@
+package com.github.sseserver.local;
+
+import com.github.sseserver.SendService;
+import org.springframework.http.MediaType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 可共享的SSE事件帧 (event: + data:)
+ * 1. 群发时, 同一个事件只序列化一次, 序列化后的字节被所有链接共用.
+ * 2. 每个链接自己的事件ID (id:) 在写出时单独拼在前面, 不需要重新序列化.
+ * 3. 写ID和序列化用线程复用的缓冲, 发送路径上不创建字符串和Future.
+ *
+ * @see SseEmitter#send(SseFrame)
+ * @see org.springframework.web.servlet.mvc.method.annotation.GithubSseEmitterReturnValueHandler
+ */
+public class SseFrame {
+    private static final byte[] ID_PREFIX = "id:".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EVENT_PREFIX = "event:".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DATA_PREFIX = "data:".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] END = "\n\n".getBytes(StandardCharsets.UTF_8);
+    /**
+     * 超过这么大的序列化缓冲不复用, 避免线程一直占着大数组
+     */
+    private static final int MAX_RETAIN_BUFFER = 64 * 1024;
+    private static final ThreadLocal<byte[]> ID_BUFFER = ThreadLocal.withInitial(() -> new byte[24]);
+    private static final ThreadLocal<ByteArrayOutputStream> ENCODE_BUFFER = ThreadLocal.withInitial(() -> new ByteArrayOutputStream(256));
+
+    private final String name;
+    private final Object data;
+    private final MediaType mediaType;
+    /**
+     * 出站优先级, null=按事件名决定
+     */
+    private final SendService.Priority priority;
+    /**
+     * 所有链接共用的事件ID (重放用), {@link SseEmitter.SseFrameEvent#NO_ID}=用链接自己的
+     */
+    private final long eventId;
+    private volatile byte[] bytes;
+
+    public SseFrame(String name, Object data) {
+        this(name, data, null, null, SseEmitter.SseFrameEvent.NO_ID);
+    }
+
+    public SseFrame(String name, Object data, MediaType mediaType) {
+        this(name, data, mediaType, null, SseEmitter.SseFrameEvent.NO_ID);
+    }
+
+    public SseFrame(String name, Object data, MediaType mediaType, SendService.Priority priority) {
+        this(name, data, mediaType, priority, SseEmitter.SseFrameEvent.NO_ID);
+    }
+
+    public SseFrame(String name, Object data, MediaType mediaType, SendService.Priority priority, long eventId) {
+        this.name = name;
+        this.data = data;
+        this.mediaType = mediaType;
+        this.priority = priority;
+        this.eventId = eventId;
+    }
+
+    private SseFrame(byte[] bytes) {
+        this.name = null;
+        this.data = null;
+        this.mediaType = null;
+        this.priority = null;
+        this.eventId = SseEmitter.SseFrameEvent.NO_ID;
+        this.bytes = bytes;
+    }
+
+    /**
+     * 注释帧 (前端EventSource会忽略), 比如心跳
+     *
+     * @param comment 注释
+     * @return 已经序列化好的帧, 可以一直复用
+     */
+    public static SseFrame comment(String comment) {
+        return new SseFrame((":" + comment + "\n\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Object getData() {
+        return data;
+    }
+
+    public MediaType getMediaType() {
+        return mediaType;
+    }
+
+    /**
+     * @return 出站优先级, null=按事件名决定
+     */
+    public SendService.Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return 所有链接共用的事件ID, {@link SseEmitter.SseFrameEvent#NO_ID}=用链接自己的
+     * @see ReplayBuffer
+     */
+    public long getEventId() {
+        return eventId;
+    }
+
+    /**
+     * @return true=已经序列化过了
+     */
+    public boolean isEncoded() {
+        return bytes != null;
+    }
+
+    /**
+     * @return 序列化后的字节数, -1=还没序列化
+     */
+    public int getEncodedLength() {
+        byte[] bytes = this.bytes;
+        return bytes != null ? bytes.length : -1;
+    }
+
+    /**
+     * 序列化后的 event: 与 data: 部分, 只会序列化一次
+     *
+     * @param encoder 序列化data
+     * @return 序列化后的字节, 不要修改
+     * @throws IOException 序列化失败
+     */
+    public byte[] getBytes(Encoder encoder) throws IOException {
+        byte[] bytes = this.bytes;
+        if (bytes == null) {
+            synchronized (this) {
+                bytes = this.bytes;
+                if (bytes == null) {
+                    this.bytes = bytes = encode(encoder);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * 写出一个完整的事件
+     *
+     * @param out     输出流
+     * @param id      链接自己的事件ID
+     * @param encoder 序列化data
+     * @throws IOException 写失败
+     */
+    public void writeTo(OutputStream out, long id, Encoder encoder) throws IOException {
+        byte[] bytes = getBytes(encoder);
+        if (id >= 0) {
+            byte[] buffer = ID_BUFFER.get();
+            int offset = formatIdLine(id, buffer);
+            out.write(buffer, offset, buffer.length - offset);
+        }
+        out.write(bytes);
+    }
+
+    /**
+     * @param id 事件ID
+     * @return id:N\n
+     */
+    public static byte[] idLine(long id) {
+        byte[] buffer = ID_BUFFER.get();
+        int offset = formatIdLine(id, buffer);
+        return Arrays.copyOfRange(buffer, offset, buffer.length);
+    }
+
+    /**
+     * 从后往前写 id:N\n, 不创建字符串
+     *
+     * @return 开始的下标
+     */
+    private static int formatIdLine(long id, byte[] buffer) {
+        int pos = buffer.length;
+        buffer[--pos] = '\n';
+        do {
+            buffer[--pos] = (byte) ('0' + (id % 10));
+            id /= 10;
+        } while (id > 0);
+        for (int i = ID_PREFIX.length - 1; i >= 0; i--) {
+            buffer[--pos] = ID_PREFIX[i];
+        }
+        return pos;
+    }
+
+    public void writeTo(OutputStream out, String id, Encoder encoder) throws IOException {
+        byte[] bytes = getBytes(encoder);
+        if (id != null) {
+            out.write(ID_PREFIX);
+            out.write(id.getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+        }
+        out.write(bytes);
+    }
+
+    private byte[] encode(Encoder encoder) throws IOException {
+        ByteArrayOutputStream out = ENCODE_BUFFER.get();
+        boolean reuse = out.size() == 0;
+        if (!reuse) {
+            // 序列化data时又序列化了别的帧
+            out = new ByteArrayOutputStream(256);
+        }
+        try {
+            if (name != null) {
+                out.write(EVENT_PREFIX);
+                out.write(name.getBytes(StandardCharsets.UTF_8));
+                out.write('\n');
+            }
+            out.write(DATA_PREFIX);
+            if (data != null) {
+                encoder.encode(data, mediaType, out);
+            }
+            out.write(END);
+            return out.toByteArray();
+        } finally {
+            if (reuse) {
+                if (out.size() > MAX_RETAIN_BUFFER) {
+                    ENCODE_BUFFER.remove();
+                } else {
+                    out.reset();
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SseFrame{" +
+                "name='" + name + '\'' +
+                ", priority=" + priority +
+                ", eventId=" + eventId +
+                ", encoded=" + isEncoded() +
+                '}';
+    }
+
+    /**
+     * 把data序列化为字节 (由 HttpMessageConverter 实现)
+     */
+    @FunctionalInterface
+    public interface Encoder {
+        void encode(Object data, MediaType mediaType, OutputStream out) throws IOException;
+    }
+}
@@ -0,0 +1,307 @@
+package com.github.sseserver.local;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * 流式的大事件 (比如几MB的报表)
+ * 1. 内容按块读取, 每块编码为 data: 行后直接写给前端, 不在内存里拼成完整的字符串或字节数组.
+ * 2. 内容里的换行拆成多个 data: 行 (\r\n 按 \n 处理), 前端EventSource收到的还是一个完整的事件.
+ * 3. 只能发给一个链接, 发完或失败后自动关闭数据源.
+ *
+ * @see SseEmitter#send(SseStream)
+ */
+public class SseStream implements Closeable {
+    /**
+     * 每次读多少字节
+     */
+    public static final int DEFAULT_CHUNK_SIZE = Integer.getInteger("sseserver.SseStream.chunkSize", 8192);
+    private static final byte[] EVENT_PREFIX = "event:".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DATA_PREFIX = "data:".getBytes(StandardCharsets.UTF_8);
+
+    private final String name;
+    private final Source source;
+    private final int chunkSize;
+    private boolean started;
+    private boolean lineStart = true;
+    private boolean lastCr;
+    private boolean closed;
+    private long readBytes;
+
+    public SseStream(String name, Source source, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be greater than 0: " + chunkSize);
+        }
+        this.name = name;
+        this.source = Objects.requireNonNull(source);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param name 事件名, null=message
+     * @param in   内容, 发完后关闭
+     */
+    public static SseStream of(String name, InputStream in) {
+        return new SseStream(name, new InputStreamSource(in), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param name    事件名, null=message
+     * @param channel 阻塞模式的通道, 发完后关闭
+     */
+    public static SseStream of(String name, ReadableByteChannel channel) {
+        return new SseStream(name, new ChannelSource(channel), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param name   事件名, null=message
+     * @param chunks 每次返回一块 byte[] 或 CharSequence(UTF-8), 返回null表示结束
+     */
+    public static SseStream of(String name, Supplier<?> chunks) {
+        return new SseStream(name, new SupplierSource(chunks), DEFAULT_CHUNK_SIZE);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return 已经从数据源读了多少字节
+     */
+    public synchronized long getReadBytes() {
+        return readBytes;
+    }
+
+    /**
+     * 下一块编码好的字节, 第一块带 event: 行, 最后一块带结尾的空行
+     *
+     * @return null=已经写完了
+     * @throws IOException 读数据源失败, 此时事件只写了一半, 要断开链接
+     */
+    public synchronized byte[] nextChunk() throws IOException {
+        if (closed) {
+            return null;
+        }
+        byte[] buffer = new byte[chunkSize];
+        int len;
+        try {
+            len = source.read(buffer);
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+        ChunkBuilder out = new ChunkBuilder(len > 0 ? len + len / 8 + 16 : 32);
+        if (!started) {
+            started = true;
+            if (name != null) {
+                out.write(EVENT_PREFIX);
+                out.write(name.getBytes(StandardCharsets.UTF_8));
+                out.write('\n');
+            }
+        }
+        if (len > 0) {
+            readBytes += len;
+            encode(buffer, len, out);
+        } else if (len < 0) {
+            // 空内容或以换行结尾时, 补一个空的 data: 行, 前端收到的内容不变
+            if (lineStart) {
+                out.write(DATA_PREFIX);
+            }
+            out.write('\n');
+            out.write('\n');
+            close();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 按换行拆成 data: 行. 调用时持有锁
+     */
+    private void encode(byte[] buffer, int len, ChunkBuilder out) {
+        int start = 0;
+        for (int i = 0; i < len; i++) {
+            byte b = buffer[i];
+            if (b == '\n' && lastCr) {
+                // \r\n 已经在 \r 换过行了
+                lastCr = false;
+                start = i + 1;
+                continue;
+            }
+            lastCr = b == '\r';
+            if (b == '\n' || b == '\r') {
+                if (lineStart) {
+                    out.write(DATA_PREFIX);
+                }
+                out.write(buffer, start, i - start);
+                out.write('\n');
+                start = i + 1;
+                lineStart = true;
+            } else if (lineStart) {
+                out.write(DATA_PREFIX);
+                lineStart = false;
+            }
+        }
+        out.write(buffer, start, len - start);
+    }
+
+    /**
+     * 关闭数据源, 没发完的不再发
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            source.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public String toString() {
+        return "SseStream{" +
+                "name='" + name + '\'' +
+                ", readBytes=" + readBytes +
+                ", closed=" + closed +
+                '}';
+    }
+
+    /**
+     * 数据源
+     */
+    public interface Source extends Closeable {
+        /**
+         * @param buffer 读到这里
+         * @return 读了多少字节, -1=结束
+         * @throws IOException 读失败
+         */
+        int read(byte[] buffer) throws IOException;
+
+        @Override
+        default void close() throws IOException {
+        }
+    }
+
+    private static class InputStreamSource implements Source {
+        private final InputStream in;
+
+        private InputStreamSource(InputStream in) {
+            this.in = Objects.requireNonNull(in);
+        }
+
+        @Override
+        public int read(byte[] buffer) throws IOException {
+            int len;
+            do {
+                len = in.read(buffer, 0, buffer.length);
+            } while (len == 0);
+            return len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static class ChannelSource implements Source {
+        private final ReadableByteChannel channel;
+
+        private ChannelSource(ReadableByteChannel channel) {
+            this.channel = Objects.requireNonNull(channel);
+        }
+
+        @Override
+        public int read(byte[] buffer) throws IOException {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            int len;
+            do {
+                len = channel.read(byteBuffer);
+            } while (len == 0);
+            return len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * 一块可能比缓冲大, 大的部分留到下次读
+     */
+    private static class SupplierSource implements Source {
+        private final Supplier<?> chunks;
+        private byte[] remaining;
+        private int offset;
+
+        private SupplierSource(Supplier<?> chunks) {
+            this.chunks = Objects.requireNonNull(chunks);
+        }
+
+        @Override
+        public int read(byte[] buffer) {
+            while (remaining == null || offset >= remaining.length) {
+                Object chunk = chunks.get();
+                if (chunk == null) {
+                    remaining = null;
+                    return -1;
+                }
+                remaining = chunk instanceof byte[] ? (byte[]) chunk
+                        : chunk.toString().getBytes(StandardCharsets.UTF_8);
+                offset = 0;
+            }
+            int len = Math.min(buffer.length, remaining.length - offset);
+            System.arraycopy(remaining, offset, buffer, 0, len);
+            offset += len;
+            return len;
+        }
+    }
+
+    private static class ChunkBuilder {
+        private byte[] bytes;
+        private int count;
+
+        private ChunkBuilder(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        void write(int b) {
+            ensureCapacity(count + 1);
+            bytes[count++] = (byte) b;
+        }
+
+        void write(byte[] b) {
+            write(b, 0, b.length);
+        }
+
+        void write(byte[] b, int off, int len) {
+            ensureCapacity(count + len);
+            System.arraycopy(b, off, bytes, count, len);
+            count += len;
+        }
+
+        private void ensureCapacity(int minCapacity) {
+            if (minCapacity > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length << 1, minCapacity));
+            }
+        }
+
+        byte[] toByteArray() {
+            return count == bytes.length ? bytes : Arrays.copyOf(bytes, count);
+        }
+    }
+}
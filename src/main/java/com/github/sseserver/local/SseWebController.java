@@ -1,11 +1,13 @@
 package com.github.sseserver.local;
 
+import com.github.sseserver.AccessToken;
 import com.github.sseserver.AccessUser;
 import com.github.sseserver.qos.Message;
 import com.github.sseserver.qos.MessageRepository;
 import com.github.sseserver.remote.ClusterConnectionService;
 import com.github.sseserver.remote.ConnectionByUserIdDTO;
 import com.github.sseserver.remote.ConnectionDTO;
+import com.github.sseserver.remote.RemoteResponseMessage;
 import com.github.sseserver.springboot.SseServerProperties;
 import com.github.sseserver.util.CompletableFuture;
 import com.github.sseserver.util.PageInfo;
@@ -62,6 +64,8 @@ public class SseWebController<ACCESS_USER> {
     public static final String API_MESSAGE_DO = "/connect/message/{path}.do";
     public static final String API_UPLOAD_DO = "/connect/upload/{path}.do";
     public static final String API_DISCONNECT_DO = "/connect/disconnect.do";
+    public static final String API_DELTA_SNAPSHOT_DO = "/connect/deltaSnapshot.do";
+    public static final String API_ACK_DO = "/connect/ack.do";
 
     public static final String API_REPOSITORY_MESSAGES_JSON = "/connect/repositoryMessages.json";
     public static final String API_USER_JSON = "/connect/users.json";
@@ -183,6 +187,8 @@ public class SseWebController<ACCESS_USER> {
      * @see #API_MESSAGE_DO
      * @see #API_UPLOAD_DO
      * @see #API_DISCONNECT_DO
+     * @see #API_DELTA_SNAPSHOT_DO
+     * @see #API_ACK_DO
      * @see #API_REPOSITORY_MESSAGES_JSON
      * @see #API_USER_JSON
      * @see #API_CONNECTIONS_JSON
@@ -203,6 +209,8 @@ public class SseWebController<ACCESS_USER> {
      * @see #API_MESSAGE_DO
      * @see #API_UPLOAD_DO
      * @see #API_DISCONNECT_DO
+     * @see #API_DELTA_SNAPSHOT_DO
+     * @see #API_ACK_DO
      * @see #API_REPOSITORY_MESSAGES_JSON
      * @see #API_USER_JSON
      * @see #API_CONNECTIONS_JSON
@@ -309,6 +317,7 @@ public class SseWebController<ACCESS_USER> {
         emitter.setRequestIp(getRequestIpAddr(request));
         emitter.setRequestDomain(getRequestDomain(request));
         emitter.setHttpCookies(request.getCookies());
+        emitter.setLastEventId(getLastEventId(attributeMap));
         emitter.getHttpParameters().putAll(attributeMap);
         Enumeration<String> headerNames = request.getHeaderNames();
         while (headerNames.hasMoreElements()) {
@@ -328,6 +337,28 @@ public class SseWebController<ACCESS_USER> {
         return emitter;
     }
 
+    /**
+     * 前端收到的最后一个事件ID, 开启了补发 {@link LocalConnectionServiceImpl#setReplayCapacity(int)} 时用来补发错过的事件.
+     * EventSource自动重连时带在请求头 Last-Event-ID 里, sse.js重新创建链接时带在参数 lastEventId 里
+     *
+     * @return null=没有或格式不对
+     */
+    protected Long getLastEventId(Map<String, Object> attributeMap) {
+        String lastEventId = request.getHeader("Last-Event-ID");
+        if (lastEventId == null || lastEventId.isEmpty()) {
+            lastEventId = Objects.toString(attributeMap.get("lastEventId"), null);
+        }
+        if (lastEventId == null || lastEventId.isEmpty()) {
+            return null;
+        }
+        try {
+            return Long.valueOf(lastEventId.trim());
+        } catch (NumberFormatException e) {
+            // 不是本服务发的事件ID, 不补发
+            return null;
+        }
+    }
+
     /**
      * 新增监听
      *
@@ -439,6 +470,124 @@ public class SseWebController<ACCESS_USER> {
         return responseEntity(responseBody);
     }
 
+    /**
+     * 前端增量事件的版本对不上, 重发全量
+     *
+     * @return http原生响应
+     */
+    @PostMapping(API_DELTA_SNAPSHOT_DO)
+    public ResponseEntity deltaSnapshot(Long connectionId, String eventName, String key) {
+        if (connectionId == null || eventName == null || key == null) {
+            return responseEntity(Collections.singletonMap("send", false));
+        }
+        ACCESS_USER currentUser = getAccessUser(API_DELTA_SNAPSHOT_DO);
+        if (currentUser == null) {
+            return buildUnauthorizedResponse();
+        }
+        ResponseEntity permissionErrorResponse = buildIfPermissionErrorResponse(currentUser, API_DELTA_SNAPSHOT_DO);
+        if (permissionErrorResponse != null) {
+            return permissionErrorResponse;
+        }
+        SseEmitter<ACCESS_USER> emitter = localConnectionService.getConnectionById(connectionId);
+        if (emitter == null) {
+            return responseEntity(Collections.singletonMap("error", "connectionId not exist"));
+        }
+        if (!isConnectionOwner(currentUser, emitter)) {
+            return buildUnauthorizedResponse();
+        }
+        boolean send = localConnectionService.sendDeltaSnapshot(emitter, eventName, key);
+        return responseEntity(Collections.singletonMap("send", send));
+    }
+
+    /**
+     * 前端批量确认收到的消息 (开启了 {@link com.github.sseserver.qos.AtLeastOnceSendService#setAckRequired(boolean)}),
+     * 确认了的从仓库删除, 不再补发.
+     * 只能确认自己连接上待确认的消息: 按连接查出待确认的消息, 只删其中的ID. 别的机器上的消息只发给存它的机器删
+     *
+     * @return http原生响应, ack=确认的数量
+     */
+    @PostMapping(API_ACK_DO)
+    public Object ack(@RequestBody AckReq req) {
+        if (req == null || req.isInvalid()) {
+            return responseEntity(Collections.singletonMap("ack", 0));
+        }
+        ACCESS_USER currentUser = getAccessUser(API_ACK_DO);
+        if (currentUser == null) {
+            return buildUnauthorizedResponse();
+        }
+        ResponseEntity permissionErrorResponse = buildIfPermissionErrorResponse(currentUser, API_ACK_DO);
+        if (permissionErrorResponse != null) {
+            return permissionErrorResponse;
+        }
+        SseEmitter<ACCESS_USER> emitter = req.getConnectionId() != null ? localConnectionService.getConnectionById(req.getConnectionId()) : null;
+        if (emitter == null) {
+            return responseEntity(Collections.singletonMap("error", "connectionId not exist"));
+        }
+        if (!isConnectionOwner(currentUser, emitter)) {
+            return buildUnauthorizedResponse();
+        }
+        List<String> ids = req.getIds();
+        if (ids.size() > AckReq.MAX_IDS) {
+            // 超出的前端没收到确认结果, 补发时会再确认
+            ids = ids.subList(0, AckReq.MAX_IDS);
+        }
+        Set<String> idSet = new HashSet<>(ids);
+
+        boolean cluster = localConnectionService.isEnableCluster();
+        MessageRepository localRepository = localConnectionService.getLocalMessageRepository();
+        CompletableFuture<List<Message>> future;
+        if (cluster) {
+            future = localConnectionService.getClusterMessageRepository().selectAsync(emitter);
+        } else if (localRepository != null) {
+            future = CompletableFuture.completedFuture(localRepository.select(emitter));
+        } else {
+            future = CompletableFuture.completedFuture(Collections.emptyList());
+        }
+
+        DeferredResult<ResponseEntity> result = new DeferredResult<>(req.getTimeout(), () -> responseEntity(Collections.singletonMap("ack", 0)));
+        future.whenComplete((messages, throwable) -> {
+            if (throwable != null) {
+                result.setErrorResult(throwable);
+                return;
+            }
+            int count = 0;
+            for (Message message : messages) {
+                if (message == null || !idSet.remove(message.getId())) {
+                    continue;
+                }
+                if (message instanceof RemoteResponseMessage) {
+                    // 只发给存这条消息的机器
+                    String repositoryId = ((RemoteResponseMessage) message).getRemoteMessageRepositoryId();
+                    localConnectionService.getClusterMessageRepository().deleteAsync(message.getId(), repositoryId);
+                } else if (localRepository != null) {
+                    localRepository.delete(message.getId());
+                }
+                count++;
+            }
+            result.setResult(responseEntity(Collections.singletonMap("ack", count)));
+        });
+        return result;
+    }
+
+    /**
+     * 连接是否属于当前用户
+     *
+     * @param currentUser 当前用户
+     * @param connection  连接
+     * @return true=是自己的连接
+     */
+    protected boolean isConnectionOwner(ACCESS_USER currentUser, SseEmitter<ACCESS_USER> connection) {
+        if (currentUser instanceof AccessUser) {
+            Serializable userId = ((AccessUser) currentUser).getId();
+            return userId != null && Objects.equals(userId.toString(), Objects.toString(connection.getUserId(), null));
+        } else if (currentUser instanceof AccessToken) {
+            String accessToken = ((AccessToken) currentUser).getAccessToken();
+            return accessToken != null && Objects.equals(accessToken, connection.getAccessToken());
+        } else {
+            return Objects.equals(currentUser, connection.getAccessUser());
+        }
+    }
+
     /**
      * 关闭连接
      */
@@ -717,8 +866,11 @@ public class SseWebController<ACCESS_USER> {
                         clientConnectionList.subList(0, clientConnectionList.size() - clientIdMaxConnections);
                 if (!disconnectList.isEmpty()) {
                     List<Long> disconnectIdList = disconnectList.stream().map(ConnectionByUserIdDTO::getId).collect(Collectors.toList());
-                    batchDisconnectRunnable.addAll(disconnectIdList);
-                    localConnectionService.getScheduled().schedule(batchDisconnectRunnable, 1000, TimeUnit.MILLISECONDS);
+                    if (batchDisconnectRunnable.addAll(disconnectIdList)) {
+                        // 一个批次只调度一次
+                        localConnectionService.getTimer().newTimeout(
+                                () -> localConnectionService.getScheduled().execute(batchDisconnectRunnable), 1000, TimeUnit.MILLISECONDS);
+                    }
                 }
                 return disconnectList;
             } else {
@@ -800,6 +952,44 @@ public class SseWebController<ACCESS_USER> {
         }
     }
 
+    public static class AckReq {
+        /**
+         * 一次最多确认多少个
+         */
+        public static final int MAX_IDS = 1000;
+        private List<String> ids;
+        private Long connectionId;
+        private Long timeout = 5000L;
+
+        public boolean isInvalid() {
+            return ids == null || ids.isEmpty();
+        }
+
+        public List<String> getIds() {
+            return ids;
+        }
+
+        public void setIds(List<String> ids) {
+            this.ids = ids;
+        }
+
+        public Long getConnectionId() {
+            return connectionId;
+        }
+
+        public void setConnectionId(Long connectionId) {
+            this.connectionId = connectionId;
+        }
+
+        public Long getTimeout() {
+            return timeout;
+        }
+
+        public void setTimeout(Long timeout) {
+            this.timeout = timeout;
+        }
+    }
+
     public static class RepositoryMessagesReq implements MessageRepository.Query {
         private Integer pageNum = 1;
         private Integer pageSize = 100;
@@ -972,25 +1162,31 @@ public class SseWebController<ACCESS_USER> {
     private static class ClusterBatchDisconnectRunnable implements Runnable {
         private final Collection<Long> batchDisconnectIdList = Collections.newSetFromMap(new ConcurrentHashMap<>());
         private final Supplier<ClusterConnectionService> serviceSupplier;
+        private boolean scheduled;
 
         private ClusterBatchDisconnectRunnable(Supplier<ClusterConnectionService> serviceSupplier) {
             this.serviceSupplier = serviceSupplier;
         }
 
-        void addAll(Collection<Long> disconnectIdList) {
+        /**
+         * @return true=批次里的第一个, 需要调度
+         */
+        boolean addAll(Collection<Long> disconnectIdList) {
             synchronized (batchDisconnectIdList) {
                 batchDisconnectIdList.addAll(disconnectIdList);
+                if (scheduled) {
+                    return false;
+                }
+                scheduled = true;
+                return true;
             }
         }
 
         @Override
         public void run() {
-            if (batchDisconnectIdList.isEmpty()) {
-                return;
-            }
-
             List<Long> idList;
             synchronized (batchDisconnectIdList) {
+                scheduled = false;
                 if (batchDisconnectIdList.isEmpty()) {
                     return;
                 }
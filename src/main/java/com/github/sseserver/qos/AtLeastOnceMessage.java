@@ -1,9 +1,13 @@
 package com.github.sseserver.qos;
 
+import com.github.sseserver.springboot.SseServerProperties;
 import com.github.sseserver.util.AutoTypeBean;
 
 import java.io.Serializable;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 public class AtLeastOnceMessage extends AutoTypeBean implements Message {
     private String id;
@@ -11,6 +15,10 @@ public class AtLeastOnceMessage extends AutoTypeBean implements Message {
     private String eventName;
     private Object body;
     private int filters;
+    /**
+     * 过期时间(毫秒时间戳), 0=不过期
+     */
+    private long expireTime;
 
     private String listenerName;
     private Collection<? extends Serializable> tenantIdList;
@@ -28,6 +36,76 @@ public class AtLeastOnceMessage extends AutoTypeBean implements Message {
         retainClassName(body);
     }
 
+    /**
+     * 转成可以序列化为JSON的Map, 落盘或存到redis用
+     *
+     * @param message 消息
+     * @return 字段和body的类型
+     * @see #fromMap(Map, SseServerProperties.AutoType, Set)
+     */
+    public static Map<String, Object> toMap(Message message) {
+        Map<String, Object> map = new LinkedHashMap<>(16);
+        map.put("id", message.getId());
+        map.put("filters", message.getFilters());
+        map.put("expireTime", message.getExpireTime());
+        map.put("eventName", message.getEventName());
+        map.put("listenerName", message.getListenerName());
+        map.put("userIdList", message.getUserIdList());
+        map.put("tenantIdList", message.getTenantIdList());
+        map.put("accessTokenList", message.getAccessTokenList());
+        map.put("channelList", message.getChannelList());
+        Object body = message.getBody();
+        map.put("body", body);
+        AutoTypeBean autoTypeBean;
+        if (message instanceof AutoTypeBean) {
+            autoTypeBean = (AutoTypeBean) message;
+        } else {
+            autoTypeBean = new AutoTypeBean();
+            if (body != null) {
+                autoTypeBean.retainClassName(body);
+            }
+        }
+        map.put("arrayClassName", autoTypeBean.getArrayClassName());
+        map.put("objectClassName", autoTypeBean.getObjectClassName());
+        return map;
+    }
+
+    /**
+     * 从JSON反序列化的Map转回消息
+     *
+     * @param source           {@link #toMap(Message)} 的JSON反序列化后的结果
+     * @param autoType         body的类型怎么还原
+     * @param classNotFoundSet 找不到的类, 不用每次都找
+     * @return 消息
+     * @throws ClassNotFoundException autoType是CLASS_NOT_FOUND_THROWS时
+     */
+    public static AtLeastOnceMessage fromMap(Map source,
+                                             SseServerProperties.AutoType autoType,
+                                             Set<String> classNotFoundSet) throws ClassNotFoundException {
+        AtLeastOnceMessage message = new AtLeastOnceMessage();
+        message.setId((String) source.get("id"));
+        Object filters = source.get("filters");
+        if (filters instanceof Number) {
+            message.setFilters(((Number) filters).intValue());
+        }
+        Object expireTime = source.get("expireTime");
+        if (expireTime instanceof Number) {
+            message.setExpireTime(((Number) expireTime).longValue());
+        }
+        message.setEventName((String) source.get("eventName"));
+        message.setListenerName((String) source.get("listenerName"));
+        message.setUserIdList((Collection<? extends Serializable>) source.get("userIdList"));
+        message.setTenantIdList((Collection<? extends Serializable>) source.get("tenantIdList"));
+        message.setAccessTokenList((Collection<String>) source.get("accessTokenList"));
+        message.setChannelList((Collection<String>) source.get("channelList"));
+        Map<String, Collection<Integer>> arrayClassName = (Map<String, Collection<Integer>>) source.get("arrayClassName");
+        String objectClassName = (String) source.get("objectClassName");
+        message.setArrayClassName(arrayClassName);
+        message.setObjectClassName(objectClassName);
+        message.setBody(AutoTypeBean.cast(source.get("body"), arrayClassName, objectClassName, autoType, classNotFoundSet));
+        return message;
+    }
+
     @Override
     public String getEventName() {
         return eventName;
@@ -46,6 +124,15 @@ public class AtLeastOnceMessage extends AutoTypeBean implements Message {
         this.filters = filters;
     }
 
+    @Override
+    public long getExpireTime() {
+        return expireTime;
+    }
+
+    public void setExpireTime(long expireTime) {
+        this.expireTime = expireTime;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) {
@@ -1,21 +1,29 @@
 package com.github.sseserver.qos;
 
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.github.sseserver.DistributedConnectionService;
 import com.github.sseserver.SendService;
 import com.github.sseserver.local.LocalConnectionService;
 import com.github.sseserver.local.SseChangeEvent;
 import com.github.sseserver.remote.ClusterCompletableFuture;
 import com.github.sseserver.remote.ClusterConnectionService;
+import com.github.sseserver.util.JsonMergePatch;
 import com.github.sseserver.util.LambdaUtil;
 import com.github.sseserver.util.SpringUtil;
 import com.github.sseserver.util.WebUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -23,17 +31,36 @@ import java.util.function.Supplier;
 /**
  * 推送
  * 保证前端至少收到一次推送
+ * 1. 可以设置消息的有效期 {@link #scopeTtl(long, Callable)} {@link #setDefaultTtl(long)}, 过期了还没推送成功, Future以 {@link QosCompletableFuture.Status#EXPIRED} 结束.
+ * 2. 消息仓库满了被淘汰的, Future以 {@link QosCompletableFuture.Status#EVICTED} 结束, 未结束的Future不会一直留着.
+ * 3. 开启确认 {@link #setAckRequired(boolean)} 后, 写出去不算送达 (可能还在内核或代理的缓冲里, 断线就丢了).
+ * 消息先存仓库再推送, 前端sse.js收到后批量确认 /connect/ack.do 才删除, 没确认的重连时补发, 直到过期.
  *
  * @param <ACCESS_USER>
  * @author wangzihaogithub 2022-11-12
  */
 public class AtLeastOnceSendService<ACCESS_USER> implements SendService<QosCompletableFuture<Integer>> {
+    private final static Logger log = LoggerFactory.getLogger(AtLeastOnceSendService.class);
     protected final LocalConnectionService localConnectionService;
     protected final DistributedConnectionService distributedConnectionService;
     protected final MessageRepository messageRepository;
+    /**
+     * 多久删一次过期的消息(毫秒)
+     */
+    public static final long EXPIRE_CHECK_INTERVAL = Long.getLong("sseserver.AtLeastOnceSendService.expireCheckInterval", 1000L);
     protected final Map<String, QosCompletableFuture<Integer>> futureMap = new ConcurrentHashMap<>(32);
     protected final String serverId = SpringUtil.filterNonAscii(WebUtil.getIPAddress(WebUtil.port));
+    private final ThreadLocal<Long> ttlThreadLocal = new ThreadLocal<>();
     private final boolean primary;
+    /**
+     * 默认的有效期(毫秒), 0=不过期
+     */
+    private long defaultTtl = Long.getLong("sseserver.AtLeastOnceSendService.defaultTtl", 0L);
+    /**
+     * 是否要前端确认收到, 需要前端用sse.js
+     */
+    private volatile boolean ackRequired = Boolean.getBoolean("sseserver.AtLeastOnceSendService.ackRequired");
+    private final AtLeastResend<ACCESS_USER> atLeastResend;
 
     /**
      * @param localConnectionService       非必填
@@ -53,20 +80,61 @@ public class AtLeastOnceSendService<ACCESS_USER> implements SendService<QosCompl
                     complete(future, 1);
                 }
             });
+            messageRepository.addEvictListener((message, reason) -> {
+                QosCompletableFuture<Integer> future = futureMap.remove(message.getId());
+                if (future != null) {
+                    future.complete(0, reason == MessageRepository.EvictReason.EXPIRED ?
+                            QosCompletableFuture.Status.EXPIRED : QosCompletableFuture.Status.EVICTED);
+                }
+            });
         }
         if (localConnectionService != null && messageRepository != null) {
-            AtLeastResend<ACCESS_USER> atLeastResend = new AtLeastResend<>(messageRepository);
+            localConnectionService.getScheduled().scheduleWithFixedDelay(this::deleteExpired,
+                    EXPIRE_CHECK_INTERVAL, EXPIRE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        if (localConnectionService != null && messageRepository != null) {
+            atLeastResend = new AtLeastResend<>(messageRepository);
+            atLeastResend.setAckRequired(ackRequired);
             localConnectionService.<ACCESS_USER>addConnectListener(atLeastResend::resend);
             localConnectionService.addListeningChangeWatch((Consumer<SseChangeEvent<ACCESS_USER, Set<String>>>) event -> {
                 if (SseChangeEvent.EVENT_ADD_LISTENER.equals(event.getEventName())) {
                     atLeastResend.resend(event.getInstance());
                 }
             });
+        } else {
+            atLeastResend = null;
         }
     }
 
+    /**
+     * 本机推送时sendFunction的参数是同步的 {@link LocalConnectionService}, 和以前一样
+     *
+     * @param sendFunction    推送, 返回发送成功的数量
+     * @param messageSupplier 推送不成功时存仓库的消息
+     * @return 推送成功或补发成功后结束
+     */
     public QosCompletableFuture<Integer> qosSend(Function<SendService, ?> sendFunction, Supplier<AtLeastOnceMessage> messageSupplier) {
+        return qosSend((e, data) -> sendFunction.apply(e), null, messageSupplier, false, false);
+    }
+
+    /**
+     * 本机推送时sendFunction的参数是异步的 {@link LocalConnectionService#async()}, 不阻塞调用方线程
+     *
+     * @param sendFunction    推送, 参数是推送用的data (开启确认时带着消息ID)
+     * @param body            推送的内容
+     * @param messageSupplier 推送不成功或开启确认时存仓库的消息
+     * @return 开启确认时, 前端确认了才结束
+     */
+    public QosCompletableFuture<Integer> qosSend(BiFunction<SendService, Object, ?> sendFunction, Object body, Supplier<AtLeastOnceMessage> messageSupplier) {
+        return qosSend(sendFunction, body, messageSupplier, ackRequired && messageRepository != null, true);
+    }
+
+    private QosCompletableFuture<Integer> qosSend(BiFunction<SendService, Object, ?> sendFunction, Object body, Supplier<AtLeastOnceMessage> messageSupplier,
+                                                  boolean ack, boolean localAsync) {
         String messageId = Message.newId("qos", serverId);
+        Priority priority = SendService.currentPriority();
+        Long ttl = ttlThreadLocal.get();
+        long expireTime = ttl == null ? expireTime(defaultTtl) : expireTime(ttl);
         QosCompletableFuture<Integer> future = new QosCompletableFuture<Integer>(messageId) {
             @Override
             public boolean cancel(boolean mayInterruptIfRunning) {
@@ -77,38 +145,164 @@ public class AtLeastOnceSendService<ACCESS_USER> implements SendService<QosCompl
                 return cancel;
             }
         };
+        future.setExpireTime(expireTime);
+        if (ack) {
+            // 先存仓库再推送, 确认可能比推送的回调先到
+            enqueue(messageSupplier.get(), future);
+            if (future.isDone()) {
+                return future;
+            }
+        }
+        Object data = ack ? newAckData(messageId, body) : body;
         if (distributedConnectionService != null && distributedConnectionService.isEnableCluster()) {
             ClusterConnectionService cluster = distributedConnectionService.getCluster();
 
-            ClusterCompletableFuture<Integer, ClusterConnectionService> clusterFuture = cluster.scopeOnWriteable(
-                    () -> (ClusterCompletableFuture<Integer, ClusterConnectionService>) sendFunction.apply(cluster));
-            clusterFuture.whenComplete((succeedCount, throwable) -> {
-                if (succeedCount != null && succeedCount > 0) {
-                    complete(future, succeedCount);
-                } else {
-                    AtLeastOnceMessage message = messageSupplier.get();
-                    enqueue(message, future);
-                }
-            });
+            ClusterCompletableFuture<Integer, ClusterConnectionService> clusterFuture = cluster.scopePriority(priority,
+                    () -> cluster.scopeOnWriteable(
+                            () -> (ClusterCompletableFuture<Integer, ClusterConnectionService>) sendFunction.apply(cluster, data)));
+            if (!ack) {
+                clusterFuture.whenComplete((succeedCount, throwable) -> {
+                    if (succeedCount != null && succeedCount > 0) {
+                        complete(future, succeedCount);
+                    } else {
+                        AtLeastOnceMessage message = messageSupplier.get();
+                        enqueue(message, future);
+                    }
+                });
+            }
         } else if (localConnectionService != null) {
-            Integer succeedCount = localConnectionService.scopeOnWriteable(
-                    () -> (Integer) sendFunction.apply(localConnectionService));
-            if (succeedCount != null && succeedCount > 0) {
-                complete(future, succeedCount);
-            } else {
-                AtLeastOnceMessage message = messageSupplier.get();
-                enqueue(message, future);
+            SendService<?> local = localAsync ? localConnectionService.async() : localConnectionService;
+            CompletionStage<Integer> localFuture = toCompletionStage(local.scopePriority(priority,
+                    () -> local.scopeOnWriteable(
+                            () -> sendFunction.apply(local, data))));
+            if (!ack) {
+                localFuture.whenComplete((succeedCount, throwable) -> {
+                    if (succeedCount != null && succeedCount > 0) {
+                        complete(future, succeedCount);
+                    } else {
+                        AtLeastOnceMessage message = messageSupplier.get();
+                        enqueue(message, future);
+                    }
+                });
             }
-        } else {
+        } else if (!ack) {
             future.complete(0);
         }
         return future;
     }
 
+    /**
+     * 同步推送返回的是发送成功的数量, 异步推送返回的是CompletionStage
+     */
+    private static CompletionStage<Integer> toCompletionStage(Object result) {
+        if (result instanceof CompletionStage) {
+            return (CompletionStage<Integer>) result;
+        }
+        return java.util.concurrent.CompletableFuture.completedFuture((Integer) result);
+    }
+
+    /**
+     * 开启确认时推送的data, sse.js按开头识别, 去重后把data还原给业务, 再批量确认
+     *
+     * @param messageId 消息ID
+     * @param body      推送的内容
+     * @return {"sseAck":"消息ID","data":推送的内容}
+     */
+    public static String newAckData(String messageId, Object body) {
+        ObjectNode envelope = JsonNodeFactory.instance.objectNode();
+        // sse.js按这个开头识别确认事件, 字段顺序不能变
+        envelope.put("sseAck", messageId);
+        if (body instanceof CharSequence) {
+            // 字符串原样给业务, 和不开确认时一样
+            envelope.put("data", body.toString());
+        } else {
+            envelope.set("data", JsonMergePatch.toJsonNode(body));
+        }
+        return JsonMergePatch.toJson(envelope);
+    }
+
     public boolean isPrimary() {
         return primary;
     }
 
+    private static long expireTime(long ttl) {
+        return ttl > 0 ? System.currentTimeMillis() + ttl : 0L;
+    }
+
+    /**
+     * 这个范围里发的消息, 过了有效期还没推送成功就不再推送
+     *
+     * @param ttlMillis 有效期(毫秒), 0=不过期
+     */
+    public <T> T scopeTtl(long ttlMillis, Callable<T> runnable) {
+        Long old = ttlThreadLocal.get();
+        ttlThreadLocal.set(ttlMillis);
+        try {
+            return runnable.call();
+        } catch (Exception e) {
+            LambdaUtil.sneakyThrows(e);
+            return null;
+        } finally {
+            if (old != null) {
+                ttlThreadLocal.set(old);
+            } else {
+                ttlThreadLocal.remove();
+            }
+        }
+    }
+
+    /**
+     * 删除过期的消息, 结束对应的Future. 定时调用
+     *
+     * @return 结束的Future数量
+     */
+    public int deleteExpired() {
+        int count = 0;
+        try {
+            messageRepository.deleteExpired();
+            // 仓库不支持过期通知, 或者消息在别的机器上时, 这里兜底
+            long now = System.currentTimeMillis();
+            for (QosCompletableFuture<Integer> future : futureMap.values()) {
+                long expireTime = future.getExpireTime();
+                if (expireTime > 0 && now >= expireTime && futureMap.remove(future.getMessageId(), future)) {
+                    future.complete(0, QosCompletableFuture.Status.EXPIRED);
+                    count++;
+                }
+            }
+        } catch (Exception e) {
+            // 定时任务不能抛异常, 不然不会再执行
+            if (log.isWarnEnabled()) {
+                log.warn("sse qos deleteExpired error : {}", e.toString(), e);
+            }
+        }
+        return count;
+    }
+
+    public boolean isAckRequired() {
+        return ackRequired;
+    }
+
+    /**
+     * @param ackRequired true=前端(sse.js)确认收到才算送达, 没确认的消息留在仓库里补发, 直到过期
+     */
+    public void setAckRequired(boolean ackRequired) {
+        this.ackRequired = ackRequired;
+        if (atLeastResend != null) {
+            atLeastResend.setAckRequired(ackRequired);
+        }
+    }
+
+    public long getDefaultTtl() {
+        return defaultTtl;
+    }
+
+    /**
+     * @param defaultTtl 默认的有效期(毫秒), 0=不过期
+     */
+    public void setDefaultTtl(long defaultTtl) {
+        this.defaultTtl = defaultTtl;
+    }
+
     @Override
     public <T> T scopeOnWriteable(Callable<T> runnable) {
         try {
@@ -122,7 +316,7 @@ public class AtLeastOnceSendService<ACCESS_USER> implements SendService<QosCompl
     @Override
     public QosCompletableFuture<Integer> sendAll(String eventName, Object body) {
         return qosSend(
-                e -> e.sendAll(eventName, body),
+                (e, data) -> e.sendAll(eventName, data), body,
                 () -> {
                     AtLeastOnceMessage message = new AtLeastOnceMessage(eventName, body,
                             0);
@@ -133,7 +327,7 @@ public class AtLeastOnceSendService<ACCESS_USER> implements SendService<QosCompl
     @Override
     public QosCompletableFuture<Integer> sendAllListening(String eventName, Object body) {
         return qosSend(
-                e -> e.sendAllListening(eventName, body),
+                (e, data) -> e.sendAllListening(eventName, data), body,
                 () -> {
                     AtLeastOnceMessage message = new AtLeastOnceMessage(eventName, body,
                             Message.FILTER_LISTENER_NAME);
@@ -145,7 +339,7 @@ public class AtLeastOnceSendService<ACCESS_USER> implements SendService<QosCompl
     @Override
     public QosCompletableFuture<Integer> sendByChannel(Collection<String> channels, String eventName, Object body) {
         return qosSend(
-                e -> e.sendByChannel(channels, eventName, body),
+                (e, data) -> e.sendByChannel(channels, eventName, data), body,
                 () -> {
                     AtLeastOnceMessage message = new AtLeastOnceMessage(eventName, body,
                             Message.FILTER_CHANNEL);
@@ -158,7 +352,7 @@ public class AtLeastOnceSendService<ACCESS_USER> implements SendService<QosCompl
     @Override
     public QosCompletableFuture<Integer> sendByChannelListening(Collection<String> channels, String eventName, Object body) {
         return qosSend(
-                e -> e.sendByChannelListening(channels, eventName, body),
+                (e, data) -> e.sendByChannelListening(channels, eventName, data), body,
                 () -> {
                     AtLeastOnceMessage message = new AtLeastOnceMessage(eventName, body,
                             Message.FILTER_CHANNEL | Message.FILTER_LISTENER_NAME);
@@ -170,7 +364,7 @@ public class AtLeastOnceSendService<ACCESS_USER> implements SendService<QosCompl
     @Override
     public QosCompletableFuture<Integer> sendByAccessToken(Collection<String> accessTokens, String eventName, Object body) {
         return qosSend(
-                e -> e.sendByAccessToken(accessTokens, eventName, body),
+                (e, data) -> e.sendByAccessToken(accessTokens, eventName, data), body,
                 () -> {
                     AtLeastOnceMessage message = new AtLeastOnceMessage(eventName, body,
                             Message.FILTER_ACCESS_TOKEN);
@@ -182,7 +376,7 @@ public class AtLeastOnceSendService<ACCESS_USER> implements SendService<QosCompl
     @Override
     public QosCompletableFuture<Integer> sendByAccessTokenListening(Collection<String> accessTokens, String eventName, Object body) {
         return qosSend(
-                e -> e.sendByAccessTokenListening(accessTokens, eventName, body),
+                (e, data) -> e.sendByAccessTokenListening(accessTokens, eventName, data), body,
                 () -> {
                     AtLeastOnceMessage message = new AtLeastOnceMessage(eventName, body,
                             Message.FILTER_ACCESS_TOKEN | Message.FILTER_LISTENER_NAME);
@@ -195,7 +389,7 @@ public class AtLeastOnceSendService<ACCESS_USER> implements SendService<QosCompl
     @Override
     public QosCompletableFuture<Integer> sendByUserId(Collection<? extends Serializable> userIds, String eventName, Object body) {
         return qosSend(
-                e -> e.sendByUserId(userIds, eventName, body),
+                (e, data) -> e.sendByUserId(userIds, eventName, data), body,
                 () -> {
                     AtLeastOnceMessage message = new AtLeastOnceMessage(eventName, body,
                             Message.FILTER_USER_ID);
@@ -207,7 +401,7 @@ public class AtLeastOnceSendService<ACCESS_USER> implements SendService<QosCompl
     @Override
     public QosCompletableFuture<Integer> sendByUserIdListening(Collection<? extends Serializable> userIds, String eventName, Object body) {
         return qosSend(
-                e -> e.sendByUserIdListening(userIds, eventName, body),
+                (e, data) -> e.sendByUserIdListening(userIds, eventName, data), body,
                 () -> {
                     AtLeastOnceMessage message = new AtLeastOnceMessage(eventName, body,
                             Message.FILTER_USER_ID | Message.FILTER_LISTENER_NAME);
@@ -220,7 +414,7 @@ public class AtLeastOnceSendService<ACCESS_USER> implements SendService<QosCompl
     @Override
     public QosCompletableFuture<Integer> sendByTenantId(Collection<? extends Serializable> tenantIds, String eventName, Object body) {
         return qosSend(
-                e -> e.sendByTenantId(tenantIds, eventName, body),
+                (e, data) -> e.sendByTenantId(tenantIds, eventName, data), body,
                 () -> {
                     AtLeastOnceMessage message = new AtLeastOnceMessage(eventName, body,
                             Message.FILTER_TENANT_ID);
@@ -232,7 +426,7 @@ public class AtLeastOnceSendService<ACCESS_USER> implements SendService<QosCompl
     @Override
     public QosCompletableFuture<Integer> sendByTenantIdListening(Collection<? extends Serializable> tenantIds, String eventName, Object body) {
         return qosSend(
-                e -> e.sendByTenantIdListening(tenantIds, eventName, body),
+                (e, data) -> e.sendByTenantIdListening(tenantIds, eventName, data), body,
                 () -> {
                     AtLeastOnceMessage message = new AtLeastOnceMessage(eventName, body,
                             Message.FILTER_TENANT_ID | Message.FILTER_LISTENER_NAME);
@@ -254,9 +448,16 @@ public class AtLeastOnceSendService<ACCESS_USER> implements SendService<QosCompl
             return;
         }
         String messageId = future.getMessageId();
+        long expireTime = future.getExpireTime();
+        if (expireTime > 0 && System.currentTimeMillis() >= expireTime) {
+            future.complete(0, QosCompletableFuture.Status.EXPIRED);
+            return;
+        }
         message.setId(messageId);
-        messageRepository.insert(message);
+        message.setExpireTime(expireTime);
+        // 先放Future, 插入时就被淘汰也能结束
         futureMap.put(messageId, future);
+        messageRepository.insert(message);
     }
 
 }
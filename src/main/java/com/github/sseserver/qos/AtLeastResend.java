@@ -6,13 +6,25 @@ import com.github.sseserver.remote.RemoteResponseMessage;
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * 链接建立或新增监听时, 补发仓库里的消息
+ * 1. 不需要确认时, 写出去就从仓库删除.
+ * 2. 需要确认时 {@link #setAckRequired(boolean)}, 带上消息ID ({@link AtLeastOnceSendService#newAckData(String, Object)}) 补发, 前端确认了才删除.
+ * 同一个链接补发过的不再补发, 重连后的新链接再补发一次.
+ */
 public class AtLeastResend<ACCESS_USER> {
+    /**
+     * 链接上已经补发过, 还没确认的消息ID
+     */
+    public static final String ATTR_ACK_SENT_SET = "AtLeastResend.ackSentSet";
     protected final MessageRepository messageRepository;
     protected final Set<String> sendingSet = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private volatile boolean ackRequired;
 
     public AtLeastResend(MessageRepository messageRepository) {
         this.messageRepository = messageRepository;
@@ -38,6 +50,10 @@ public class AtLeastResend<ACCESS_USER> {
     }
 
     public void resend(List<Message> messageList, SseEmitter<ACCESS_USER> connection) {
+        if (ackRequired) {
+            resendAck(messageList, connection);
+            return;
+        }
         if (messageList.isEmpty()) {
             return;
         }
@@ -55,8 +71,14 @@ public class AtLeastResend<ACCESS_USER> {
                     continue;
                 }
 
-                connection.send(SseEmitter.event()
-                        .id(id)
+                SseEmitter.SseEventBuilderFuture<SseEmitter> event = SseEmitter.event();
+                if (connection.isReplay()) {
+                    // 开了重放, 不带事件ID, 不覆盖前端重放用的 Last-Event-ID
+                    event.defaultId(-1);
+                } else {
+                    event.id(id);
+                }
+                connection.send(event
                         .name(message.getEventName())
                         .comment("resend")
                         .data(message.getBody()));
@@ -81,4 +103,45 @@ public class AtLeastResend<ACCESS_USER> {
         }
     }
 
+    /**
+     * 补发到前端确认为止, 不删除
+     */
+    protected void resendAck(List<Message> messageList, SseEmitter<ACCESS_USER> connection) {
+        Set<String> sentSet = (Set<String>) connection.getAttributeMap()
+                .computeIfAbsent(ATTR_ACK_SENT_SET, k -> Collections.newSetFromMap(new ConcurrentHashMap<>()));
+        // 仓库里没有了的, 是已经确认或过期的
+        Set<String> idSet = new HashSet<>(messageList.size());
+        for (Message message : messageList) {
+            idSet.add(message.getId());
+        }
+        sentSet.retainAll(idSet);
+        for (Message message : messageList) {
+            String id = message.getId();
+            if (!connection.isActive() || !connection.isWriteable()) {
+                break;
+            }
+            if (!sentSet.add(id)) {
+                continue;
+            }
+            try {
+                // 不带事件ID, 不覆盖前端重放用的 Last-Event-ID
+                connection.send(SseEmitter.event()
+                        .defaultId(-1)
+                        .name(message.getEventName())
+                        .comment("resend")
+                        .data(AtLeastOnceSendService.newAckData(id, message.getBody())));
+            } catch (IOException e) {
+                sentSet.remove(id);
+                break;
+            }
+        }
+    }
+
+    public boolean isAckRequired() {
+        return ackRequired;
+    }
+
+    public void setAckRequired(boolean ackRequired) {
+        this.ackRequired = ackRequired;
+    }
 }
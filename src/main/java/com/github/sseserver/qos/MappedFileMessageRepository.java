@@ -0,0 +1,769 @@
+package com.github.sseserver.qos;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.sseserver.springboot.SseServerProperties;
+import com.github.sseserver.util.LambdaUtil;
+import com.github.sseserver.util.PlatformDependentUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * 落盘的消息仓库, 重启后没送达的QoS消息还在
+ * 1. 查询和索引和 {@link MemoryMessageRepository} 一样在内存里, 启动时读日志重建.
+ * 2. 写入追加到内存映射的段文件 (MappedByteBuffer), 删除/过期/淘汰追加一条墓碑记录, 不改旧的数据.
+ * 3. 刷盘按 {@link #flushInterval} 批量 force(), 进程崩溃不丢 (在系统页缓存里), 机器断电最多丢一个间隔. 0=每条都刷盘.
+ * 4. 旧段里有效的记录少于 {@link #compactRatio} 时, 有效的原样复制到当前段, 删掉旧段文件.
+ * 5. 一个目录同时只能被一个仓库打开.
+ * 使用: 注册名为 {@link com.github.sseserver.springboot.SseServerBeanDefinitionRegistrar#getLocalMessageRepositoryBeanName(String)} 的bean替换默认的内存仓库.
+ */
+public class MappedFileMessageRepository extends MemoryMessageRepository {
+    private final static Logger log = LoggerFactory.getLogger(MappedFileMessageRepository.class);
+    /**
+     * 每个段文件的大小
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = Integer.getInteger("sseserver.MappedFileMessageRepository.segmentSize",
+            64 * 1024 * 1024);
+    public static final int DEFAULT_MAX_THRESHOLD_SIZE = Integer.getInteger("sseserver.MappedFileMessageRepository.maxThresholdSize",
+            1000000);
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String LOCK_FILE = "repository.lock";
+    /**
+     * 记录格式: 长度(int) + CRC32(int) + 类型(byte) + 内容. 长度=0表示段结束
+     */
+    private static final int HEADER_SIZE = 8;
+    private static final byte TYPE_INSERT = 1;
+    private static final byte TYPE_DELETE = 2;
+
+    private final File directory;
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * 刷盘和删段互斥, 不会force已经解除映射的段
+     */
+    private final Object flushLock = new Object();
+    /**
+     * 段号 = 段, 读写都在lock内
+     */
+    private final TreeMap<Long, Segment> segmentMap = new TreeMap<>();
+    /**
+     * 消息ID = 有效记录的位置, 读写都在lock内
+     */
+    private final Map<String, Location> locationMap = new HashMap<>();
+    private final AtomicLong recordSequence = new AtomicLong();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private final Set<String> classNotFoundSet = ConcurrentHashMap.newKeySet();
+    private final RandomAccessFile lockFile;
+    private final FileLock fileLock;
+    private volatile Segment active;
+    private volatile boolean closed;
+    private ScheduledThreadPoolExecutor scheduled;
+
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+    private long flushInterval = Long.getLong("sseserver.MappedFileMessageRepository.flushInterval", 100L);
+    private double compactRatio = 0.5D;
+    private ObjectMapper objectMapper = new ObjectMapper();
+    private SseServerProperties.AutoType autoType = SseServerProperties.AutoType.CLASS_NOT_FOUND_USE_MAP;
+
+    public MappedFileMessageRepository(File directory) {
+        this(directory, false);
+    }
+
+    /**
+     * 打开目录, 读日志恢复没删掉的消息
+     *
+     * @param directory 放段文件的目录, 不存在会创建
+     * @param primary   是否主仓库
+     */
+    public MappedFileMessageRepository(File directory, boolean primary) {
+        super(primary);
+        this.maxThresholdSize = DEFAULT_MAX_THRESHOLD_SIZE;
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("can not create directory: " + directory);
+        }
+        RandomAccessFile lockFile = null;
+        FileLock fileLock = null;
+        try {
+            lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+            fileLock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            // 同一个进程里已经打开了
+            fileLock = null;
+        } catch (IOException e) {
+            closeQuietly(lockFile);
+            LambdaUtil.sneakyThrows(e);
+        }
+        if (fileLock == null) {
+            closeQuietly(lockFile);
+            throw new IllegalStateException("directory is opened by another repository: " + directory);
+        }
+        this.lockFile = lockFile;
+        this.fileLock = fileLock;
+        // 淘汰和过期也要写墓碑, 否则重启后又回来了
+        evictListenerList.add((message, reason) -> appendDelete(message.getId()));
+        lock.lock();
+        try {
+            recover();
+        } catch (IOException e) {
+            close();
+            LambdaUtil.sneakyThrows(e);
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+    @Override
+    public String insert(Message message) {
+        String id = message.getId();
+        byte[] record = encodeInsert(recordSequence.incrementAndGet(), id, message);
+        lock.lock();
+        try {
+            checkClose();
+            int offset = append(record);
+            Segment segment = active;
+            segment.records++;
+            segment.live++;
+            Location old = locationMap.put(id, new Location(segment, offset));
+            if (old != null) {
+                old.segment.live--;
+            }
+            afterAppend();
+            return super.insert(message);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Message delete(String id) {
+        Message delete = super.delete(id);
+        if (delete != null) {
+            appendDelete(id);
+        }
+        return delete;
+    }
+
+    /**
+     * 所有段文件刷盘
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            Segment segment = active;
+            if (segment != null && dirty.getAndSet(false)) {
+                segment.buffer.force();
+            }
+        }
+    }
+
+    /**
+     * 整理有效记录少的旧段
+     *
+     * @return 删掉了多少个段文件
+     */
+    public int compact() {
+        int count = 0;
+        synchronized (flushLock) {
+            List<Segment> sealedList;
+            lock.lock();
+            try {
+                if (closed) {
+                    return 0;
+                }
+                sealedList = new ArrayList<>(segmentMap.values());
+                sealedList.remove(active);
+            } finally {
+                lock.unlock();
+            }
+            for (Segment segment : sealedList) {
+                // 每个段单独加锁, 不会长时间挡住写入
+                lock.lock();
+                try {
+                    if (closed) {
+                        break;
+                    }
+                    if (segment.live <= segment.records * compactRatio) {
+                        rewrite(segment);
+                        count++;
+                    }
+                } catch (Exception e) {
+                    if (log.isWarnEnabled()) {
+                        log.warn("sse MappedFileMessageRepository compact {} error {}", segment.file, e.toString(), e);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void close() {
+        synchronized (flushLock) {
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (scheduled != null) {
+                    scheduled.shutdown();
+                }
+                for (Segment segment : segmentMap.values()) {
+                    if (segment == active) {
+                        segment.buffer.force();
+                    }
+                    unmap(segment.buffer);
+                }
+                segmentMap.clear();
+                locationMap.clear();
+                active = null;
+                super.close();
+            } finally {
+                lock.unlock();
+                try {
+                    fileLock.release();
+                } catch (IOException ignored) {
+                }
+                closeQuietly(lockFile);
+            }
+        }
+    }
+
+    /**
+     * 按段号顺序读所有段, 后面的记录覆盖前面的, 墓碑删掉前面的. 最后按写入顺序放进内存.
+     * 最后一个段可能写了一半, 读到第一条不完整的记录为止, 清掉写了一半的, 还有空间就接着写, 不是每次重启都开一个新段.
+     */
+    private void recover() throws IOException {
+        long startTime = System.currentTimeMillis();
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        Map<String, Ref> refMap = new HashMap<>();
+        if (files != null) {
+            for (File file : files) {
+                long segmentId;
+                try {
+                    segmentId = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                segmentMap.put(segmentId, new Segment(segmentId, file, map(file, file.length())));
+            }
+        }
+        CRC32 crc32 = new CRC32();
+        for (Segment segment : segmentMap.values()) {
+            ByteBuffer buffer = segment.buffer;
+            int position = 0;
+            int length;
+            while ((length = readLength(buffer, position, crc32)) > 0) {
+                int body = position + HEADER_SIZE;
+                if (buffer.get(body) == TYPE_INSERT) {
+                    long sequence = buffer.getLong(body + 1);
+                    String id = readString(buffer, body + 9);
+                    Ref old = refMap.get(id);
+                    if (old == null || sequence >= old.sequence) {
+                        refMap.put(id, new Ref(segment, position, length, sequence));
+                    }
+                    segment.records++;
+                    recordSequence.set(Math.max(recordSequence.get(), sequence));
+                } else {
+                    refMap.remove(readString(buffer, body + 9));
+                }
+                position = body + length;
+            }
+            segment.position = position;
+        }
+        Segment last = segmentMap.isEmpty() ? null : segmentMap.lastEntry().getValue();
+        if (last != null && last.position + HEADER_SIZE + 4 < last.buffer.capacity()) {
+            clearTail(last);
+            active = last;
+        } else {
+            roll(0);
+        }
+
+        List<Ref> refList = new ArrayList<>(refMap.values());
+        refList.sort(Comparator.comparingLong(o -> o.sequence));
+        long now = System.currentTimeMillis();
+        int expired = 0;
+        for (Ref ref : refList) {
+            Message message;
+            try {
+                message = decodeInsert(ref.segment.buffer, ref.offset, ref.length);
+            } catch (Exception e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("sse MappedFileMessageRepository recover {} offset {} error {}", ref.segment.file, ref.offset, e.toString(), e);
+                }
+                continue;
+            }
+            // 过期的不放进来, 没有有效位置, 整理时当作垃圾
+            if (message.isExpired(now)) {
+                expired++;
+                continue;
+            }
+            ref.segment.live++;
+            locationMap.put(message.getId(), new Location(ref.segment, ref.offset));
+            super.insert(message);
+        }
+        if (log.isInfoEnabled()) {
+            log.info("sse MappedFileMessageRepository recover {} messages, {} expired, {} segments, cost {}ms, directory {}",
+                    size(), expired, segmentMap.size(), System.currentTimeMillis() - startTime, directory);
+        }
+    }
+
+    /**
+     * 清掉最后一条完整记录后面写了一半的, 接着写的记录后面不能有旧的字节, 不然下次恢复可能读错
+     */
+    private static void clearTail(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = segment.position;
+        int length = buffer.getInt(position);
+        if (length == 0) {
+            return;
+        }
+        // 长度也可能写坏了, 最多清到段尾
+        long end = length > 0 ? Math.min((long) buffer.capacity(), (long) position + HEADER_SIZE + length) : buffer.capacity();
+        for (int i = position; i < end; i++) {
+            buffer.put(i, (byte) 0);
+        }
+        buffer.force();
+    }
+
+    /**
+     * 整理一个旧段: 有效的插入记录和还有用的墓碑原样复制到当前段, 当前段刷盘后再删掉段文件. 调用时持有lock
+     */
+    private void rewrite(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        CRC32 crc32 = new CRC32();
+        int position = 0;
+        int length;
+        while (segment.live > 0 || segment.id != segmentMap.firstKey()) {
+            if ((length = readLength(buffer, position, crc32)) <= 0) {
+                break;
+            }
+            int body = position + HEADER_SIZE;
+            String id = readString(buffer, body + 9);
+            boolean copy;
+            if (buffer.get(body) == TYPE_INSERT) {
+                Location location = locationMap.get(id);
+                copy = location != null && location.segment == segment && location.offset == position;
+            } else {
+                // 被删的消息在更早的段里, 而且那个段还在, 墓碑要留着
+                long target = buffer.getLong(body + 1);
+                copy = target < segment.id && segmentMap.containsKey(target) && !locationMap.containsKey(id);
+            }
+            if (copy) {
+                byte[] record = new byte[HEADER_SIZE + length];
+                ByteBuffer read = buffer.duplicate();
+                read.position(position);
+                read.get(record);
+                int offset = append(record);
+                if (record[HEADER_SIZE] == TYPE_INSERT) {
+                    segment.live--;
+                    active.records++;
+                    active.live++;
+                    locationMap.put(id, new Location(active, offset));
+                }
+            }
+            position = body + length;
+        }
+        // 旧段里的已经落盘了, 复制过去的没刷盘前不能删旧段, 不然断电就丢了
+        active.buffer.force();
+        segmentMap.remove(segment.id);
+        unmap(segment.buffer);
+        if (!segment.file.delete() && log.isWarnEnabled()) {
+            log.warn("sse MappedFileMessageRepository delete segment fail {}", segment.file);
+        }
+    }
+
+    /**
+     * 写墓碑, 这条消息不在日志里时什么都不做
+     */
+    private void appendDelete(String id) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            Location location = locationMap.remove(id);
+            if (location == null) {
+                return;
+            }
+            location.segment.live--;
+            byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer body = ByteBuffer.allocate(1 + 8 + 2 + idBytes.length);
+            body.put(TYPE_DELETE);
+            body.putLong(location.segment.id);
+            body.putShort((short) idBytes.length);
+            body.put(idBytes);
+            append(toRecord(body.array()));
+            afterAppend();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 追加到当前段, 放不下时换新段. 调用时持有lock
+     *
+     * @return 记录在当前段的位置
+     */
+    private int append(byte[] record) {
+        Segment segment = active;
+        // 末尾要留出一个长度=0的结束标记
+        if (segment.position + record.length + 4 > segment.buffer.capacity()) {
+            try {
+                segment = roll(record.length + 4);
+            } catch (IOException e) {
+                LambdaUtil.sneakyThrows(e);
+            }
+        }
+        int offset = segment.position;
+        ByteBuffer write = segment.buffer.duplicate();
+        write.position(offset);
+        write.put(record);
+        segment.position = offset + record.length;
+        return offset;
+    }
+
+    /**
+     * 调用时持有lock
+     */
+    private void afterAppend() {
+        if (flushInterval <= 0) {
+            active.buffer.force();
+        } else {
+            dirty.set(true);
+        }
+    }
+
+    /**
+     * 旧段刷盘, 新建一个段. 调用时持有lock
+     *
+     * @param minSize 新段至少多大, 大消息会超过 {@link #segmentSize}
+     */
+    private Segment roll(int minSize) throws IOException {
+        Segment old = active;
+        if (old != null) {
+            old.buffer.force();
+        }
+        long segmentId = segmentMap.isEmpty() ? 1L : segmentMap.lastKey() + 1L;
+        File file = new File(directory, String.format("%019d%s", segmentId, SEGMENT_SUFFIX));
+        Segment segment = new Segment(segmentId, file, map(file, Math.max(segmentSize, minSize)));
+        segmentMap.put(segmentId, segment);
+        active = segment;
+        return segment;
+    }
+
+    private byte[] encodeInsert(long sequence, String id, Message message) {
+        Map<String, Object> map = AtLeastOnceMessage.toMap(message);
+        byte[] json;
+        try {
+            json = objectMapper.writeValueAsBytes(map);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("message can not serialize to json: " + id + ", " + e, e);
+        }
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 8 + 2 + idBytes.length + json.length);
+        buffer.put(TYPE_INSERT);
+        buffer.putLong(sequence);
+        buffer.putShort((short) idBytes.length);
+        buffer.put(idBytes);
+        buffer.put(json);
+        return toRecord(buffer.array());
+    }
+
+    private Message decodeInsert(ByteBuffer buffer, int offset, int length) throws IOException, ClassNotFoundException {
+        int body = offset + HEADER_SIZE;
+        String id = readString(buffer, body + 9);
+        int jsonOffset = body + 11 + (buffer.getShort(body + 9) & 0xFFFF);
+        byte[] json = new byte[body + length - jsonOffset];
+        ByteBuffer read = buffer.duplicate();
+        read.position(jsonOffset);
+        read.get(json);
+        Map source = objectMapper.readValue(json, Map.class);
+        AtLeastOnceMessage message = AtLeastOnceMessage.fromMap(source, autoType, classNotFoundSet);
+        message.setId(id);
+        return message;
+    }
+
+    private static byte[] toRecord(byte[] body) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(body, 0, body.length);
+        byte[] record = new byte[HEADER_SIZE + body.length];
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.putInt(body.length);
+        buffer.putInt((int) crc32.getValue());
+        buffer.put(body);
+        return record;
+    }
+
+    /**
+     * @return 这个位置完整的记录的内容长度, 0=段结束或者写了一半
+     */
+    private static int readLength(ByteBuffer buffer, int position, CRC32 crc32) {
+        if (position + HEADER_SIZE > buffer.capacity()) {
+            return 0;
+        }
+        int length = buffer.getInt(position);
+        if (length <= 0 || length > buffer.capacity() - position - HEADER_SIZE) {
+            return 0;
+        }
+        ByteBuffer read = buffer.duplicate();
+        read.position(position + HEADER_SIZE);
+        read.limit(position + HEADER_SIZE + length);
+        crc32.reset();
+        crc32.update(read);
+        return (int) crc32.getValue() == buffer.getInt(position + 4) ? length : 0;
+    }
+
+    private static String readString(ByteBuffer buffer, int position) {
+        int length = buffer.getShort(position) & 0xFFFF;
+        byte[] bytes = new byte[length];
+        ByteBuffer read = buffer.duplicate();
+        read.position(position + 2);
+        read.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            if (randomAccessFile.length() < size) {
+                randomAccessFile.setLength(size);
+            }
+            // 关掉通道后映射还有效
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * 马上解除映射, 不等GC. 失败了就等GC
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (NoSuchMethodException e) {
+            // java8
+            try {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (Exception ignored) {
+            }
+        } catch (Exception ignored) {
+        }
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void checkClose() {
+        if (closed) {
+            throw new IllegalStateException("MappedFileMessageRepository is closed: " + directory);
+        }
+    }
+
+    /**
+     * 定时刷盘和整理, 第一次设置时创建
+     */
+    private void schedule() {
+        if (scheduled != null || closed) {
+            return;
+        }
+        scheduled = PlatformDependentUtil.newScheduled(1, () -> "SSE-MappedFileMessageRepository-", e -> {
+            if (log.isWarnEnabled()) {
+                log.warn("sse MappedFileMessageRepository schedule error {}", e.toString(), e);
+            }
+        });
+        if (flushInterval > 0) {
+            scheduled.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        }
+        scheduled.scheduleWithFixedDelay(this::compact, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * @param segmentSize 新段的大小, 已有的段不变
+     */
+    public void setSegmentSize(int segmentSize) {
+        if (segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("segmentSize too small: " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * @param flushInterval 刷盘间隔(毫秒), 0=每条都刷盘
+     */
+    public void setFlushInterval(long flushInterval) {
+        lock.lock();
+        try {
+            if (scheduled != null) {
+                scheduled.shutdown();
+                scheduled = null;
+            }
+            this.flushInterval = flushInterval;
+            schedule();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getCompactRatio() {
+        return compactRatio;
+    }
+
+    /**
+     * @param compactRatio 旧段里有效的插入记录占比不超过多少时整理, 0=只整理全部无效的段
+     */
+    public void setCompactRatio(double compactRatio) {
+        this.compactRatio = compactRatio;
+    }
+
+    public ObjectMapper getObjectMapper() {
+        return objectMapper;
+    }
+
+    public void setObjectMapper(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    public SseServerProperties.AutoType getAutoType() {
+        return autoType;
+    }
+
+    public void setAutoType(SseServerProperties.AutoType autoType) {
+        this.autoType = autoType;
+    }
+
+    /**
+     * @return 段文件个数
+     */
+    public int getSegmentCount() {
+        lock.lock();
+        try {
+            return segmentMap.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 段文件一共占多少字节
+     */
+    public long getDiskBytes() {
+        lock.lock();
+        try {
+            long bytes = 0;
+            for (Segment segment : segmentMap.values()) {
+                bytes += segment.buffer.capacity();
+            }
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MappedFileMessageRepository{" +
+                "directory=" + directory +
+                ", size=" + size() +
+                ", segments=" + segmentMap.size() +
+                ", closed=" + closed +
+                '}';
+    }
+
+    private static class Segment {
+        private final long id;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        /**
+         * 下一条记录写在哪
+         */
+        private int position;
+        /**
+         * 插入记录数
+         */
+        private int records;
+        /**
+         * 有效的插入记录数
+         */
+        private int live;
+
+        private Segment(long id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Location {
+        private final Segment segment;
+        private final int offset;
+
+        private Location(Segment segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * 恢复时找到的插入记录
+     */
+    private static class Ref {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+        private final long sequence;
+
+        private Ref(Segment segment, int offset, int length, long sequence) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.sequence = sequence;
+        }
+    }
+}
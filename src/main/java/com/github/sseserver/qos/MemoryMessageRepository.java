@@ -2,72 +2,159 @@ package com.github.sseserver.qos;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
+/**
+ * 本机内存的消息仓库
+ * 1. 每条消息按最能缩小范围的过滤条件建索引 (用户ID > accessToken > 频道 > 租户ID > 监听名, 见 {@link Message#FILTER_USER_ID}),
+ * 没有过滤条件的单独放. 查询时只看链接命中的几个桶, 再逐个 {@link #match(Query, Message)}.
+ * 2. 超过 {@link #maxThresholdSize} 时按插入顺序淘汰最早的, 不需要全局锁.
+ * 3. 查询结果按插入顺序返回, 不返回已过期的.
+ * 4. 过期 {@link #deleteExpired()} 和淘汰会通知 {@link #addEvictListener(BiConsumer)}.
+ */
 public class MemoryMessageRepository implements MessageRepository {
     public int maxThresholdSize = Integer.getInteger("sseserver.MemoryMessageRepository.maxThresholdSize",
             1000);
-    protected final Map<String, Message> messageMap = Collections.synchronizedMap(new LinkedHashMap<String, Message>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry eldest) {
-            return size() > maxThresholdSize;
-        }
-    });
-    protected final List<Consumer<Message>> deleteListenerList = new LinkedList<>();
+    /**
+     * 建索引的过滤条件, 按优先级
+     */
+    private static final int[] INDEX_FILTERS = {Message.FILTER_USER_ID, Message.FILTER_ACCESS_TOKEN,
+            Message.FILTER_CHANNEL, Message.FILTER_TENANT_ID, Message.FILTER_LISTENER_NAME};
+    private static final String NO_FILTER = "";
+
+    private final Map<String, Node> nodeMap = new ConcurrentHashMap<>();
+    /**
+     * ID = 消息, 按插入顺序. 是 {@link #nodeMap} 的视图, 可以查和删 (删除同 {@link #delete(String)}), 新增用 {@link #insert(Message)}
+     */
+    protected final Map<String, Message> messageMap = new MessageMapView();
+    /**
+     * 过滤条件 = (值 = 消息)
+     */
+    private final Map<Integer, Map<String, Set<Node>>> indexMap = new HashMap<>();
+    /**
+     * 插入顺序, 用于淘汰. 删掉的消息留在里面, 淘汰或整理时跳过
+     */
+    private final Queue<Node> insertQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger insertQueueSize = new AtomicInteger();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final AtomicLong sequence = new AtomicLong();
+    protected final List<Consumer<Message>> deleteListenerList = new CopyOnWriteArrayList<>();
+    protected final List<BiConsumer<Message, EvictReason>> evictListenerList = new CopyOnWriteArrayList<>();
     private final boolean primary;
 
     public MemoryMessageRepository() {
-        this.primary = false;
+        this(false);
     }
 
     public MemoryMessageRepository(boolean primary) {
         this.primary = primary;
+        for (int filter : INDEX_FILTERS) {
+            indexMap.put(filter, new ConcurrentHashMap<>());
+        }
+        indexMap.put(0, new ConcurrentHashMap<>());
     }
 
     @Override
     public String insert(Message message) {
         String id = message.getId();
-        messageMap.put(id, message);
+        Node node = new Node(message, sequence.incrementAndGet());
+        // 先建索引再放进去, 和并发的删除交错时不会留下没人删的索引
+        index(node, true);
+        Node old = nodeMap.put(id, node);
+        if (old != null) {
+            index(old, false);
+        }
+        insertQueue.offer(node);
+        insertQueueSize.incrementAndGet();
+        evict();
         return id;
     }
 
     @Override
     public List<Message> list() {
-        return new ArrayList<>(messageMap.values());
+        return toMessageList(new ArrayList<>(nodeMap.values()));
     }
 
     @Override
     public List<Message> select(Query query) {
-        if (messageMap.isEmpty()) {
+        if (nodeMap.isEmpty()) {
             return Collections.emptyList();
         }
-        List<Message> list = new ArrayList<>(2);
-        for (Message message : messageMap.values()) {
-            if (match(query, message)) {
-                list.add(message);
+        List<Node> candidates = new ArrayList<>(2);
+        collect(Message.FILTER_USER_ID, query.getUserId(), candidates);
+        collect(Message.FILTER_ACCESS_TOKEN, query.getAccessToken(), candidates);
+        collect(Message.FILTER_CHANNEL, query.getChannel(), candidates);
+        collect(Message.FILTER_TENANT_ID, query.getTenantId(), candidates);
+        Set<String> listeners = query.getListeners();
+        if (listeners != null) {
+            for (String listener : listeners) {
+                collect(Message.FILTER_LISTENER_NAME, listener, candidates);
             }
         }
-        return list;
+        collect(0, NO_FILTER, candidates);
+        if (candidates.isEmpty()) {
+            return Collections.emptyList();
+        }
+        long now = System.currentTimeMillis();
+        List<Node> list = new ArrayList<>(candidates.size());
+        for (Node node : candidates) {
+            // 索引和nodeMap之间有短暂的不一致, 以nodeMap为准
+            if (nodeMap.get(node.message.getId()) == node
+                    && !node.message.isExpired(now)
+                    && match(query, node.message)) {
+                list.add(node);
+            }
+        }
+        return toMessageList(list);
     }
 
     @Override
     public Message delete(String id) {
         if (id != null) {
-            Message remove = messageMap.remove(id);
+            Node remove = nodeMap.remove(id);
             if (remove != null) {
+                index(remove, false);
                 for (Consumer<Message> messageConsumer : deleteListenerList) {
-                    messageConsumer.accept(remove);
+                    messageConsumer.accept(remove.message);
                 }
+                return remove.message;
             }
-            return remove;
-        } else {
-            return null;
         }
+        return null;
+    }
+
+    @Override
+    public int deleteExpired() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (Node node : nodeMap.values()) {
+            if (node.message.isExpired(now) && remove(node, EvictReason.EXPIRED)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void addEvictListener(BiConsumer<Message, EvictReason> listener) {
+        evictListenerList.add(listener);
     }
 
     @Override
     public void close() {
-        messageMap.clear();
+        nodeMap.clear();
+        for (Map<String, Set<Node>> index : indexMap.values()) {
+            index.clear();
+        }
+        insertQueue.clear();
+        insertQueueSize.set(0);
     }
 
     @Override
@@ -80,6 +167,123 @@ public class MemoryMessageRepository implements MessageRepository {
         return primary;
     }
 
+    public int size() {
+        return nodeMap.size();
+    }
+
+    private boolean remove(Node node, EvictReason reason) {
+        if (!nodeMap.remove(node.message.getId(), node)) {
+            return false;
+        }
+        index(node, false);
+        for (BiConsumer<Message, EvictReason> listener : evictListenerList) {
+            listener.accept(node.message, reason);
+        }
+        return true;
+    }
+
+    /**
+     * 超过上限时淘汰最早插入的 (不通知删除监听, 通知淘汰监听)
+     */
+    private void evict() {
+        while (nodeMap.size() > maxThresholdSize) {
+            Node eldest = insertQueue.poll();
+            if (eldest == null) {
+                break;
+            }
+            insertQueueSize.decrementAndGet();
+            remove(eldest, EvictReason.EVICTED);
+        }
+        // 删掉的太多时整理一次, 队列不会一直涨
+        if (insertQueueSize.get() > (maxThresholdSize << 1) + 16 && compacting.compareAndSet(false, true)) {
+            try {
+                for (Iterator<Node> iterator = insertQueue.iterator(); iterator.hasNext(); ) {
+                    Node node = iterator.next();
+                    if (nodeMap.get(node.message.getId()) != node) {
+                        iterator.remove();
+                        insertQueueSize.decrementAndGet();
+                    }
+                }
+            } finally {
+                compacting.set(false);
+            }
+        }
+    }
+
+    private void index(Node node, boolean add) {
+        int filter = node.indexFilter;
+        Map<String, Set<Node>> index = indexMap.get(filter);
+        for (String key : indexKeys(node.message, filter)) {
+            if (add) {
+                index.compute(key, (k, set) -> {
+                    if (set == null) {
+                        set = ConcurrentHashMap.newKeySet();
+                    }
+                    set.add(node);
+                    return set;
+                });
+            } else {
+                index.computeIfPresent(key, (k, set) -> {
+                    set.remove(node);
+                    return set.isEmpty() ? null : set;
+                });
+            }
+        }
+    }
+
+    private void collect(int filter, Serializable value, List<Node> candidates) {
+        if (value == null) {
+            return;
+        }
+        Set<Node> set = indexMap.get(filter).get(value.toString());
+        if (set != null) {
+            candidates.addAll(set);
+        }
+    }
+
+    private static Collection<String> indexKeys(Message message, int filter) {
+        switch (filter) {
+            case Message.FILTER_USER_ID:
+                return toKeys(message.getUserIdList());
+            case Message.FILTER_ACCESS_TOKEN:
+                return toKeys(message.getAccessTokenList());
+            case Message.FILTER_CHANNEL:
+                return toKeys(message.getChannelList());
+            case Message.FILTER_TENANT_ID:
+                return toKeys(message.getTenantIdList());
+            case Message.FILTER_LISTENER_NAME:
+                return message.getListenerName() != null ?
+                        Collections.singletonList(message.getListenerName()) : Collections.emptyList();
+            default:
+                return Collections.singletonList(NO_FILTER);
+        }
+    }
+
+    /**
+     * 和 {@link #equals(Serializable, Serializable)} 一致, 类型不同时按toString比较
+     */
+    private static Collection<String> toKeys(Collection<? extends Serializable> values) {
+        if (values == null || values.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Set<String> keys = new LinkedHashSet<>(values.size());
+        for (Serializable value : values) {
+            if (value != null) {
+                keys.add(value.toString());
+            }
+        }
+        return keys;
+    }
+
+    private static List<Message> toMessageList(List<Node> nodes) {
+        nodes.sort(Comparator.comparingLong(o -> o.sequence));
+        List<Message> list = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            list.add(node.message);
+        }
+        return list;
+    }
+
     protected boolean match(Query query, Message message) {
         if (message.isFilter(Message.FILTER_TENANT_ID)
                 && !exist(query.getTenantId(), message.getTenantIdList())) {
@@ -133,5 +337,99 @@ public class MemoryMessageRepository implements MessageRepository {
 
     public void setMaxThresholdSize(int maxThresholdSize) {
         this.maxThresholdSize = maxThresholdSize;
+        evict();
+    }
+
+    private class MessageMapView extends AbstractMap<String, Message> {
+        @Override
+        public int size() {
+            return nodeMap.size();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return nodeMap.containsKey(key);
+        }
+
+        @Override
+        public Message get(Object key) {
+            Node node = nodeMap.get(key);
+            return node != null ? node.message : null;
+        }
+
+        @Override
+        public Message remove(Object key) {
+            return key instanceof String ? delete((String) key) : null;
+        }
+
+        @Override
+        public Set<Entry<String, Message>> entrySet() {
+            return new AbstractSet<Entry<String, Message>>() {
+                @Override
+                public int size() {
+                    return nodeMap.size();
+                }
+
+                @Override
+                public Iterator<Entry<String, Message>> iterator() {
+                    Iterator<Message> iterator = list().iterator();
+                    return new Iterator<Entry<String, Message>>() {
+                        private Message last;
+
+                        @Override
+                        public boolean hasNext() {
+                            return iterator.hasNext();
+                        }
+
+                        @Override
+                        public Entry<String, Message> next() {
+                            last = iterator.next();
+                            return new SimpleImmutableEntry<>(last.getId(), last);
+                        }
+
+                        @Override
+                        public void remove() {
+                            if (last == null) {
+                                throw new IllegalStateException();
+                            }
+                            delete(last.getId());
+                            last = null;
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    /**
+     * 消息和插入顺序, 按对象本身比较
+     */
+    private static class Node {
+        private final Message message;
+        private final long sequence;
+        /**
+         * 建索引用的过滤条件, 0=没有过滤条件
+         */
+        private final int indexFilter;
+
+        private Node(Message message, long sequence) {
+            this.message = message;
+            this.sequence = sequence;
+            this.indexFilter = indexFilter(message);
+        }
+
+        private static int indexFilter(Message message) {
+            for (int filter : INDEX_FILTERS) {
+                if (message.isFilter(filter)) {
+                    return filter;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return message.getId();
+        }
     }
 }
@@ -38,6 +38,18 @@ public interface Message extends Serializable {
 
     int getFilters();
 
+    /**
+     * @return 过期时间(毫秒时间戳), 0=不过期
+     */
+    default long getExpireTime() {
+        return 0L;
+    }
+
+    default boolean isExpired(long now) {
+        long expireTime = getExpireTime();
+        return expireTime > 0 && now >= expireTime;
+    }
+
     default boolean isFilter(int filter) {
         return (getFilters() & filter) != 0;
     }
@@ -3,6 +3,7 @@ package com.github.sseserver.qos;
 import java.io.Serializable;
 import java.util.List;
 import java.util.Set;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 public interface MessageRepository extends AutoCloseable {
@@ -43,8 +44,37 @@ public interface MessageRepository extends AutoCloseable {
 
     void addDeleteListener(Consumer<Message> listener);
 
+    /**
+     * 删除已过期的消息 {@link Message#getExpireTime()}, 定时调用
+     *
+     * @return 删除的数量
+     */
+    default int deleteExpired() {
+        return 0;
+    }
+
+    /**
+     * 消息过期或超过容量被淘汰时通知 (不是 {@link #delete(String)} 删除的, 不会通知 {@link #addDeleteListener(Consumer)})
+     *
+     * @param listener 消息, 原因
+     */
+    default void addEvictListener(BiConsumer<Message, EvictReason> listener) {
+
+    }
+
     boolean isPrimary();
 
+    enum EvictReason {
+        /**
+         * 过期
+         */
+        EXPIRED,
+        /**
+         * 超过容量
+         */
+        EVICTED
+    }
+
     interface Query {
         Serializable getTenantId();
 
@@ -3,13 +3,24 @@ package com.github.sseserver.qos;
 import com.github.sseserver.util.CompletableFuture;
 
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 public class QosCompletableFuture<T> extends CompletableFuture<T> {
+    private static final AtomicReferenceFieldUpdater<QosCompletableFuture, Status> STATUS_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(QosCompletableFuture.class, Status.class, "status");
     /**
      * 消息ID
      * {@link Message#newId(String, String)}}
      */
     private final String messageId;
+    /**
+     * 过期时间(毫秒时间戳), 0=不过期
+     */
+    private volatile long expireTime;
+    /**
+     * 怎么结束的, null=还没结束
+     */
+    private volatile Status status;
 
     public QosCompletableFuture(String messageId) {
         this.messageId = Objects.requireNonNull(messageId);
@@ -20,4 +31,75 @@ public class QosCompletableFuture<T> extends CompletableFuture<T> {
         return messageId;
     }
 
+    public long getExpireTime() {
+        return expireTime;
+    }
+
+    public void setExpireTime(long expireTime) {
+        this.expireTime = expireTime;
+    }
+
+    /**
+     * @return 怎么结束的, null=还没结束
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    @Override
+    public boolean complete(T value) {
+        return complete(value, Status.SUCCEED);
+    }
+
+    /**
+     * @param value  推送成功的数量
+     * @param status 怎么结束的
+     * @return true=这次结束的
+     */
+    public boolean complete(T value, Status status) {
+        if (!isDone() && STATUS_UPDATER.compareAndSet(this, null, status)) {
+            return super.complete(value);
+        }
+        return false;
+    }
+
+    @Override
+    public boolean completeExceptionally(Throwable ex) {
+        if (!isDone() && STATUS_UPDATER.compareAndSet(this, null, Status.FAILED)) {
+            return super.completeExceptionally(ex);
+        }
+        return false;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!isDone() && STATUS_UPDATER.compareAndSet(this, null, Status.CANCELLED)) {
+            return super.cancel(mayInterruptIfRunning);
+        }
+        return isCancelled();
+    }
+
+    public enum Status {
+        /**
+         * 推送成功
+         */
+        SUCCEED,
+        /**
+         * 过期了还没推送成功
+         */
+        EXPIRED,
+        /**
+         * 消息仓库满了, 被淘汰
+         */
+        EVICTED,
+        /**
+         * 推送出错
+         */
+        FAILED,
+        /**
+         * 被取消
+         */
+        CANCELLED
+    }
+
 }
@@ -0,0 +1,848 @@
+package com.github.sseserver.qos;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.sseserver.springboot.SseServerProperties;
+import com.github.sseserver.util.SnowflakeIdWorker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * 存在redis里的消息仓库, 集群里所有机器共用一份. 上线时不用HTTP问一遍其他机器, 机器挂了消息也还在.
+ * 1. 按接收人建索引: 每条消息按最能缩小范围的过滤条件 (和 {@link MemoryMessageRepository} 一样) 放进每个值对应的hash, field=消息ID, value=消息JSON.
+ * 查询时把链接命中的几个hash用管道一次取回来 (一次往返), 再逐个 {@link #match(Query, Message)}.
+ * 2. 每条消息还有一个定位key, 记着在哪些hash里, 删除时用. 有过期时间的消息, 定位key带TTL.
+ * 3. hash里的字段不能单独过期, 查询时跳过并顺手删掉过期的, 另外 {@link #deleteExpired()} 每隔 {@link #getSweepInterval()} 扫一遍.
+ * 4. 批量写入 {@link #insert(Collection)} 和删除 {@link #delete(Collection)} 都走管道.
+ * 5. 删除会广播给其他机器, 所有机器的 {@link #addDeleteListener(Consumer)} 都会收到. 订阅断了的下次 {@link #deleteExpired()} 时重新订阅.
+ * 6. redis命令通过 {@link Commands} 调用, 默认用spring的RedisConnectionFactory, 测试时可以换成本地内存的实现.
+ *
+ * @see SseServerProperties.ClusterConfig.MessageRepository#setType(SseServerProperties.RepositoryEnum)
+ */
+public class RedisMessageRepository implements MessageRepository {
+    private final static Logger log = LoggerFactory.getLogger(RedisMessageRepository.class);
+    public static final long DEFAULT_SWEEP_INTERVAL = Long.getLong("sseserver.RedisMessageRepository.sweepInterval", 60_000L);
+    private static final int SCAN_BATCH_SIZE = 100;
+    /**
+     * 建索引的过滤条件, 按优先级, 和key里的缩写
+     */
+    private static final int[] INDEX_FILTERS = {Message.FILTER_USER_ID, Message.FILTER_ACCESS_TOKEN,
+            Message.FILTER_CHANNEL, Message.FILTER_TENANT_ID, Message.FILTER_LISTENER_NAME};
+    private static final String[] INDEX_NAMES = {"u", "a", "c", "t", "l"};
+    private static final String NO_FILTER = "*";
+
+    private final Commands commands;
+    private final String keyPrefix;
+    private final byte[] deleteChannel;
+    private final String instanceId = String.valueOf(SnowflakeIdWorker.INSTANCE.nextId());
+    private final boolean primary;
+    private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis() * 1000L);
+    private final List<Consumer<Message>> deleteListenerList = new CopyOnWriteArrayList<>();
+    private final List<BiConsumer<Message, EvictReason>> evictListenerList = new CopyOnWriteArrayList<>();
+    private final Set<String> classNotFoundSet = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    private volatile AutoCloseable subscription;
+    private volatile boolean closed;
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private volatile long lastSweepTime = System.currentTimeMillis();
+    private long sweepInterval = DEFAULT_SWEEP_INTERVAL;
+    private ObjectMapper objectMapper = new ObjectMapper();
+    private SseServerProperties.AutoType autoType = SseServerProperties.AutoType.CLASS_NOT_FOUND_USE_MAP;
+
+    /**
+     * @param redisConnectionFactory spring的RedisConnectionFactory
+     * @param keyPrefix              key的前缀, 比如 sse:default:q:
+     * @param primary                是否主仓库
+     */
+    public RedisMessageRepository(Object redisConnectionFactory, String keyPrefix, boolean primary) {
+        this(new SpringCommands(redisConnectionFactory), keyPrefix, primary);
+    }
+
+    public RedisMessageRepository(Commands commands, String keyPrefix, boolean primary) {
+        this.commands = Objects.requireNonNull(commands);
+        this.keyPrefix = keyPrefix;
+        this.deleteChannel = bytes(keyPrefix + "deleted");
+        this.primary = primary;
+    }
+
+    @Override
+    public String insert(Message message) {
+        insert(Collections.singletonList(message));
+        return message.getId();
+    }
+
+    /**
+     * 批量写入, 一次往返
+     *
+     * @param messages 消息
+     */
+    public void insert(Collection<? extends Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<Object[]> list = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            Map<String, Object> map = AtLeastOnceMessage.toMap(message);
+            map.put("sequence", sequence.incrementAndGet());
+            byte[] json;
+            try {
+                json = objectMapper.writeValueAsBytes(map);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("message can not serialize to json: " + message.getId() + ", " + e, e);
+            }
+            long expireTime = message.getExpireTime();
+            long ttl = expireTime > 0 ? Math.max(1L, expireTime - now) : 0L;
+            list.add(new Object[]{message.getId(), indexKeys(message), json, ttl});
+        }
+        commands.pipeline(pipeline -> {
+            for (Object[] item : list) {
+                byte[] id = bytes((String) item[0]);
+                List<String> indexKeys = (List<String>) item[1];
+                // 过滤条件的值都是空的, 谁也收不到
+                if (indexKeys.isEmpty()) {
+                    continue;
+                }
+                for (String indexKey : indexKeys) {
+                    pipeline.hSet(bytes(indexKey), id, (byte[]) item[2]);
+                }
+                pipeline.set(locatorKey((String) item[0]), bytes(String.join("\n", indexKeys)), (Long) item[3]);
+            }
+        });
+    }
+
+    @Override
+    public List<Message> list() {
+        List<byte[]> keys = new ArrayList<>();
+        commands.scan(keyPrefix + "i:*", keys::add);
+        Map<String, Item> itemMap = new LinkedHashMap<>();
+        List<Item> expiredList = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < keys.size(); i += SCAN_BATCH_SIZE) {
+            List<byte[]> batch = keys.subList(i, Math.min(keys.size(), i + SCAN_BATCH_SIZE));
+            List<Object> results = commands.pipeline(pipeline -> batch.forEach(pipeline::hVals));
+            for (int j = 0; j < batch.size(); j++) {
+                collect(batch.get(j), results.get(j), now, null, itemMap, expiredList);
+            }
+        }
+        removeExpired(expiredList);
+        return toMessageList(itemMap.values());
+    }
+
+    @Override
+    public List<Message> select(Query query) {
+        List<byte[]> keys = new ArrayList<>(4);
+        addIndexKey(Message.FILTER_USER_ID, query.getUserId(), keys);
+        addIndexKey(Message.FILTER_ACCESS_TOKEN, query.getAccessToken(), keys);
+        addIndexKey(Message.FILTER_CHANNEL, query.getChannel(), keys);
+        addIndexKey(Message.FILTER_TENANT_ID, query.getTenantId(), keys);
+        Set<String> listeners = query.getListeners();
+        if (listeners != null) {
+            for (String listener : listeners) {
+                addIndexKey(Message.FILTER_LISTENER_NAME, listener, keys);
+            }
+        }
+        keys.add(bytes(keyPrefix + "i:" + NO_FILTER));
+        List<Object> results = commands.pipeline(pipeline -> keys.forEach(pipeline::hVals));
+
+        Map<String, Item> itemMap = new LinkedHashMap<>();
+        List<Item> expiredList = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < keys.size(); i++) {
+            collect(keys.get(i), results.get(i), now, query, itemMap, expiredList);
+        }
+        removeExpired(expiredList);
+        return toMessageList(itemMap.values());
+    }
+
+    @Override
+    public Message delete(String id) {
+        if (id == null) {
+            return null;
+        }
+        List<Message> list = delete(Collections.singletonList(id));
+        return list.isEmpty() ? null : list.get(0);
+    }
+
+    /**
+     * 批量删除, 两次往返 (先查定位key, 再删)
+     *
+     * @param ids 消息ID
+     * @return 删掉的消息, 已经不在的不返回
+     */
+    public List<Message> delete(Collection<String> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> idList = new ArrayList<>(ids);
+        List<Object> locators = commands.pipeline(pipeline -> {
+            for (String id : idList) {
+                pipeline.get(locatorKey(id));
+            }
+        });
+        List<String> foundIdList = new ArrayList<>(idList.size());
+        List<String[]> foundKeyList = new ArrayList<>(idList.size());
+        for (int i = 0; i < idList.size(); i++) {
+            byte[] locator = (byte[]) locators.get(i);
+            if (locator != null) {
+                foundIdList.add(idList.get(i));
+                foundKeyList.add(string(locator).split("\n"));
+            }
+        }
+        if (foundIdList.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Object> results = commands.pipeline(pipeline -> {
+            for (int i = 0; i < foundIdList.size(); i++) {
+                byte[] id = bytes(foundIdList.get(i));
+                String[] indexKeys = foundKeyList.get(i);
+                pipeline.hGet(bytes(indexKeys[0]), id);
+                for (String indexKey : indexKeys) {
+                    pipeline.hDel(bytes(indexKey), id);
+                }
+                pipeline.del(locatorKey(foundIdList.get(i)));
+            }
+        });
+        List<Message> deleteList = new ArrayList<>(foundIdList.size());
+        List<byte[]> jsonList = new ArrayList<>(foundIdList.size());
+        int index = 0;
+        for (String[] indexKeys : foundKeyList) {
+            byte[] json = (byte[]) results.get(index);
+            index += 1 + indexKeys.length;
+            // 并发删除时, 删掉定位key的那个算删除成功
+            Object del = results.get(index++);
+            if (json != null && del instanceof Number && ((Number) del).longValue() > 0) {
+                Message message = decode(json);
+                if (message != null) {
+                    deleteList.add(message);
+                    jsonList.add(json);
+                }
+            }
+        }
+        if (!jsonList.isEmpty()) {
+            commands.pipeline(pipeline -> {
+                for (byte[] json : jsonList) {
+                    pipeline.publish(deleteChannel, deletedMessage(json));
+                }
+            });
+        }
+        for (Message message : deleteList) {
+            notifyDelete(message);
+        }
+        return deleteList;
+    }
+
+    /**
+     * 扫一遍所有的hash, 删掉过期的. 间隔没到 {@link #getSweepInterval()} 时什么都不做
+     */
+    @Override
+    public int deleteExpired() {
+        subscribe();
+        long now = System.currentTimeMillis();
+        if (now - lastSweepTime < sweepInterval || !sweeping.compareAndSet(false, true)) {
+            return 0;
+        }
+        try {
+            lastSweepTime = now;
+            List<byte[]> keys = new ArrayList<>();
+            commands.scan(keyPrefix + "i:*", keys::add);
+            int count = 0;
+            for (int i = 0; i < keys.size(); i += SCAN_BATCH_SIZE) {
+                List<byte[]> batch = keys.subList(i, Math.min(keys.size(), i + SCAN_BATCH_SIZE));
+                List<Object> results = commands.pipeline(pipeline -> batch.forEach(pipeline::hVals));
+                List<Item> expiredList = new ArrayList<>();
+                for (int j = 0; j < batch.size(); j++) {
+                    collect(batch.get(j), results.get(j), now, null, new HashMap<>(), expiredList);
+                }
+                count += removeExpired(expiredList);
+            }
+            return count;
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    @Override
+    public void addEvictListener(BiConsumer<Message, EvictReason> listener) {
+        evictListenerList.add(listener);
+    }
+
+    @Override
+    public void addDeleteListener(Consumer<Message> listener) {
+        deleteListenerList.add(listener);
+        subscribe();
+    }
+
+    @Override
+    public boolean isPrimary() {
+        return primary;
+    }
+
+    /**
+     * 订阅别的机器的删除, 失败了 (比如启动时redis连不上) 或订阅断了, 下次 {@link #deleteExpired()} 时重试
+     */
+    private void subscribe() {
+        if (closed || deleteListenerList.isEmpty() || !subscribed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            subscription = commands.subscribe(deleteChannel, this::onDeleted, this::onSubscriptionLost);
+        } catch (Exception e) {
+            subscribed.set(false);
+            if (log.isWarnEnabled()) {
+                log.warn("sse RedisMessageRepository subscribe error {}", e.toString(), e);
+            }
+        }
+        if (closed) {
+            closeSubscription();
+        }
+    }
+
+    /**
+     * 订阅断了, 断开期间别的机器的删除收不到
+     */
+    private void onSubscriptionLost() {
+        subscription = null;
+        subscribed.set(false);
+        if (log.isWarnEnabled()) {
+            log.warn("sse RedisMessageRepository subscription lost {}, resubscribe at next deleteExpired", keyPrefix);
+        }
+    }
+
+    private void closeSubscription() {
+        AutoCloseable subscription = this.subscription;
+        this.subscription = null;
+        if (subscription == null) {
+            return;
+        }
+        try {
+            subscription.close();
+        } catch (Exception e) {
+            if (log.isWarnEnabled()) {
+                log.warn("sse RedisMessageRepository unsubscribe error {}", e.toString(), e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        closeSubscription();
+    }
+
+    /**
+     * 别的机器删除了消息
+     */
+    private void onDeleted(byte[] body) {
+        int split = indexOf(body, (byte) '\n');
+        if (split < 0 || instanceId.equals(new String(body, 0, split, StandardCharsets.UTF_8))) {
+            return;
+        }
+        Message message = decode(Arrays.copyOfRange(body, split + 1, body.length));
+        if (message != null) {
+            notifyDelete(message);
+        }
+    }
+
+    private void notifyDelete(Message message) {
+        for (Consumer<Message> listener : deleteListenerList) {
+            try {
+                listener.accept(message);
+            } catch (Exception e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("sse RedisMessageRepository deleteListener error {}", e.toString(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 解析一个hash的查询结果, 过期的放进expiredList, 没过期且符合条件的放进itemMap
+     *
+     * @param query null=不用过滤
+     */
+    private void collect(byte[] indexKey, Object values, long now, Query query,
+                         Map<String, Item> itemMap, List<Item> expiredList) {
+        if (!(values instanceof Collection)) {
+            return;
+        }
+        for (Object value : (Collection<?>) values) {
+            Item item = decodeItem(indexKey, (byte[]) value);
+            if (item == null || itemMap.containsKey(item.message.getId())) {
+                continue;
+            }
+            if (item.message.isExpired(now)) {
+                expiredList.add(item);
+            } else if (query == null || match(query, item.message)) {
+                itemMap.put(item.message.getId(), item);
+            }
+        }
+    }
+
+    /**
+     * 删掉过期的字段和定位key, 删掉的通知淘汰监听
+     *
+     * @return 删掉了多少条
+     */
+    private int removeExpired(List<Item> expiredList) {
+        if (expiredList.isEmpty()) {
+            return 0;
+        }
+        List<Object> results = commands.pipeline(pipeline -> {
+            for (Item item : expiredList) {
+                pipeline.hDel(item.indexKey, bytes(item.message.getId()));
+                pipeline.del(locatorKey(item.message.getId()));
+            }
+        });
+        int count = 0;
+        Set<String> notified = new HashSet<>();
+        for (int i = 0; i < expiredList.size(); i++) {
+            Object hDel = results.get(i * 2);
+            Message message = expiredList.get(i).message;
+            if (hDel instanceof Number && ((Number) hDel).longValue() > 0 && notified.add(message.getId())) {
+                count++;
+                for (BiConsumer<Message, EvictReason> listener : evictListenerList) {
+                    listener.accept(message, EvictReason.EXPIRED);
+                }
+            }
+        }
+        return count;
+    }
+
+    private Item decodeItem(byte[] indexKey, byte[] json) {
+        Map source;
+        try {
+            source = objectMapper.readValue(json, Map.class);
+        } catch (IOException e) {
+            if (log.isWarnEnabled()) {
+                log.warn("sse RedisMessageRepository decode {} error {}", string(indexKey), e.toString(), e);
+            }
+            return null;
+        }
+        Message message;
+        try {
+            message = AtLeastOnceMessage.fromMap(source, autoType, classNotFoundSet);
+        } catch (ClassNotFoundException e) {
+            if (log.isWarnEnabled()) {
+                log.warn("sse RedisMessageRepository decode {} error {}", string(indexKey), e.toString(), e);
+            }
+            return null;
+        }
+        Object sequence = source.get("sequence");
+        return new Item(indexKey, message, sequence instanceof Number ? ((Number) sequence).longValue() : 0L);
+    }
+
+    private Message decode(byte[] json) {
+        Item item = decodeItem(deleteChannel, json);
+        return item != null ? item.message : null;
+    }
+
+    private byte[] deletedMessage(byte[] json) {
+        byte[] from = bytes(instanceId + "\n");
+        byte[] body = Arrays.copyOf(from, from.length + json.length);
+        System.arraycopy(json, 0, body, from.length, json.length);
+        return body;
+    }
+
+    private List<String> indexKeys(Message message) {
+        for (int i = 0; i < INDEX_FILTERS.length; i++) {
+            int filter = INDEX_FILTERS[i];
+            if (!message.isFilter(filter)) {
+                continue;
+            }
+            Collection<?> values;
+            switch (filter) {
+                case Message.FILTER_USER_ID:
+                    values = message.getUserIdList();
+                    break;
+                case Message.FILTER_ACCESS_TOKEN:
+                    values = message.getAccessTokenList();
+                    break;
+                case Message.FILTER_CHANNEL:
+                    values = message.getChannelList();
+                    break;
+                case Message.FILTER_TENANT_ID:
+                    values = message.getTenantIdList();
+                    break;
+                default:
+                    values = Collections.singletonList(message.getListenerName());
+                    break;
+            }
+            Set<String> keys = new LinkedHashSet<>();
+            if (values != null) {
+                for (Object value : values) {
+                    if (value != null) {
+                        keys.add(keyPrefix + "i:" + INDEX_NAMES[i] + ":" + value);
+                    }
+                }
+            }
+            return new ArrayList<>(keys);
+        }
+        return Collections.singletonList(keyPrefix + "i:" + NO_FILTER);
+    }
+
+    private void addIndexKey(int filter, Serializable value, List<byte[]> keys) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < INDEX_FILTERS.length; i++) {
+            if (INDEX_FILTERS[i] == filter) {
+                keys.add(bytes(keyPrefix + "i:" + INDEX_NAMES[i] + ":" + value));
+                return;
+            }
+        }
+    }
+
+    private byte[] locatorKey(String id) {
+        return bytes(keyPrefix + "m:" + id);
+    }
+
+    private static List<Message> toMessageList(Collection<Item> items) {
+        List<Item> list = new ArrayList<>(items);
+        list.sort(Comparator.comparingLong(o -> o.sequence));
+        List<Message> result = new ArrayList<>(list.size());
+        for (Item item : list) {
+            result.add(item.message);
+        }
+        return result;
+    }
+
+    private static int indexOf(byte[] bytes, byte b) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] bytes(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    protected boolean match(Query query, Message message) {
+        if (message.isFilter(Message.FILTER_TENANT_ID)
+                && !exist(query.getTenantId(), message.getTenantIdList())) {
+            return false;
+        }
+        if (message.isFilter(Message.FILTER_CHANNEL)
+                && !exist(query.getChannel(), message.getChannelList())) {
+            return false;
+        }
+        if (message.isFilter(Message.FILTER_ACCESS_TOKEN)
+                && !exist(query.getAccessToken(), message.getAccessTokenList())) {
+            return false;
+        }
+        if (message.isFilter(Message.FILTER_USER_ID)
+                && !exist(query.getUserId(), message.getUserIdList())) {
+            return false;
+        }
+        if (message.isFilter(Message.FILTER_LISTENER_NAME)
+                && !query.existListener(message.getListenerName())) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 从JSON还原的ID类型可能变了 (比如Long变成Integer), 按toString比较
+     */
+    protected boolean exist(Serializable v1, Collection<? extends Serializable> v2) {
+        if (v1 == null || v2 == null) {
+            return false;
+        }
+        String s1 = v1.toString();
+        for (Serializable v : v2) {
+            if (v != null && s1.equals(v.toString())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String getKeyPrefix() {
+        return keyPrefix;
+    }
+
+    public long getSweepInterval() {
+        return sweepInterval;
+    }
+
+    /**
+     * @param sweepInterval 多久扫一遍过期消息(毫秒), 每台机器都会扫
+     */
+    public void setSweepInterval(long sweepInterval) {
+        this.sweepInterval = sweepInterval;
+    }
+
+    public ObjectMapper getObjectMapper() {
+        return objectMapper;
+    }
+
+    public void setObjectMapper(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    public SseServerProperties.AutoType getAutoType() {
+        return autoType;
+    }
+
+    public void setAutoType(SseServerProperties.AutoType autoType) {
+        this.autoType = autoType;
+    }
+
+    @Override
+    public String toString() {
+        return "RedisMessageRepository{" +
+                "keyPrefix='" + keyPrefix + '\'' +
+                ", primary=" + primary +
+                '}';
+    }
+
+    /**
+     * 仓库用到的redis命令
+     */
+    public interface Commands {
+        /**
+         * 管道里执行多个命令, 一次往返
+         *
+         * @param commands 往管道里加命令
+         * @return 每个命令的结果, 和加的顺序一样
+         */
+        List<Object> pipeline(Consumer<Pipeline> commands);
+
+        /**
+         * SCAN 遍历匹配的key
+         *
+         * @param pattern  比如 sse:q:i:*
+         * @param consumer key
+         */
+        void scan(String pattern, Consumer<byte[]> consumer);
+
+        /**
+         * SUBSCRIBE 订阅频道, 订阅要一直保持到返回值close. 订阅断了且不会自己恢复时回调onLost, 仓库之后会重新订阅
+         *
+         * @param channel  频道
+         * @param listener 收到的消息
+         * @param onLost   订阅断了
+         * @return 取消订阅
+         */
+        AutoCloseable subscribe(byte[] channel, Consumer<byte[]> listener, Runnable onLost);
+    }
+
+    /**
+     * 管道里的命令, 结果在 {@link Commands#pipeline(Consumer)} 返回
+     */
+    public interface Pipeline {
+        /**
+         * HSET, 结果 Boolean
+         */
+        void hSet(byte[] key, byte[] field, byte[] value);
+
+        /**
+         * HGET, 结果 byte[] 或 null
+         */
+        void hGet(byte[] key, byte[] field);
+
+        /**
+         * HVALS, 结果 List&lt;byte[]&gt;
+         */
+        void hVals(byte[] key);
+
+        /**
+         * HDEL, 结果 Long 删掉的个数
+         */
+        void hDel(byte[] key, byte[] field);
+
+        /**
+         * SET, 结果 Boolean
+         *
+         * @param ttlMillis 0=不过期
+         */
+        void set(byte[] key, byte[] value, long ttlMillis);
+
+        /**
+         * GET, 结果 byte[] 或 null
+         */
+        void get(byte[] key);
+
+        /**
+         * DEL, 结果 Long 删掉的个数
+         */
+        void del(byte[] key);
+
+        /**
+         * PUBLISH, 结果 Long 收到的个数
+         */
+        void publish(byte[] channel, byte[] message);
+    }
+
+    /**
+     * 用spring的RedisConnectionFactory
+     */
+    public static class SpringCommands implements Commands {
+        private final RedisConnectionFactory connectionFactory;
+        private final RedisTemplate<byte[], byte[]> redisTemplate = new RedisTemplate<>();
+
+        public SpringCommands(Object redisConnectionFactory) {
+            this.connectionFactory = (RedisConnectionFactory) redisConnectionFactory;
+            redisTemplate.setConnectionFactory(connectionFactory);
+            redisTemplate.afterPropertiesSet();
+        }
+
+        @Override
+        public List<Object> pipeline(Consumer<Pipeline> commands) {
+            return redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                commands.accept(new SpringPipeline(connection));
+                return null;
+            }, RedisSerializer.byteArray());
+        }
+
+        @Override
+        public void scan(String pattern, Consumer<byte[]> consumer) {
+            ScanOptions options = ScanOptions.scanOptions().match(pattern).count(SCAN_BATCH_SIZE).build();
+            redisTemplate.execute((RedisCallback<Object>) connection -> {
+                try (Cursor<byte[]> cursor = connection.scan(options)) {
+                    while (cursor.hasNext()) {
+                        consumer.accept(cursor.next());
+                    }
+                }
+                return null;
+            });
+        }
+
+        /**
+         * 不能在 redisTemplate.execute 里订阅, 连接用完归还时会关掉订阅.
+         * 用监听容器, 订阅有专用的连接, 断了容器自己按间隔重新订阅, 所以不会回调onLost
+         */
+        @Override
+        public AutoCloseable subscribe(byte[] channel, Consumer<byte[]> listener, Runnable onLost) {
+            // 一个线程按顺序通知, 容器默认每条消息开一个线程
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                    60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "RedisMessageRepository-subscribe");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+            container.setConnectionFactory(connectionFactory);
+            container.setTaskExecutor(executor);
+            MessageListener messageListener = (message, pattern) -> listener.accept(message.getBody());
+            container.addMessageListener(messageListener, new ChannelTopic(new String(channel, StandardCharsets.UTF_8)));
+            try {
+                container.afterPropertiesSet();
+                container.start();
+            } catch (RuntimeException e) {
+                try {
+                    destroy(container, executor);
+                } catch (Exception destroyError) {
+                    e.addSuppressed(destroyError);
+                }
+                throw e;
+            }
+            return () -> destroy(container, executor);
+        }
+
+        private static void destroy(RedisMessageListenerContainer container, ThreadPoolExecutor executor) throws Exception {
+            try {
+                container.destroy();
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private static class SpringPipeline implements Pipeline {
+        private final RedisConnection connection;
+
+        private SpringPipeline(RedisConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void hSet(byte[] key, byte[] field, byte[] value) {
+            connection.hSet(key, field, value);
+        }
+
+        @Override
+        public void hGet(byte[] key, byte[] field) {
+            connection.hGet(key, field);
+        }
+
+        @Override
+        public void hVals(byte[] key) {
+            connection.hVals(key);
+        }
+
+        @Override
+        public void hDel(byte[] key, byte[] field) {
+            connection.hDel(key, field);
+        }
+
+        @Override
+        public void set(byte[] key, byte[] value, long ttlMillis) {
+            if (ttlMillis > 0) {
+                connection.set(key, value, Expiration.milliseconds(ttlMillis), RedisStringCommands.SetOption.UPSERT);
+            } else {
+                connection.set(key, value);
+            }
+        }
+
+        @Override
+        public void get(byte[] key) {
+            connection.get(key);
+        }
+
+        @Override
+        public void del(byte[] key) {
+            connection.del(key);
+        }
+
+        @Override
+        public void publish(byte[] channel, byte[] message) {
+            connection.publish(channel, message);
+        }
+    }
+
+    private static class Item {
+        private final byte[] indexKey;
+        private final Message message;
+        private final long sequence;
+
+        private Item(byte[] indexKey, Message message, long sequence) {
+            this.indexKey = indexKey;
+            this.message = message;
+            this.sequence = sequence;
+        }
+    }
+}
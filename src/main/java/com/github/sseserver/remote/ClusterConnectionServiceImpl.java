@@ -1,6 +1,7 @@
 package com.github.sseserver.remote;
 
 import com.github.sseserver.ConnectionQueryService;
+import com.github.sseserver.SendService;
 import com.github.sseserver.local.LocalConnectionService;
 import com.github.sseserver.springboot.SseServerProperties;
 import com.github.sseserver.util.CompletableFuture;
@@ -508,6 +509,7 @@ public class ClusterConnectionServiceImpl implements ClusterConnectionService {
             List<RemoteConnectionService> serviceList = ref.get();
 
             Boolean scopeOnWriteable = scopeOnWriteableThreadLocal.get();
+            Priority priority = SendService.currentPriority();
 
             List<URL> remoteUrlList = new ArrayList<>(serviceList.size());
             List<RemoteCompletableFuture<T, RemoteConnectionService>> remoteFutureList = new ArrayList<>(serviceList.size());
@@ -515,9 +517,9 @@ public class ClusterConnectionServiceImpl implements ClusterConnectionService {
                 remoteUrlList.add(remote.getRemoteUrl());
                 // rpc async method call
                 if (scopeOnWriteable != null && scopeOnWriteable) {
-                    remoteFutureList.add(remote.scopeOnWriteable(() -> remoteFunction.apply(remote)));
+                    remoteFutureList.add(remote.scopePriority(priority, () -> remote.scopeOnWriteable(() -> remoteFunction.apply(remote))));
                 } else {
-                    remoteFutureList.add(remoteFunction.apply(remote));
+                    remoteFutureList.add(remote.scopePriority(priority, () -> remoteFunction.apply(remote)));
                 }
             }
 
@@ -527,9 +529,9 @@ public class ClusterConnectionServiceImpl implements ClusterConnectionService {
             if (localService.isPresent()) {
                 LocalConnectionService local = localService.get();
                 if (scopeOnWriteable != null && scopeOnWriteable) {
-                    localPart = local.scopeOnWriteable(() -> localFunction.apply(local));
+                    localPart = local.scopePriority(priority, () -> local.scopeOnWriteable(() -> localFunction.apply(local)));
                 } else {
-                    localPart = localFunction.apply(local);
+                    localPart = local.scopePriority(priority, () -> localFunction.apply(local));
                 }
             } else {
                 localPart = null;
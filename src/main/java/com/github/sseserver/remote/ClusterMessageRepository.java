@@ -15,6 +15,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -91,6 +92,23 @@ public class ClusterMessageRepository implements MessageRepository {
         }
     }
 
+    /**
+     * 只删本机的, 别的机器自己定时删
+     */
+    @Override
+    public int deleteExpired() {
+        MessageRepository localRepository = getLocalRepository();
+        return localRepository != null ? localRepository.deleteExpired() : 0;
+    }
+
+    @Override
+    public void addEvictListener(BiConsumer<Message, EvictReason> listener) {
+        MessageRepository localRepository = getLocalRepository();
+        if (localRepository != null) {
+            localRepository.addEvictListener(listener);
+        }
+    }
+
     public ClusterCompletableFuture<List<Message>, ClusterMessageRepository> listAsync() {
         return mapReduce(
                 RemoteMessageRepository::listAsync,
@@ -120,7 +138,8 @@ public class ClusterMessageRepository implements MessageRepository {
                         return future;
                     }
                 },
-                e -> remoteMessageRepositoryId != null ? e.delete(id) : null,
+                // 本机的消息没有remoteMessageRepositoryId, 也要删
+                e -> e.delete(id),
                 LambdaUtil.filterNull(),
                 LambdaUtil.defaultNull());
     }
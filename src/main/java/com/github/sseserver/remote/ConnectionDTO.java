@@ -42,6 +42,31 @@ public class ConnectionDTO<ACCESS_USER> extends AutoTypeBean {
      */
     private String channel;
 
+    /**
+     * 出站队列里等待写的消息数量
+     */
+    private Integer outboundQueueSize;
+
+    /**
+     * 出站队列满了丢弃的消息数量
+     */
+    private Long outboundDropCount;
+
+    /**
+     * 被限流延迟发送的消息数量
+     */
+    private Long rateLimitDelayCount;
+
+    /**
+     * 被限流丢弃的消息数量
+     */
+    private Long rateLimitDropCount;
+
+    /**
+     * 被限流存到消息仓库的消息数量
+     */
+    private Long rateLimitEnqueueCount;
+
     /**
      * 连接会话持续时间（秒）
      */
@@ -202,6 +227,11 @@ public class ConnectionDTO<ACCESS_USER> extends AutoTypeBean {
         dto.setMessageCount(connection.getCount());
         dto.setTimeout(connection.getTimeout());
         dto.setChannel(connection.getChannel());
+        dto.setOutboundQueueSize(connection.getOutboundQueueSize());
+        dto.setOutboundDropCount(connection.getOutboundDropCount());
+        dto.setRateLimitDelayCount(connection.getRateLimitDelayCount());
+        dto.setRateLimitDropCount(connection.getRateLimitDropCount());
+        dto.setRateLimitEnqueueCount(connection.getRateLimitEnqueueCount());
         dto.setCreateTime(new Date(connection.getCreateTime()));
         dto.setAccessTime(connection.getAccessTime());
 
@@ -442,6 +472,46 @@ public class ConnectionDTO<ACCESS_USER> extends AutoTypeBean {
         this.createTime = createTime;
     }
 
+    public Integer getOutboundQueueSize() {
+        return outboundQueueSize;
+    }
+
+    public void setOutboundQueueSize(Integer outboundQueueSize) {
+        this.outboundQueueSize = outboundQueueSize;
+    }
+
+    public Long getOutboundDropCount() {
+        return outboundDropCount;
+    }
+
+    public void setOutboundDropCount(Long outboundDropCount) {
+        this.outboundDropCount = outboundDropCount;
+    }
+
+    public Long getRateLimitDelayCount() {
+        return rateLimitDelayCount;
+    }
+
+    public void setRateLimitDelayCount(Long rateLimitDelayCount) {
+        this.rateLimitDelayCount = rateLimitDelayCount;
+    }
+
+    public Long getRateLimitDropCount() {
+        return rateLimitDropCount;
+    }
+
+    public void setRateLimitDropCount(Long rateLimitDropCount) {
+        this.rateLimitDropCount = rateLimitDropCount;
+    }
+
+    public Long getRateLimitEnqueueCount() {
+        return rateLimitEnqueueCount;
+    }
+
+    public void setRateLimitEnqueueCount(Long rateLimitEnqueueCount) {
+        this.rateLimitEnqueueCount = rateLimitEnqueueCount;
+    }
+
     public Integer getMessageCount() {
         return messageCount;
     }
@@ -1,5 +1,6 @@
 package com.github.sseserver.remote;
 
+import com.github.sseserver.SendService;
 import com.github.sseserver.local.LocalController.Response;
 import com.github.sseserver.springboot.SseServerProperties;
 import com.github.sseserver.util.*;
@@ -439,6 +440,10 @@ public class RemoteConnectionServiceImpl implements RemoteConnectionService {
         if (scopeOnWriteable != null && scopeOnWriteable) {
             request.put("scopeOnWriteable", true);
         }
+        Priority priority = SendService.currentPriority();
+        if (priority != null) {
+            request.put("priority", priority.name());
+        }
         return asyncPost(urlSendService + uri, extract, request);
     }
 
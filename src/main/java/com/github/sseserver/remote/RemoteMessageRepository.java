@@ -88,6 +88,7 @@ public class RemoteMessageRepository implements MessageRepository {
     public RemoteCompletableFuture<String, RemoteMessageRepository> insertAsync(Message message) {
         Map<String, Object> request = new HashMap<>(8);
         request.put("filters", message.getFilters());
+        request.put("expireTime", message.getExpireTime());
 
         request.put("id", message.getId());
         request.put("body", message.getBody());
@@ -188,6 +189,10 @@ public class RemoteMessageRepository implements MessageRepository {
         RemoteResponseMessage target = new RemoteResponseMessage();
         target.setRemoteMessageRepositoryId(id);
         target.setFilters((Integer) source.get("filters"));
+        Object expireTime = source.get("expireTime");
+        if (expireTime instanceof Number) {
+            target.setExpireTime(((Number) expireTime).longValue());
+        }
 
         target.setId((String) source.get("id"));
         target.setEventName((String) source.get("eventName"));
@@ -12,6 +12,7 @@ public class RemoteResponseMessage implements Message {
     private String eventName;
     private Object body;
     private int filters;
+    private long expireTime;
 
     private String listenerName;
     private Collection<? extends Serializable> tenantIdList;
@@ -48,6 +49,15 @@ public class RemoteResponseMessage implements Message {
         this.filters = filters;
     }
 
+    @Override
+    public long getExpireTime() {
+        return expireTime;
+    }
+
+    public void setExpireTime(long expireTime) {
+        this.expireTime = expireTime;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) {
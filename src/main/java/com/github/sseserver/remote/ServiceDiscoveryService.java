@@ -36,14 +36,8 @@ public interface ServiceDiscoveryService {
             }
             case REDIS: {
                 SseServerProperties.ClusterConfig.Redis redis = config.getRedis();
-                Object redisConnectionFactory;
-                try {
-                    redisConnectionFactory = beanFactory.getBean(redis.getRedisConnectionFactoryBeanName());
-                } catch (BeansException e) {
-                    redisConnectionFactory = beanFactory.getBean(PlatformDependentUtil.REDIS_CONNECTION_FACTORY_CLASS);
-                }
                 return new RedisServiceDiscoveryService(
-                        redisConnectionFactory,
+                        getRedisConnectionFactory(redis, beanFactory),
                         groupName,
                         redis.getRedisKeyRootPrefix(),
                         redis.getRedisInstanceExpireSec(),
@@ -55,6 +49,18 @@ public interface ServiceDiscoveryService {
         }
     }
 
+    /**
+     * @return 按bean名称找, 找不到时按类型找
+     */
+    static Object getRedisConnectionFactory(SseServerProperties.ClusterConfig.Redis redis,
+                                            ListableBeanFactory beanFactory) {
+        try {
+            return beanFactory.getBean(redis.getRedisConnectionFactoryBeanName());
+        } catch (BeansException e) {
+            return beanFactory.getBean(PlatformDependentUtil.REDIS_CONNECTION_FACTORY_CLASS);
+        }
+    }
+
     boolean isPrimary();
 
     HttpPrincipal login(String authorization);
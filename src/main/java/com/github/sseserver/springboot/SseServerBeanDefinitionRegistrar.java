@@ -8,6 +8,7 @@ import com.github.sseserver.local.LocalController;
 import com.github.sseserver.qos.AtLeastOnceSendService;
 import com.github.sseserver.qos.MemoryMessageRepository;
 import com.github.sseserver.qos.MessageRepository;
+import com.github.sseserver.qos.RedisMessageRepository;
 import com.github.sseserver.remote.*;
 import com.github.sseserver.util.PlatformDependentUtil;
 import com.github.sseserver.util.ReferenceCounted;
@@ -192,9 +193,22 @@ public class SseServerBeanDefinitionRegistrar implements ImportBeanDefinitionReg
                 continue;
             }
             boolean primary = isPrimary(connectionServiceBeanName);
+            boolean redis = isRedisMessageRepository(connectionServiceBeanName);
             BeanDefinitionBuilder builder = BeanDefinitionBuilder.genericBeanDefinition(
                     MessageRepository.class,
-                    () -> new MemoryMessageRepository(primary));
+                    () -> {
+                        if (!redis) {
+                            return new MemoryMessageRepository(primary);
+                        }
+                        SseServerProperties.ClusterConfig config = getClusterConfig(connectionServiceBeanName);
+                        SseServerProperties.ClusterConfig.Redis redisConfig = config.getRedis();
+                        RedisMessageRepository repository = new RedisMessageRepository(
+                                ServiceDiscoveryService.getRedisConnectionFactory(redisConfig, beanFactory),
+                                redisConfig.getRedisKeyRootPrefix() + getGroupName(config) + ":q:",
+                                primary);
+                        repository.setAutoType(config.getMessageRepository().getAutoType());
+                        return repository;
+                    });
             builder.setPrimary(primary);
             String beanName = getLocalMessageRepositoryBeanName(connectionServiceBeanName);
             registerBeanDefinition(beanName, builder.getBeanDefinition());
@@ -207,11 +221,13 @@ public class SseServerBeanDefinitionRegistrar implements ImportBeanDefinitionReg
                 continue;
             }
             boolean primary = isPrimary(connectionServiceBeanName);
+            boolean redis = isRedisMessageRepository(connectionServiceBeanName);
             BeanDefinitionBuilder builder = BeanDefinitionBuilder.genericBeanDefinition(ClusterMessageRepository.class,
                     () -> {
                         Supplier<MessageRepository> localSupplier =
                                 () -> getBean(getLocalMessageRepositoryBeanName(connectionServiceBeanName), MessageRepository.class);
-                        Supplier<ReferenceCounted<List<RemoteMessageRepository>>> remoteSupplier =
+                        // 共用redis时, 本机的就是全部的, 不用问其他机器
+                        Supplier<ReferenceCounted<List<RemoteMessageRepository>>> remoteSupplier = redis ? null :
                                 () -> getBean(getServiceDiscoveryServiceBeanName(connectionServiceBeanName), ServiceDiscoveryService.class)
                                         .getMessageRepositoryListRef();
                         return new ClusterMessageRepository(localSupplier, remoteSupplier, primary);
@@ -255,17 +271,9 @@ public class SseServerBeanDefinitionRegistrar implements ImportBeanDefinitionReg
             boolean primary = isPrimary(connectionServiceBeanName);
             BeanDefinitionBuilder builder = BeanDefinitionBuilder.genericBeanDefinition(ServiceDiscoveryService.class,
                     () -> {
-                        SseServerProperties properties = beanFactory.getBean(SseServerProperties.class);
-                        SseServerProperties.ClusterConfig config = properties.getCluster().get(connectionServiceBeanName);
-                        if (config == null) {
-                            config = new SseServerProperties.ClusterConfig();
-                        }
+                        SseServerProperties.ClusterConfig config = getClusterConfig(connectionServiceBeanName);
                         SseServerAutoConfiguration.bindNacos(config.getNacos(), environment);
-                        String groupName = config.getGroupName();
-                        if (groupName == null || groupName.isEmpty()) {
-                            groupName = SseServerProperties.DEFAULT_GROUP_NAME;
-                        }
-                        return ServiceDiscoveryService.newInstance(groupName, config, beanFactory);
+                        return ServiceDiscoveryService.newInstance(getGroupName(config), config, beanFactory);
                     });
 
             builder.setPrimary(primary);
@@ -303,6 +311,25 @@ public class SseServerBeanDefinitionRegistrar implements ImportBeanDefinitionReg
         return roleEnum == null || roleEnum.containsRegister(registerName);
     }
 
+    protected boolean isRedisMessageRepository(String connectionServiceBeanName) {
+        SseServerProperties.RepositoryEnum type = environment.getProperty(String.format(SseServerProperties.PREFIX_CLUSTER_MESSAGE_REPOSITORY_TYPE, connectionServiceBeanName), SseServerProperties.RepositoryEnum.class);
+        return type == SseServerProperties.RepositoryEnum.REDIS;
+    }
+
+    protected SseServerProperties.ClusterConfig getClusterConfig(String connectionServiceBeanName) {
+        SseServerProperties properties = beanFactory.getBean(SseServerProperties.class);
+        SseServerProperties.ClusterConfig config = properties.getCluster().get(connectionServiceBeanName);
+        return config != null ? config : new SseServerProperties.ClusterConfig();
+    }
+
+    protected static String getGroupName(SseServerProperties.ClusterConfig config) {
+        String groupName = config.getGroupName();
+        if (groupName == null || groupName.isEmpty()) {
+            groupName = SseServerProperties.DEFAULT_GROUP_NAME;
+        }
+        return groupName;
+    }
+
     protected boolean isPrimary(String connectionServiceBeanName) {
         Boolean primary = environment.getProperty(String.format(SseServerProperties.PREFIX_CLUSTER_PRIMARY, connectionServiceBeanName), Boolean.class);
         return primary != null && primary;
@@ -11,6 +11,7 @@ public class SseServerProperties {
     public static final String PREFIX_CLUSTER = PREFIX + ".cluster.";
     public static final String PREFIX_CLUSTER_ROLE = PREFIX + ".cluster.%s.role";
     public static final String PREFIX_CLUSTER_PRIMARY = PREFIX + ".cluster.%s.primary";
+    public static final String PREFIX_CLUSTER_MESSAGE_REPOSITORY_TYPE = PREFIX + ".cluster.%s.message-repository.type";
     public static final String DEFAULT_BEAN_NAME = "defaultConnectionService";
     public static final String DEFAULT_GROUP_NAME = "default";
     private final Remote remote = new Remote();
@@ -64,6 +65,17 @@ public class SseServerProperties {
         NACOS
     }
 
+    public enum RepositoryEnum {
+        /**
+         * 每台机器存自己的, 查询时问一遍其他机器
+         */
+        MEMORY,
+        /**
+         * 所有机器共用redis, 查询只查redis {@link com.github.sseserver.qos.RedisMessageRepository}
+         */
+        REDIS
+    }
+
     public static class Remote {
         private boolean enabled = false;
 
@@ -139,6 +151,15 @@ public class SseServerProperties {
 
         public static class MessageRepository {
             private AutoType autoType = AutoType.CLASS_NOT_FOUND_USE_MAP;
+            private RepositoryEnum type = RepositoryEnum.MEMORY;
+
+            public RepositoryEnum getType() {
+                return type;
+            }
+
+            public void setType(RepositoryEnum type) {
+                this.type = type;
+            }
 
             public AutoType getAutoType() {
                 return autoType;
@@ -0,0 +1,315 @@
+package com.github.sseserver.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * SSE流式压缩 (gzip/deflate)
+ * 1. 写入的字节先缓存, flush时整体压缩并 SYNC_FLUSH, 前端每次flush都能解出完整的事件.
+ * 2. 一次flush的字节小于阈值时, 用不压缩的存储块, 小事件不花压缩的CPU.
+ * 3. 字典在链接内一直保留, 相似的JSON事件越发越省.
+ * 4. 关闭时归还压缩器 {@link DeflaterPool}.
+ */
+public class CompressOutputStream extends OutputStream {
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int MAX_RETAIN_BUFFER = 64 * 1024;
+
+    private final OutputStream out;
+    private final Encoding encoding;
+    private final DeflaterPool pool;
+    private final Deflater deflater;
+    private final int minSize;
+    private final int level;
+    private final CRC32 crc;
+    private final byte[] deflateBuffer = new byte[1024];
+    private byte[] buffer = new byte[256];
+    private int count;
+    private int currentLevel;
+    private boolean headerWritten;
+    private boolean closed;
+    private long rawBytes;
+    private long compressedBytes;
+
+    /**
+     * @param out      输出流
+     * @param encoding 压缩格式
+     * @param pool     压缩器池
+     * @param deflater 从池里借的压缩器, nowrap要和encoding一致
+     * @param minSize  一次flush小于多少字节不压缩
+     */
+    public CompressOutputStream(OutputStream out, Encoding encoding, DeflaterPool pool, Deflater deflater, int minSize) {
+        this.out = out;
+        this.encoding = encoding;
+        this.pool = pool;
+        this.deflater = deflater;
+        this.minSize = minSize;
+        this.level = pool.getLevel();
+        this.currentLevel = level;
+        this.crc = encoding == Encoding.GZIP ? new CRC32() : null;
+    }
+
+    /**
+     * 从池里借压缩器, 借不到返回null (不压缩)
+     */
+    public static CompressOutputStream create(OutputStream out, Encoding encoding, DeflaterPool pool, int minSize) {
+        Deflater deflater = pool.borrow(encoding.nowrap);
+        if (deflater == null) {
+            return null;
+        }
+        return new CompressOutputStream(out, encoding, pool, deflater, minSize);
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        ensureOpen();
+        ensureCapacity(count + 1);
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    /**
+     * 压缩缓存的字节并 SYNC_FLUSH 到输出流
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        ensureOpen();
+        if (count > 0) {
+            writeHeader();
+            int level = count < minSize ? Deflater.NO_COMPRESSION : this.level;
+            if (level != currentLevel) {
+                deflater.setLevel(level);
+                currentLevel = level;
+            }
+            if (crc != null) {
+                crc.update(buffer, 0, count);
+            }
+            rawBytes += count;
+            deflater.setInput(buffer, 0, count);
+            while (!deflater.needsInput()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+            while (deflate(Deflater.SYNC_FLUSH) == deflateBuffer.length) {
+                // 输出缓冲满了, 还有没吐完的
+            }
+            count = 0;
+            if (buffer.length > MAX_RETAIN_BUFFER) {
+                buffer = new byte[256];
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * 写完压缩流的结尾 (gzip的CRC), 不关闭输出流, 归还压缩器
+     */
+    public synchronized void finish() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+            writeHeader();
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+            if (crc != null) {
+                writeIntLE(crc.getValue());
+                writeIntLE(rawBytes);
+            }
+            out.flush();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * 归还压缩器, 不写结尾, 不关闭输出流 (链接已断开)
+     */
+    @Override
+    public synchronized void close() {
+        release();
+    }
+
+    private void release() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        count = 0;
+        pool.release(deflater, encoding.nowrap);
+    }
+
+    private int deflate(int flush) throws IOException {
+        int len = deflater.deflate(deflateBuffer, 0, deflateBuffer.length, flush);
+        if (len > 0) {
+            out.write(deflateBuffer, 0, len);
+            compressedBytes += len;
+        }
+        return len;
+    }
+
+    private void writeHeader() throws IOException {
+        if (!headerWritten) {
+            headerWritten = true;
+            if (encoding == Encoding.GZIP) {
+                out.write(GZIP_HEADER);
+                compressedBytes += GZIP_HEADER.length;
+            }
+        }
+    }
+
+    private void writeIntLE(long value) throws IOException {
+        out.write((int) (value & 0xff));
+        out.write((int) ((value >> 8) & 0xff));
+        out.write((int) ((value >> 16) & 0xff));
+        out.write((int) ((value >> 24) & 0xff));
+        compressedBytes += 4;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, minCapacity));
+        }
+    }
+
+    /**
+     * @return true=已归还压缩器, 不能再写
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @return 压缩前的字节数
+     */
+    public synchronized long getRawBytes() {
+        return rawBytes;
+    }
+
+    /**
+     * @return 压缩后写出的字节数
+     */
+    public synchronized long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "CompressOutputStream{" +
+                "encoding=" + encoding +
+                ", rawBytes=" + rawBytes +
+                ", compressedBytes=" + compressedBytes +
+                '}';
+    }
+
+    /**
+     * 压缩格式
+     */
+    public enum Encoding {
+        GZIP("gzip", true),
+        DEFLATE("deflate", false);
+
+        private final String value;
+        private final boolean nowrap;
+
+        Encoding(String value, boolean nowrap) {
+            this.value = value;
+            this.nowrap = nowrap;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        /**
+         * @return true=原始deflate(gzip自己写头和尾), false=zlib格式
+         */
+        public boolean isNowrap() {
+            return nowrap;
+        }
+
+        /**
+         * 按请求头 Accept-Encoding 协商, 取q值最高的, 一样高时优先gzip
+         * 1. q<=0 是拒绝, 没写q是1.
+         * 2. 没单独写的格式, 用 * 的q值.
+         *
+         * @param acceptEncoding 请求头
+         * @return null=不支持压缩
+         */
+        public static Encoding negotiate(String acceptEncoding) {
+            if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+                return null;
+            }
+            // -1=没写
+            double gzip = -1;
+            double deflate = -1;
+            double any = -1;
+            for (String item : acceptEncoding.split(",")) {
+                String[] parts = item.trim().split(";");
+                String name = parts[0].trim();
+                double q = parseQuality(parts);
+                if ("gzip".equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+                    gzip = Math.max(gzip, q);
+                } else if ("deflate".equalsIgnoreCase(name)) {
+                    deflate = Math.max(deflate, q);
+                } else if ("*".equals(name)) {
+                    any = Math.max(any, q);
+                }
+            }
+            if (gzip < 0) {
+                gzip = any;
+            }
+            if (deflate < 0) {
+                deflate = any;
+            }
+            if (gzip <= 0 && deflate <= 0) {
+                return null;
+            }
+            return gzip >= deflate ? GZIP : DEFLATE;
+        }
+
+        /**
+         * @return q值, 没写是1, 格式不对当拒绝
+         */
+        private static double parseQuality(String[] parts) {
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.length() < 2 || Character.toLowerCase(param.charAt(0)) != 'q') {
+                    continue;
+                }
+                String value = param.substring(1).trim();
+                if (!value.startsWith("=")) {
+                    continue;
+                }
+                try {
+                    return Double.parseDouble(value.substring(1).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.github.sseserver.util;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 线程安全的原始类型long集合, 用于 业务维度与链接ID的关系表.
+ * 1. 元素不装箱, 不为每个元素创建节点对象.
+ * 2. 常见的1~3个元素时, 是一个紧凑的数组顺序查找; 超过 {@link #SMALL_CAPACITY} 后转为开放寻址(线性探测)的哈希表, 适合大租户/大频道.
+ * 3. 读写都在对象锁内完成, 迭代器遍历的是快照.
+ */
+public class ConcurrentLongSet extends AbstractSet<Long> {
+    /**
+     * 不超过这个数量时, 顺序查找
+     */
+    private static final int SMALL_CAPACITY = 4;
+    private static final int MIN_HASH_CAPACITY = 16;
+    private static final long[] EMPTY_TABLE = {};
+    /**
+     * 0 作为空槽位, 元素0单独记录
+     */
+    private static final long FREE = 0L;
+
+    private long[] table;
+    private boolean containsZero;
+    /**
+     * 读size不需要加锁
+     */
+    private volatile int size;
+
+    public ConcurrentLongSet() {
+        this.table = EMPTY_TABLE;
+    }
+
+    public ConcurrentLongSet(int initialCapacity) {
+        if (initialCapacity <= SMALL_CAPACITY) {
+            this.table = initialCapacity <= 0 ? EMPTY_TABLE : new long[initialCapacity];
+        } else {
+            this.table = new long[hashCapacity(initialCapacity)];
+        }
+    }
+
+    private static int hashCapacity(int expectedSize) {
+        int capacity = MIN_HASH_CAPACITY;
+        // 负载因子 0.5
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static int mix(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private boolean isHashMode() {
+        return table.length > SMALL_CAPACITY;
+    }
+
+    public synchronized boolean add(long value) {
+        if (value == FREE) {
+            if (containsZero) {
+                return false;
+            }
+            containsZero = true;
+            size++;
+            return true;
+        }
+        if (isHashMode()) {
+            if (!hashAdd(table, value)) {
+                return false;
+            }
+            size++;
+            if (size * 2 > table.length) {
+                rehash(table.length << 1);
+            }
+            return true;
+        }
+        long[] table = this.table;
+        int free = -1;
+        for (int i = 0; i < table.length; i++) {
+            long e = table[i];
+            if (e == value) {
+                return false;
+            }
+            if (e == FREE && free == -1) {
+                free = i;
+            }
+        }
+        if (free != -1) {
+            table[free] = value;
+        } else if (table.length < SMALL_CAPACITY) {
+            long[] newTable = Arrays.copyOf(table, table.length == 0 ? 1 : Math.min(table.length << 1, SMALL_CAPACITY));
+            newTable[table.length] = value;
+            this.table = newTable;
+        } else {
+            rehash(MIN_HASH_CAPACITY);
+            hashAdd(this.table, value);
+        }
+        size++;
+        return true;
+    }
+
+    public synchronized boolean remove(long value) {
+        if (value == FREE) {
+            if (!containsZero) {
+                return false;
+            }
+            containsZero = false;
+            size--;
+            return true;
+        }
+        long[] table = this.table;
+        if (isHashMode()) {
+            int mask = table.length - 1;
+            int i = mix(value) & mask;
+            long e;
+            while ((e = table[i]) != value) {
+                if (e == FREE) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            shiftDelete(table, i);
+            size--;
+            if (size <= SMALL_CAPACITY / 2) {
+                // 留一点余量, 避免在临界点反复转换
+                rehash(SMALL_CAPACITY);
+            } else if (table.length > MIN_HASH_CAPACITY && size * 8 < table.length) {
+                rehash(table.length >>> 1);
+            }
+            return true;
+        }
+        for (int i = 0; i < table.length; i++) {
+            if (table[i] == value) {
+                table[i] = FREE;
+                size--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized boolean contains(long value) {
+        if (value == FREE) {
+            return containsZero;
+        }
+        long[] table = this.table;
+        if (isHashMode()) {
+            int mask = table.length - 1;
+            int i = mix(value) & mask;
+            long e;
+            while ((e = table[i]) != FREE) {
+                if (e == value) {
+                    return true;
+                }
+                i = (i + 1) & mask;
+            }
+            return false;
+        }
+        for (long e : table) {
+            if (e == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return 快照
+     */
+    public synchronized long[] toLongArray() {
+        long[] result = new long[size];
+        int index = 0;
+        if (containsZero) {
+            result[index++] = FREE;
+        }
+        for (long e : table) {
+            if (e != FREE) {
+                result[index++] = e;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void clear() {
+        table = EMPTY_TABLE;
+        containsZero = false;
+        size = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public boolean add(Long value) {
+        return add(value.longValue());
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return o instanceof Long && remove(((Long) o).longValue());
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Long && contains(((Long) o).longValue());
+    }
+
+    /**
+     * 遍历的是快照
+     */
+    @Override
+    public Iterator<Long> iterator() {
+        long[] snapshot = toLongArray();
+        return new Iterator<Long>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < snapshot.length;
+            }
+
+            @Override
+            public Long next() {
+                if (index >= snapshot.length) {
+                    throw new NoSuchElementException();
+                }
+                return snapshot[index++];
+            }
+
+            @Override
+            public void remove() {
+                if (index == 0) {
+                    throw new IllegalStateException();
+                }
+                ConcurrentLongSet.this.remove(snapshot[index - 1]);
+            }
+        };
+    }
+
+    private void rehash(int capacity) {
+        long[] oldTable = this.table;
+        long[] newTable = new long[capacity];
+        if (capacity > SMALL_CAPACITY) {
+            for (long e : oldTable) {
+                if (e != FREE) {
+                    hashAdd(newTable, e);
+                }
+            }
+        } else {
+            int index = 0;
+            for (long e : oldTable) {
+                if (e != FREE) {
+                    newTable[index++] = e;
+                }
+            }
+        }
+        this.table = newTable;
+    }
+
+    private static boolean hashAdd(long[] table, long value) {
+        int mask = table.length - 1;
+        int i = mix(value) & mask;
+        long e;
+        while ((e = table[i]) != FREE) {
+            if (e == value) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = value;
+        return true;
+    }
+
+    /**
+     * 线性探测的删除, 把后面同一探测链上的元素往前挪, 不留墓碑
+     */
+    private static void shiftDelete(long[] table, int i) {
+        int mask = table.length - 1;
+        int gap = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            long e = table[j];
+            if (e == FREE) {
+                break;
+            }
+            int home = mix(e) & mask;
+            // home 不在 (gap, j] 之间, 说明e可以挪到gap
+            if (gap <= j ? (home <= gap || home > j) : (home <= gap && home > j)) {
+                table[gap] = e;
+                gap = j;
+            }
+        }
+        table[gap] = FREE;
+    }
+}
@@ -0,0 +1,106 @@
+package com.github.sseserver.util;
+
+import java.util.ArrayDeque;
+import java.util.zip.Deflater;
+
+/**
+ * 压缩器池
+ * 1. 每个压缩的链接独占一个 Deflater (流式压缩要保留字典), zlib的本地内存一个大约300KB, 所以要限制总数.
+ * 2. 超过上限的链接借不到, 就不压缩, 内存不会无限增长.
+ * 3. 链接关闭后归还, reset后给下一个链接用, 不用重复申请本地内存.
+ */
+public class DeflaterPool {
+    private final int level;
+    private final int maxActive;
+    private final int maxIdle;
+    /**
+     * nowrap=true (gzip用的原始deflate) 和 nowrap=false (zlib格式) 分开存
+     */
+    private final ArrayDeque<Deflater> idleRaw = new ArrayDeque<>();
+    private final ArrayDeque<Deflater> idleZlib = new ArrayDeque<>();
+    private int active;
+
+    /**
+     * @param level     压缩级别 {@link Deflater#DEFAULT_COMPRESSION}
+     * @param maxActive 同时借出的最大数量
+     * @param maxIdle   最多缓存多少个空闲的
+     */
+    public DeflaterPool(int level, int maxActive, int maxIdle) {
+        if (maxActive < 0) {
+            throw new IllegalArgumentException("maxActive must be greater than or equal to 0: " + maxActive);
+        }
+        this.level = level;
+        this.maxActive = maxActive;
+        this.maxIdle = Math.max(maxIdle, 0);
+    }
+
+    /**
+     * 借一个
+     *
+     * @param nowrap true=原始deflate(gzip用), false=zlib格式
+     * @return null=已达上限
+     */
+    public Deflater borrow(boolean nowrap) {
+        Deflater deflater;
+        synchronized (this) {
+            if (active >= maxActive) {
+                return null;
+            }
+            active++;
+            deflater = (nowrap ? idleRaw : idleZlib).pollFirst();
+        }
+        if (deflater == null) {
+            deflater = new Deflater(level, nowrap);
+        }
+        return deflater;
+    }
+
+    /**
+     * 归还
+     *
+     * @param deflater 借的时候的nowrap要一致
+     * @param nowrap   true=原始deflate(gzip用), false=zlib格式
+     */
+    public void release(Deflater deflater, boolean nowrap) {
+        deflater.reset();
+        deflater.setLevel(level);
+        boolean end;
+        synchronized (this) {
+            active--;
+            ArrayDeque<Deflater> idle = nowrap ? idleRaw : idleZlib;
+            end = idleRaw.size() + idleZlib.size() >= maxIdle;
+            if (!end) {
+                idle.addFirst(deflater);
+            }
+        }
+        if (end) {
+            deflater.end();
+        }
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getMaxActive() {
+        return maxActive;
+    }
+
+    public synchronized int getActive() {
+        return active;
+    }
+
+    public synchronized int getIdle() {
+        return idleRaw.size() + idleZlib.size();
+    }
+
+    @Override
+    public String toString() {
+        return "DeflaterPool{" +
+                "level=" + level +
+                ", active=" + getActive() +
+                ", idle=" + getIdle() +
+                ", maxActive=" + maxActive +
+                '}';
+    }
+}
@@ -0,0 +1,398 @@
+package com.github.sseserver.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * 时间轮定时器 (参考 netty HashedWheelTimer)
+ * 1. 新增和取消都是O(1), 只是往无锁队列里放一下, 由工作线程在下一个刻度统一挂到/摘下槽位的双向链表.
+ * 2. 精度是一个刻度, 适合链接超时这种数量大, 不要求精确的定时任务.
+ * 3. 任务在工作线程里执行, 耗时的任务要自己丢到别的线程池.
+ */
+public class HashedWheelTimer {
+    private static final int WORKER_STATE_INIT = 0;
+    private static final int WORKER_STATE_STARTED = 1;
+    private static final int WORKER_STATE_SHUTDOWN = 2;
+    /**
+     * 每个刻度最多从队列转移的任务数, 防止工作线程被新增任务饿死
+     */
+    private static final int MAX_TRANSFER_PER_TICK = 100000;
+
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long tickDuration;
+    private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingCount = new AtomicLong();
+    private final Supplier<String> name;
+    private final Consumer<Throwable> exceptionConsumer;
+    private volatile int workerState = WORKER_STATE_INIT;
+    private volatile long startTime;
+    private Thread workerThread;
+    private long tick;
+
+    /**
+     * @param tickDuration      刻度
+     * @param unit              刻度单位
+     * @param ticksPerWheel     一圈的刻度数, 会向上取2的次方
+     * @param name              线程名
+     * @param exceptionConsumer 任务异常
+     */
+    public HashedWheelTimer(long tickDuration, TimeUnit unit, int ticksPerWheel,
+                            Supplier<String> name, Consumer<Throwable> exceptionConsumer) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be greater than 0: " + tickDuration);
+        }
+        if (ticksPerWheel <= 0) {
+            throw new IllegalArgumentException("ticksPerWheel must be greater than 0: " + ticksPerWheel);
+        }
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            this.wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.tickDuration = unit.toNanos(tickDuration);
+        this.name = name;
+        this.exceptionConsumer = exceptionConsumer;
+    }
+
+    /**
+     * 延迟执行任务
+     *
+     * @param task  任务
+     * @param delay 延迟
+     * @param unit  延迟单位
+     * @return 可以取消的句柄
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if (task == null) {
+            throw new NullPointerException("task");
+        }
+        start();
+        long deadline = System.nanoTime() + unit.toNanos(delay) - startTime;
+        // 溢出保护
+        if (delay > 0 && deadline < 0) {
+            deadline = Long.MAX_VALUE;
+        }
+        Timeout timeout = new Timeout(this, task, deadline);
+        pendingCount.incrementAndGet();
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return 还未执行且未取消的任务数
+     */
+    public long pendingTimeouts() {
+        return pendingCount.get();
+    }
+
+    public long getTickDuration(TimeUnit unit) {
+        return unit.convert(tickDuration, TimeUnit.NANOSECONDS);
+    }
+
+    public int getTicksPerWheel() {
+        return wheel.length;
+    }
+
+    private void start() {
+        if (workerState == WORKER_STATE_STARTED) {
+            return;
+        }
+        synchronized (this) {
+            if (workerState == WORKER_STATE_SHUTDOWN) {
+                throw new IllegalStateException("cannot be started once stopped");
+            }
+            if (workerState == WORKER_STATE_INIT) {
+                startTime = System.nanoTime();
+                Thread thread = new Thread(this::workerLoop, threadName());
+                thread.setDaemon(true);
+                workerThread = thread;
+                workerState = WORKER_STATE_STARTED;
+                thread.start();
+            }
+        }
+    }
+
+    private String threadName() {
+        try {
+            return name.get();
+        } catch (Exception e) {
+            return getClass().getSimpleName();
+        }
+    }
+
+    /**
+     * 停止工作线程
+     *
+     * @return 还未执行的任务
+     */
+    public List<Timeout> stop() {
+        Thread thread;
+        synchronized (this) {
+            int state = workerState;
+            workerState = WORKER_STATE_SHUTDOWN;
+            if (state != WORKER_STATE_STARTED) {
+                return new ArrayList<>();
+            }
+            thread = workerThread;
+        }
+        if (Thread.currentThread() == thread) {
+            throw new IllegalStateException("cannot be stopped by a task");
+        }
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            thread.interrupt();
+            try {
+                thread.join(100);
+            } catch (InterruptedException ignored) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        List<Timeout> unprocessed = new ArrayList<>();
+        for (Bucket bucket : wheel) {
+            bucket.drainTo(unprocessed);
+        }
+        Timeout timeout;
+        while ((timeout = pendingTimeouts.poll()) != null) {
+            if (!timeout.isCancelled()) {
+                unprocessed.add(timeout);
+            }
+        }
+        return unprocessed;
+    }
+
+    private void workerLoop() {
+        while (workerState == WORKER_STATE_STARTED) {
+            long deadline = waitForNextTick();
+            if (deadline < 0) {
+                continue;
+            }
+            processCancelledTimeouts();
+            transferPendingTimeouts();
+            wheel[(int) (tick & mask)].expireTimeouts(deadline);
+            tick++;
+        }
+    }
+
+    /**
+     * @return 当前刻度的截止时间(相对startTime), 被中断返回-1
+     */
+    private long waitForNextTick() {
+        long deadline = tickDuration * (tick + 1);
+        while (true) {
+            long currentTime = System.nanoTime() - startTime;
+            long sleepTimeMs = (deadline - currentTime + 999999) / 1000000;
+            if (sleepTimeMs <= 0) {
+                return currentTime;
+            }
+            try {
+                Thread.sleep(sleepTimeMs);
+            } catch (InterruptedException ignored) {
+                if (workerState == WORKER_STATE_SHUTDOWN) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    private void processCancelledTimeouts() {
+        Timeout timeout;
+        while ((timeout = cancelledTimeouts.poll()) != null) {
+            Bucket bucket = timeout.bucket;
+            if (bucket != null) {
+                bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void transferPendingTimeouts() {
+        for (int i = 0; i < MAX_TRANSFER_PER_TICK; i++) {
+            Timeout timeout = pendingTimeouts.poll();
+            if (timeout == null) {
+                break;
+            }
+            if (timeout.state == Timeout.ST_CANCELLED) {
+                continue;
+            }
+            long calculated = timeout.deadline / tickDuration;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+            // 已经过期的, 放到当前刻度
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void runTask(Timeout timeout) {
+        try {
+            timeout.task.run();
+        } catch (Throwable e) {
+            try {
+                exceptionConsumer.accept(e);
+            } catch (Throwable t) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HashedWheelTimer{" +
+                "ticksPerWheel=" + wheel.length +
+                ", tickDurationMs=" + TimeUnit.NANOSECONDS.toMillis(tickDuration) +
+                ", pending=" + pendingCount.get() +
+                '}';
+    }
+
+    /**
+     * 定时任务的句柄
+     */
+    public static class Timeout {
+        private static final int ST_INIT = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE_UPDATER =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadline;
+        private volatile int state = ST_INIT;
+        /**
+         * 以下字段只有工作线程访问
+         */
+        private long remainingRounds;
+        private Timeout next;
+        private Timeout prev;
+        private Bucket bucket;
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public Runnable getTask() {
+            return task;
+        }
+
+        /**
+         * 取消任务
+         *
+         * @return true=取消成功, false=已执行或已取消
+         */
+        public boolean cancel() {
+            if (!STATE_UPDATER.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+                return false;
+            }
+            timer.pendingCount.decrementAndGet();
+            timer.cancelledTimeouts.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == ST_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == ST_EXPIRED;
+        }
+
+        private void expire() {
+            if (!STATE_UPDATER.compareAndSet(this, ST_INIT, ST_EXPIRED)) {
+                return;
+            }
+            timer.pendingCount.decrementAndGet();
+            timer.runTask(this);
+        }
+
+        @Override
+        public String toString() {
+            return "Timeout{" +
+                    "state=" + (state == ST_INIT ? "init" : state == ST_CANCELLED ? "cancelled" : "expired") +
+                    ", task=" + task +
+                    '}';
+        }
+    }
+
+    /**
+     * 槽位, 双向链表. 只有工作线程访问
+     */
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void expireTimeouts(long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+                    remove(timeout);
+                    timeout.expire();
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else if (timeout.remainingRounds > 0) {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (next != null) {
+                next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        void drainTo(List<Timeout> list) {
+            Timeout timeout;
+            while ((timeout = head) != null) {
+                remove(timeout);
+                if (!timeout.isCancelled() && !timeout.isExpired()) {
+                    list.add(timeout);
+                }
+            }
+        }
+    }
+}
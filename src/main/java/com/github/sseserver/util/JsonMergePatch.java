@@ -0,0 +1,136 @@
+package com.github.sseserver.util;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * JSON Merge Patch (RFC 7396)
+ * 1. 只比较对象的字段, 数组和其他值变了就整个替换.
+ * 2. 删掉的字段在补丁里是null, 所以新文档里值本身是null的字段表达不了, 这时要发全量.
+ *
+ * @see com.github.sseserver.local.SseEmitter#newDeltaData(String, Object)
+ */
+public class JsonMergePatch {
+    /**
+     * 序列化文档用的, 可以换成业务里配置好的
+     */
+    public static ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * @param document JsonNode, JSON字符串, 或者任意对象
+     * @return JSON树, 字符串会先解析
+     * @throws IllegalArgumentException 不是合法的JSON
+     */
+    public static JsonNode toJsonNode(Object document) {
+        if (document instanceof JsonNode) {
+            return (JsonNode) document;
+        }
+        try {
+            if (document instanceof CharSequence) {
+                return objectMapper.readTree(document.toString());
+            }
+            return objectMapper.valueToTree(document);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("document is not json: " + e.getOriginalMessage(), e);
+        }
+    }
+
+    public static String toJson(JsonNode node) {
+        try {
+            return objectMapper.writeValueAsString(node);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException(e.getOriginalMessage(), e);
+        }
+    }
+
+    /**
+     * 计算从source到target的补丁
+     *
+     * @param source 前端已有的文档
+     * @param target 新文档
+     * @return 补丁, 空对象=没变化, null=表达不了要发全量
+     */
+    public static ObjectNode diff(JsonNode source, JsonNode target) {
+        if (source == null || !source.isObject() || target == null || !target.isObject()) {
+            return null;
+        }
+        ObjectNode patch = JsonNodeFactory.instance.objectNode();
+        Iterator<String> sourceNames = source.fieldNames();
+        while (sourceNames.hasNext()) {
+            String name = sourceNames.next();
+            if (!target.has(name)) {
+                patch.putNull(name);
+            }
+        }
+        Iterator<Map.Entry<String, JsonNode>> targetFields = target.fields();
+        while (targetFields.hasNext()) {
+            Map.Entry<String, JsonNode> field = targetFields.next();
+            String name = field.getKey();
+            JsonNode targetValue = field.getValue();
+            JsonNode sourceValue = source.get(name);
+            if (targetValue.equals(sourceValue)) {
+                continue;
+            }
+            if (targetValue.isNull()) {
+                return null;
+            }
+            if (targetValue.isObject() && sourceValue != null && sourceValue.isObject()) {
+                ObjectNode child = diff(sourceValue, targetValue);
+                if (child == null) {
+                    return null;
+                }
+                patch.set(name, child);
+            } else if (containsNull(targetValue)) {
+                return null;
+            } else {
+                patch.set(name, targetValue);
+            }
+        }
+        return patch;
+    }
+
+    /**
+     * 应用补丁, 和前端sse.js的逻辑一样
+     *
+     * @param target 已有的文档, 不会被修改
+     * @param patch  补丁
+     * @return 新文档
+     */
+    public static JsonNode apply(JsonNode target, JsonNode patch) {
+        if (patch == null || !patch.isObject()) {
+            return patch;
+        }
+        ObjectNode result = target != null && target.isObject() ? ((ObjectNode) target).deepCopy() : JsonNodeFactory.instance.objectNode();
+        Iterator<Map.Entry<String, JsonNode>> fields = patch.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            if (field.getValue().isNull()) {
+                result.remove(field.getKey());
+            } else {
+                result.set(field.getKey(), apply(result.get(field.getKey()), field.getValue()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 新增的对象里有null值, 按补丁应用时会被当成删除
+     */
+    private static boolean containsNull(JsonNode node) {
+        if (!node.isObject()) {
+            return false;
+        }
+        for (JsonNode child : node) {
+            if (child.isNull() || containsNull(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
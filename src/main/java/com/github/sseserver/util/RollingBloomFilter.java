@@ -0,0 +1,188 @@
+package com.github.sseserver.util;
+
+import java.util.Arrays;
+
+/**
+ * 有界的去重 (滚动布隆过滤器), 用于长时间不断开的链接上的消息去重.
+ * 1. 两代位图, 当前代加满 capacity 个后, 旧的一代清空变成新的当前代, 内存固定为两代位图的大小.
+ * 2. 至少记住最近 capacity 个不同的ID, 更早的会逐渐忘掉 (再来会当成新的).
+ * 3. 有误判: 没见过的ID有 fpp 的概率被当成见过 (会被去掉), 不会把见过的当成没见过.
+ * 4. 读写都在对象锁内完成.
+ */
+public class RollingBloomFilter {
+    private static final double LN2 = Math.log(2);
+
+    private final int capacity;
+    private final double fpp;
+    private final int numBits;
+    private final int numHashes;
+    private long[] current;
+    private long[] previous;
+    private int currentCount;
+    private long rotateCount;
+
+    /**
+     * @param capacity 至少记住最近多少个ID
+     * @param fpp      误判率, 比如0.01
+     */
+    public RollingBloomFilter(int capacity, double fpp) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be greater than 0: " + capacity);
+        }
+        if (!(fpp > 0 && fpp < 1)) {
+            throw new IllegalArgumentException("fpp must be between 0 and 1: " + fpp);
+        }
+        this.capacity = capacity;
+        this.fpp = fpp;
+        // 查询时两代都要查, 每代的误判率按一半算
+        long bits = optimalNumBits(capacity, fpp / 2);
+        if (bits > Integer.MAX_VALUE - 63) {
+            throw new IllegalArgumentException("capacity too large: " + capacity + ", fpp=" + fpp);
+        }
+        this.numBits = (int) ((bits + 63) & ~63L);
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / capacity * LN2));
+        this.current = new long[numBits >>> 6];
+        this.previous = new long[numBits >>> 6];
+    }
+
+    /**
+     * 按内存预算创建
+     *
+     * @param maxBytes 两代位图最多占多少字节
+     * @param fpp      误判率, 比如0.01
+     * @return 在预算内能记住最多ID的过滤器
+     */
+    public static RollingBloomFilter ofMemory(int maxBytes, double fpp) {
+        long bitsPerGeneration = (long) maxBytes * 8 / 2;
+        int capacity = (int) Math.max(1, Math.floor(bitsPerGeneration * LN2 * LN2 / -Math.log(fpp / 2)));
+        return new RollingBloomFilter(capacity, fpp);
+    }
+
+    private static long optimalNumBits(long n, double p) {
+        return (long) Math.ceil(-n * Math.log(p) / (LN2 * LN2));
+    }
+
+    /**
+     * @param id 消息ID
+     * @return true=没见过 (已记住), false=见过或误判
+     */
+    public synchronized boolean add(Object id) {
+        long hash1 = hash64(id);
+        long hash2 = mix64(hash1 ^ 0x9E3779B97F4A7C15L) | 1L;
+        if (contains(current, hash1, hash2)) {
+            return false;
+        }
+        boolean seen = contains(previous, hash1, hash2);
+        // 见过的也放进当前代, 常出现的ID不会因为滚动被忘掉
+        if (currentCount >= capacity) {
+            long[] empty = previous;
+            Arrays.fill(empty, 0L);
+            previous = current;
+            current = empty;
+            currentCount = 0;
+            rotateCount++;
+        }
+        set(current, hash1, hash2);
+        currentCount++;
+        return !seen;
+    }
+
+    /**
+     * @param id 消息ID
+     * @return true=可能见过, false=肯定没见过
+     */
+    public synchronized boolean mightContain(Object id) {
+        long hash1 = hash64(id);
+        long hash2 = mix64(hash1 ^ 0x9E3779B97F4A7C15L) | 1L;
+        return contains(current, hash1, hash2) || contains(previous, hash1, hash2);
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(current, 0L);
+        Arrays.fill(previous, 0L);
+        currentCount = 0;
+    }
+
+    private boolean contains(long[] bits, long hash1, long hash2) {
+        long combined = hash1;
+        for (int i = 0; i < numHashes; i++) {
+            int index = (int) ((combined & Long.MAX_VALUE) % numBits);
+            if ((bits[index >>> 6] & (1L << index)) == 0) {
+                return false;
+            }
+            combined += hash2;
+        }
+        return true;
+    }
+
+    private void set(long[] bits, long hash1, long hash2) {
+        long combined = hash1;
+        for (int i = 0; i < numHashes; i++) {
+            int index = (int) ((combined & Long.MAX_VALUE) % numBits);
+            bits[index >>> 6] |= 1L << index;
+            combined += hash2;
+        }
+    }
+
+    /**
+     * 整数和字符串按值算64位哈希, 其他的用hashCode
+     */
+    private static long hash64(Object id) {
+        if (id instanceof Long || id instanceof Integer || id instanceof Short || id instanceof Byte) {
+            return mix64(((Number) id).longValue());
+        }
+        if (id instanceof CharSequence) {
+            CharSequence chars = (CharSequence) id;
+            long hash = 0xCBF29CE484222325L;
+            for (int i = 0, length = chars.length(); i < length; i++) {
+                hash = (hash ^ chars.charAt(i)) * 0x100000001B3L;
+            }
+            return mix64(hash);
+        }
+        return mix64(id == null ? 0 : id.hashCode());
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public double getFpp() {
+        return fpp;
+    }
+
+    /**
+     * @return 两代位图占的字节数
+     */
+    public int getMemoryBytes() {
+        return (numBits >>> 3) * 2;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    /**
+     * @return 滚动了多少次
+     */
+    public synchronized long getRotateCount() {
+        return rotateCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RollingBloomFilter{" +
+                "capacity=" + capacity +
+                ", fpp=" + fpp +
+                ", memoryBytes=" + getMemoryBytes() +
+                ", numHashes=" + numHashes +
+                ", currentCount=" + currentCount +
+                ", rotateCount=" + rotateCount +
+                '}';
+    }
+}
@@ -1,9 +1,13 @@
 package org.springframework.web.servlet.mvc.method.annotation;
 
 import com.github.sseserver.local.SseEmitter;
+import com.github.sseserver.local.SseFrame;
+import com.github.sseserver.util.CompressOutputStream;
+import com.github.sseserver.util.DeflaterPool;
 import org.springframework.core.MethodParameter;
 import org.springframework.core.ResolvableType;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpOutputMessage;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -18,20 +22,56 @@ import org.springframework.web.context.request.async.WebAsyncUtils;
 import org.springframework.web.filter.ShallowEtagHeaderFilter;
 import org.springframework.web.method.support.HandlerMethodReturnValueHandler;
 import org.springframework.web.method.support.ModelAndViewContainer;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter.DataWithMediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter.SseEventBuilder;
 
+import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletRequest;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
+import java.util.zip.Deflater;
 
 public class GithubSseEmitterReturnValueHandler implements HandlerMethodReturnValueHandler {
+    /**
+     * 非阻塞写 (Servlet 3.1 WriteListener), 前端读得慢不会阻塞发送线程
+     */
+    public static boolean nonBlocking = Boolean.getBoolean("sseserver.GithubSseEmitterReturnValueHandler.nonBlocking");
+    /**
+     * 非阻塞写时, 每个链接最多缓冲多少字节还没写出去的数据, 超过就当发送失败
+     */
+    public static int maxPendingBytes = Integer.getInteger("sseserver.GithubSseEmitterReturnValueHandler.maxPendingBytes", 1024 * 1024);
+    /**
+     * 按请求头 Accept-Encoding 协商流式压缩 (gzip/deflate)
+     */
+    public static boolean compress = Boolean.getBoolean("sseserver.GithubSseEmitterReturnValueHandler.compress");
+    /**
+     * 一次flush小于多少字节不压缩 (用存储块), 小事件不花压缩的CPU
+     */
+    public static int compressMinSize = Integer.getInteger("sseserver.GithubSseEmitterReturnValueHandler.compressMinSize", 128);
+    /**
+     * 压缩器池, 限制压缩链接的总数, 超过的链接不压缩
+     */
+    public static DeflaterPool deflaterPool = new DeflaterPool(
+            Integer.getInteger("sseserver.DeflaterPool.level", Deflater.DEFAULT_COMPRESSION),
+            Integer.getInteger("sseserver.DeflaterPool.maxActive", 1024),
+            Integer.getInteger("sseserver.DeflaterPool.maxIdle", 64));
     private final Supplier<Collection<HttpMessageConverter<?>>> messageConverters;
+    /**
+     * 共享事件帧的序列化, 同一个帧只会调用一次
+     */
+    private final SseFrame.Encoder frameEncoder = (data, mediaType, out) -> write(data, mediaType, new ByteArrayHttpOutputMessage(out));
 
     public GithubSseEmitterReturnValueHandler(Supplier<Collection<HttpMessageConverter<?>>> messageConverters) {
         this.messageConverters = new Lazy(() -> initSseConverters(messageConverters.get()));
@@ -49,6 +89,16 @@ public class GithubSseEmitterReturnValueHandler implements HandlerMethodReturnVa
         return result;
     }
 
+    private void write(Object data, MediaType mediaType, HttpOutputMessage outputMessage) throws IOException {
+        for (HttpMessageConverter converter : messageConverters.get()) {
+            if (converter.canWrite(data.getClass(), mediaType)) {
+                converter.write(data, mediaType, outputMessage);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("No suitable converter for " + data.getClass());
+    }
+
     @Override
     public boolean supportsReturnType(MethodParameter returnType) {
         Class bodyType = ResponseEntity.class.isAssignableFrom(returnType.getParameterType()) ?
@@ -90,6 +140,18 @@ public class GithubSseEmitterReturnValueHandler implements HandlerMethodReturnVa
         // At this point we know we're streaming..
         ShallowEtagHeaderFilter.disableContentCaching(request);
 
+        // 协商压缩, 压缩器池满了就不压缩
+        DeflaterPool deflaterPool = GithubSseEmitterReturnValueHandler.deflaterPool;
+        CompressOutputStream.Encoding encoding = null;
+        Deflater deflater = null;
+        if (compress && !outputMessage.getHeaders().containsKey(HttpHeaders.CONTENT_ENCODING)
+                && request instanceof HttpServletRequest
+                && (encoding = CompressOutputStream.Encoding.negotiate(((HttpServletRequest) request).getHeader(HttpHeaders.ACCEPT_ENCODING))) != null
+                && (deflater = deflaterPool.borrow(encoding.isNowrap())) != null) {
+            outputMessage.getHeaders().set(HttpHeaders.CONTENT_ENCODING, encoding.getValue());
+            outputMessage.getHeaders().add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+
         // Wrap the response to ignore further header changes
         // Headers will be flushed at the first write
         outputMessage = new StreamingServletServerHttpResponse(outputMessage);
@@ -98,8 +160,19 @@ public class GithubSseEmitterReturnValueHandler implements HandlerMethodReturnVa
         try {
             DeferredResult deferredResult = new DeferredResult<>(emitter.getTimeout());
             WebAsyncUtils.getAsyncManager(webRequest).startDeferredResultProcessing(deferredResult, mavContainer);
-            handler = new HttpMessageConvertingHandler(outputMessage, deferredResult);
+            if (nonBlocking) {
+                handler = new NonBlockingHandler(outputMessage, deferredResult, response, maxPendingBytes);
+            } else {
+                handler = new HttpMessageConvertingHandler(outputMessage, deferredResult);
+            }
+            if (deflater != null) {
+                handler.compress(new CompressOutputStream(handler.compressTarget(), encoding, deflaterPool, deflater, compressMinSize));
+                deflater = null;
+            }
         } catch (Throwable ex) {
+            if (deflater != null) {
+                deflaterPool.release(deflater, encoding.isNowrap());
+            }
             try {
                 emitter.initializeWithError(ex);
             } catch (LinkageError e) {
@@ -121,9 +194,10 @@ public class GithubSseEmitterReturnValueHandler implements HandlerMethodReturnVa
      * ResponseBodyEmitter.Handler that writes with HttpMessageConverter's.
      */
     private class HttpMessageConvertingHandler implements ResponseBodyEmitter.Handler {
-        private boolean complete = false;
-        private final ServerHttpResponse outputMessage;
-        private final DeferredResult deferredResult;
+        protected boolean complete = false;
+        protected ServerHttpResponse outputMessage;
+        protected final DeferredResult deferredResult;
+        protected CompressOutputStream compressStream;
 
         public HttpMessageConvertingHandler(ServerHttpResponse outputMessage, DeferredResult deferredResult) {
             this.outputMessage = outputMessage;
@@ -135,24 +209,67 @@ public class GithubSseEmitterReturnValueHandler implements HandlerMethodReturnVa
             if (data == null) {
                 return;
             }
-            for (HttpMessageConverter converter : messageConverters.get()) {
-                if (converter.canWrite(data.getClass(), mediaType)) {
-                    converter.write(data, mediaType, this.outputMessage);
-                    this.outputMessage.flush();
-                    return;
+            if (data instanceof SseEmitter.SseBatchEvent) {
+                // 合并写, 多个事件只flush一次
+                for (SseEventBuilder event : ((SseEmitter.SseBatchEvent) data).getEvents()) {
+                    for (DataWithMediaType part : event.build()) {
+                        sendPart(part.getData(), part.getMediaType());
+                    }
                 }
+            } else {
+                sendPart(data, mediaType);
+            }
+            this.outputMessage.flush();
+        }
+
+        private void sendPart(Object data, MediaType mediaType) throws IOException {
+            if (data instanceof SseEmitter.SseFrameEvent) {
+                ((SseEmitter.SseFrameEvent) data).writeTo(this.outputMessage.getBody(), frameEncoder);
+            } else if (data instanceof SseEmitter.SseStreamEvent) {
+                // 大事件一块一块地写, 每块flush, 不在内存里攒
+                ServerHttpResponse outputMessage = this.outputMessage;
+                ((SseEmitter.SseStreamEvent<?>) data).writeTo(outputMessage.getBody(), outputMessage::flush);
+            } else {
+                write(data, mediaType, this.outputMessage);
             }
-            throw new IllegalArgumentException("No suitable converter for " + data.getClass());
+        }
+
+        /**
+         * @return 压缩后的字节写到哪里
+         */
+        protected OutputStream compressTarget() throws IOException {
+            return this.outputMessage.getBody();
+        }
+
+        /**
+         * 开启压缩, 之后写的字节都经过压缩流
+         */
+        protected void compress(CompressOutputStream compressStream) {
+            this.compressStream = compressStream;
+            this.outputMessage = new CompressServerHttpResponse(this.outputMessage, compressStream);
         }
 
         public boolean isComplete() {
             return complete;
         }
 
+        /**
+         * 归还压缩器
+         */
+        protected void releaseCompress() {
+            CompressOutputStream compressStream = this.compressStream;
+            if (compressStream != null) {
+                compressStream.close();
+            }
+        }
+
         @Override
         public void complete() {
             complete = true;
             try {
+                if (this.compressStream != null) {
+                    this.compressStream.finish();
+                }
                 this.outputMessage.flush();
                 this.deferredResult.setResult(null);
             } catch (IOException ex) {
@@ -163,6 +280,7 @@ public class GithubSseEmitterReturnValueHandler implements HandlerMethodReturnVa
         @Override
         public void completeWithError(Throwable failure) {
             complete = true;
+            releaseCompress();
             this.deferredResult.setErrorResult(failure);
         }
 
@@ -178,10 +296,322 @@ public class GithubSseEmitterReturnValueHandler implements HandlerMethodReturnVa
 
         @Override
         public void onCompletion(Runnable callback) {
-            this.deferredResult.onCompletion(callback);
+            this.deferredResult.onCompletion(() -> {
+                releaseCompress();
+                callback.run();
+            });
+        }
+    }
+
+
+    /**
+     * 非阻塞写. 事件先序列化为字节放进链接自己的缓冲, 只在 isReady() 时写,
+     * 写不动了交给容器回调 onWritePossible 继续写, 发送线程不会卡在慢的TCP窗口上.
+     * 流式的大事件 {@link SseEmitter.SseStreamEvent} 不序列化, 写到它时才一块一块地读.
+     */
+    private class NonBlockingHandler extends HttpMessageConvertingHandler implements WriteListener {
+        private final ServletOutputStream out;
+        private final int maxPendingBytes;
+        /**
+         * 元素是 byte[], {@link SseEmitter.SseStreamEvent} 或 {@link UncompressedChunk}
+         */
+        private final ArrayDeque<Object> pending = new ArrayDeque<>();
+        /**
+         * 缓冲里还没写完的流式事件数, 开启压缩时, 排在它后面的事件要写到时再压缩, 压缩流的顺序才对
+         */
+        private int pendingStreams;
+        private int pendingBytes;
+        private boolean needFlush;
+        private boolean completing;
+        private Throwable error;
+
+        /**
+         * 开启压缩时, 压缩后的字节先写到这里, 再放进缓冲
+         */
+        private final ByteArrayOutputStream compressed = new ByteArrayOutputStream(256);
+
+        public NonBlockingHandler(ServerHttpResponse outputMessage, DeferredResult deferredResult,
+                                  HttpServletResponse response, int maxPendingBytes) throws IOException {
+            super(outputMessage, deferredResult);
+            // 先写响应头, 之后直接写ServletOutputStream
+            outputMessage.getBody();
+            this.out = response.getOutputStream();
+            this.maxPendingBytes = maxPendingBytes;
+            this.out.setWriteListener(this);
+        }
+
+        @Override
+        public void send(Object data, MediaType mediaType) throws IOException {
+            if (data == null) {
+                return;
+            }
+            List<Object> chunks = new ArrayList<>(4);
+            if (data instanceof SseEmitter.SseBatchEvent) {
+                for (SseEventBuilder event : ((SseEmitter.SseBatchEvent) data).getEvents()) {
+                    for (DataWithMediaType part : event.build()) {
+                        encode(part.getData(), part.getMediaType(), chunks);
+                    }
+                }
+            } else {
+                encode(data, mediaType, chunks);
+            }
+            enqueue(chunks);
+        }
+
+        private void encode(Object data, MediaType mediaType, List<Object> chunks) throws IOException {
+            if (data instanceof SseEmitter.SseStreamEvent) {
+                chunks.add(data);
+            } else if (data instanceof SseEmitter.SseFrameEvent) {
+                SseEmitter.SseFrameEvent event = (SseEmitter.SseFrameEvent) data;
+                long id = event.getIdValue();
+                if (id != SseEmitter.SseFrameEvent.NO_ID) {
+                    chunks.add(SseFrame.idLine(id));
+                }
+                // 共享帧的字节直接放进缓冲, 不复制
+                chunks.add(event.getFrame().getBytes(frameEncoder));
+            } else {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+                write(data, mediaType, new ByteArrayHttpOutputMessage(buffer));
+                chunks.add(buffer.toByteArray());
+            }
+        }
+
+        @Override
+        protected OutputStream compressTarget() {
+            return compressed;
+        }
+
+        @Override
+        protected void compress(CompressOutputStream compressStream) {
+            this.compressStream = compressStream;
+        }
+
+        private synchronized void enqueue(List<Object> chunks) throws IOException {
+            if (error != null) {
+                throw new IOException("sse non-blocking write failed", error);
+            }
+            if (compressStream != null) {
+                List<Object> compressedChunks = new ArrayList<>(2);
+                boolean afterStream = pendingStreams > 0;
+                for (Object chunk : chunks) {
+                    if (chunk instanceof SseEmitter.SseStreamEvent) {
+                        // 流式的事件写到时再压缩, 前面的先压缩好
+                        addCompressed(compressedChunks);
+                        compressedChunks.add(chunk);
+                        afterStream = true;
+                    } else if (afterStream) {
+                        compressedChunks.add(new UncompressedChunk((byte[]) chunk));
+                    } else {
+                        compressStream.write((byte[]) chunk);
+                    }
+                }
+                addCompressed(compressedChunks);
+                chunks = compressedChunks;
+            }
+            int length = 0;
+            int streams = 0;
+            for (Object chunk : chunks) {
+                if (chunk instanceof byte[]) {
+                    length += ((byte[]) chunk).length;
+                } else if (chunk instanceof UncompressedChunk) {
+                    length += ((UncompressedChunk) chunk).bytes.length;
+                } else {
+                    streams++;
+                }
+            }
+            if (pendingBytes + length > maxPendingBytes) {
+                throw new IOException("sse pending bytes exceed " + maxPendingBytes + ", slow consumer");
+            }
+            pending.addAll(chunks);
+            pendingBytes += length;
+            pendingStreams += streams;
+            writePending();
+        }
+
+        private void addCompressed(List<Object> chunks) throws IOException {
+            compressStream.flush();
+            if (compressed.size() > 0) {
+                chunks.add(takeCompressed());
+            }
+        }
+
+        /**
+         * 写缓冲, 写不动就等容器回调. 调用时持有锁
+         */
+        private void writePending() throws IOException {
+            Object chunk;
+            while (out.isReady()) {
+                if ((chunk = pending.peekFirst()) != null) {
+                    byte[] bytes;
+                    if (chunk instanceof byte[]) {
+                        pending.pollFirst();
+                        bytes = (byte[]) chunk;
+                        pendingBytes -= bytes.length;
+                    } else if (chunk instanceof UncompressedChunk) {
+                        pending.pollFirst();
+                        byte[] raw = ((UncompressedChunk) chunk).bytes;
+                        pendingBytes -= raw.length;
+                        compressStream.write(raw);
+                        compressStream.flush();
+                        bytes = takeCompressed();
+                    } else {
+                        bytes = nextStreamChunk((SseEmitter.SseStreamEvent<?>) chunk);
+                        if (bytes == null) {
+                            pending.pollFirst();
+                            pendingStreams--;
+                            continue;
+                        }
+                    }
+                    if (bytes.length > 0) {
+                        out.write(bytes);
+                        needFlush = true;
+                    }
+                } else if (needFlush) {
+                    needFlush = false;
+                    out.flush();
+                } else {
+                    if (completing) {
+                        if (compressStream != null && !compressStream.isClosed()) {
+                            // 流式的事件可能还在压缩, 都写完了再写压缩流的结尾
+                            compressStream.finish();
+                            byte[] tail = takeCompressed();
+                            pending.addLast(tail);
+                            pendingBytes += tail.length;
+                            continue;
+                        }
+                        completing = false;
+                        this.deferredResult.setResult(null);
+                    }
+                    return;
+                }
+            }
+        }
+
+        /**
+         * 读流式事件的下一块, 开启压缩时压缩. 读失败只能断开链接, 事件已经写了一半
+         *
+         * @return null=这个事件写完了
+         */
+        private byte[] nextStreamChunk(SseEmitter.SseStreamEvent<?> event) throws IOException {
+            byte[] bytes = event.nextChunk();
+            if (bytes == null || compressStream == null) {
+                return bytes;
+            }
+            compressStream.write(bytes);
+            compressStream.flush();
+            return takeCompressed();
+        }
+
+        /**
+         * 关闭还没写完的流式事件的数据源. 调用时持有锁
+         */
+        private void closeStreams() {
+            for (Object chunk : pending) {
+                if (chunk instanceof SseEmitter.SseStreamEvent) {
+                    ((SseEmitter.SseStreamEvent<?>) chunk).getStream().close();
+                }
+            }
+        }
+
+        @Override
+        public synchronized void onWritePossible() throws IOException {
+            if (error == null) {
+                writePending();
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            synchronized (this) {
+                error = t;
+                closeStreams();
+                pending.clear();
+                pendingStreams = 0;
+                pendingBytes = 0;
+                releaseCompress();
+            }
+            completeWithError(t);
+        }
+
+        @Override
+        public synchronized void complete() {
+            complete = true;
+            if (error != null) {
+                return;
+            }
+            completing = true;
+            try {
+                writePending();
+            } catch (IOException ex) {
+                completing = false;
+                this.deferredResult.setErrorResult(ex);
+            }
+        }
+
+        private byte[] takeCompressed() {
+            byte[] bytes = compressed.toByteArray();
+            compressed.reset();
+            return bytes;
+        }
+
+        public synchronized int getPendingBytes() {
+            return pendingBytes;
         }
     }
 
+    /**
+     * 排在流式事件后面, 还没压缩的事件
+     */
+    private static class UncompressedChunk {
+        private final byte[] bytes;
+
+        private UncompressedChunk(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * 写压缩流, flush时压缩并SYNC_FLUSH
+     */
+    private static class CompressServerHttpResponse extends DelegatingServerHttpResponse {
+        private final CompressOutputStream compressStream;
+        /**
+         * 给HttpMessageConverter用的body, 忽略converter每段写完后的flush, 只在send结束时flush一次
+         */
+        private final OutputStream body;
+
+        public CompressServerHttpResponse(ServerHttpResponse delegate, CompressOutputStream compressStream) {
+            super(delegate);
+            this.compressStream = compressStream;
+            this.body = new FilterOutputStream(compressStream) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void flush() {
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!compressStream.isClosed()) {
+                compressStream.flush();
+            }
+            super.flush();
+        }
+    }
 
     /**
      * Wrap to silently ignore header changes HttpMessageConverter's that would
@@ -203,6 +633,28 @@ public class GithubSseEmitterReturnValueHandler implements HandlerMethodReturnVa
 
     }
 
+    /**
+     * 序列化到内存, 忽略header
+     */
+    private static class ByteArrayHttpOutputMessage implements HttpOutputMessage {
+        private final HttpHeaders headers = new HttpHeaders();
+        private final OutputStream body;
+
+        private ByteArrayHttpOutputMessage(OutputStream body) {
+            this.body = body;
+        }
+
+        @Override
+        public OutputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+    }
+
     public static class Lazy implements Supplier<Collection<HttpMessageConverter<?>>> {
         private Supplier<Collection<HttpMessageConverter<?>>> supplier;
         private Collection<HttpMessageConverter<?>> value;
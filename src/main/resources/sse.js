@@ -27,6 +27,8 @@ class Sse {
     useWindowEventBus: true,
     leaveTimeout: 5000,
     leaveCheckInterval: 500,
+    ackInterval: 1000,
+    ackWindowSize: 1000,
     sseDurationKey: '',
     windowGlobal: window,
     documentGlobal: document,
@@ -60,6 +62,36 @@ class Sse {
    * 谁主动触发了关闭连接
    */
   static CLIENT_TRIGGER_CLOSE = 'client'
+  /**
+   * 增量事件的data开头, 服务端 SseEmitter#newDeltaData
+   */
+  static DELTA_PREFIX = '{"sseDelta":'
+  /**
+   * 需要确认的事件的data开头, 服务端 AtLeastOnceSendService#newAckData
+   */
+  static ACK_PREFIX = '{"sseAck":'
+  /**
+   * 一次最多确认多少个, 服务端 SseWebController.AckReq#MAX_IDS
+   */
+  static ACK_BATCH_SIZE = 500
+
+  /**
+   * JSON Merge Patch (RFC 7396), 不修改target
+   */
+  static applyMergePatch(target, patch) {
+    if (patch === null || typeof patch !== 'object' || Array.isArray(patch)) {
+      return patch
+    }
+    const result = target !== null && typeof target === 'object' && !Array.isArray(target) ? Object.assign({}, target) : {}
+    for (const key in patch) {
+      if (patch[key] === null) {
+        delete result[key]
+      } else {
+        result[key] = Sse.applyMergePatch(result[key], patch[key])
+      }
+    }
+    return result
+  }
 
   destroyed = false
   state = Sse.STATE_CONNECTING
@@ -123,6 +155,15 @@ class Sse {
     this.clientId = clientId
     this.instanceId = `${h() + h()}-${h()}-${h()}-${h()}-${h()}${h()}${h()}`
     this.clientClose = null
+    // 增量事件 key = { version, document }
+    this.deltaDocuments = {}
+    // 已经请求了重发全量的key
+    this.deltaSnapshotPending = {}
+    // 待确认的消息ID, 每ackInterval毫秒批量确认一次
+    this.ackPending = []
+    this.ackTimer = null
+    // 最近收到的ackWindowSize个消息ID, 服务端补发的重复消息不再给业务
+    this.ackReceived = new Set()
 
     this.handleConnectionFinish = (event) => {
       this.clearReconnectTimer()
@@ -240,6 +281,10 @@ class Sse {
       for (const key in this.options.query) {
         query.append(key, this.options.query[key])
       }
+      // 新建的EventSource不会带Last-Event-ID头, 放在参数里让服务端补发错过的事件
+      if (this.lastEventId) {
+        query.append('lastEventId', this.lastEventId)
+      }
 
       const es = new window_EventSource(`${this.options.url}/connect?${query.toString()}`, { withCredentials: this.options.withCredentials })
       es.addEventListener('connect-finish', this.handleConnectionFinish)
@@ -282,6 +327,9 @@ class Sse {
         }
       }
       try {
+        es.addEventListener(eventName, this._recordEventId)
+        es.addEventListener(eventName, this._applyAck)
+        es.addEventListener(eventName, this._applyDelta)
         if (fn) {
           es.addEventListener(eventName, fn)
         }
@@ -295,6 +343,148 @@ class Sse {
       }
     }
 
+    // 记住收到的最后一个事件ID, 重连时带上
+    this._recordEventId = (event) => {
+      if (event.lastEventId) {
+        this.lastEventId = event.lastEventId
+      }
+    }
+
+    // 需要确认的事件, 去重后还原成原来的data, 再批量确认
+    this._applyAck = (event) => {
+      const data = event.data
+      if (typeof data !== 'string' || !data.startsWith(Sse.ACK_PREFIX)) {
+        return
+      }
+      let message
+      try {
+        message = json_parse(data)
+      } catch (e) {
+        return
+      }
+      const id = message.sseAck
+      // 重复的也要确认, 上次的确认可能丢了
+      this._ack(id)
+      if (this.ackReceived.has(id)) {
+        event.stopImmediatePropagation()
+        return
+      }
+      this.ackReceived.add(id)
+      if (this.ackReceived.size > this.options.ackWindowSize) {
+        this.ackReceived.delete(this.ackReceived.values().next().value)
+      }
+      try {
+        const value = typeof message.data === 'string' ? message.data : json_stringify(message.data)
+        Object.defineProperty(event, 'data', { value })
+        event.ackId = id
+      } catch (e) {
+        console.warn('apply ack error ', e)
+      }
+    }
+
+    this._ack = (id) => {
+      if (!this.ackPending.includes(id)) {
+        this.ackPending.push(id)
+      }
+      if (this.ackTimer === null) {
+        this.ackTimer = setTimeout(this.flushAck, this.options.ackInterval)
+      }
+    }
+
+    this.flushAck = () => {
+      if (this.ackTimer !== null) {
+        clearTimeout(this.ackTimer)
+        this.ackTimer = null
+      }
+      if (this.ackPending.length === 0) {
+        return Promise.resolve()
+      }
+      const ids = this.ackPending.splice(0, Sse.ACK_BATCH_SIZE)
+      if (this.ackPending.length > 0) {
+        this.ackTimer = setTimeout(this.flushAck, 0)
+      }
+      const query = new window_URLSearchParams()
+      for (const key in this.options.query) {
+        query.append(key, this.options.query[key])
+      }
+      return fetch(`${this.options.url}/connect/ack.do?${query.toString()}`, {
+        method: 'POST',
+        body: json_stringify({ connectionId: this.connectionId, ids }),
+        credentials: 'include',
+        mode: 'cors',
+        // 页面关闭时也能发出去
+        keepalive: true,
+        headers: {
+          'content-type': 'application/json;charset=UTF-8'
+        }
+      }).then(response => {
+        if (!response.ok) {
+          throw new Error(`ack status ${response.status}`)
+        }
+      }).catch(e => {
+        // 网络错误, 401, 5xx 都下次再确认, 没确认的服务端重连时会补发
+        console.warn('ack error ', e)
+        ids.forEach(this._ack)
+      })
+    }
+
+    // 增量事件还原成完整的文档, 后面的监听收到的event.data和全量的一样
+    this._applyDelta = (event) => {
+      const data = event.data
+      if (typeof data !== 'string' || !data.startsWith(Sse.DELTA_PREFIX)) {
+        return
+      }
+      let message
+      try {
+        message = json_parse(data)
+      } catch (e) {
+        return
+      }
+      const delta = message.sseDelta
+      const state = this.deltaDocuments[delta.key]
+      let document
+      if (delta.type === 'snapshot') {
+        document = message.data
+        delete this.deltaSnapshotPending[delta.key]
+      } else if (state && state.version === delta.base) {
+        document = Sse.applyMergePatch(state.document, message.data)
+      } else {
+        // 中间的补丁丢了, 不给业务错的数据, 等服务端重发全量
+        event.stopImmediatePropagation()
+        this._requestDeltaSnapshot(event.type, delta.key)
+        return
+      }
+      this.deltaDocuments[delta.key] = { version: delta.version, document }
+      try {
+        Object.defineProperty(event, 'data', { value: json_stringify(document) })
+        event.delta = delta
+      } catch (e) {
+        console.warn('apply delta error ', e)
+      }
+    }
+
+    this._requestDeltaSnapshot = (eventName, key) => {
+      if (this.deltaSnapshotPending[key] || this.connectionId === undefined) {
+        return
+      }
+      this.deltaSnapshotPending[key] = true
+      const query = new window_URLSearchParams()
+      query.append('connectionId', this.connectionId)
+      query.append('eventName', eventName)
+      query.append('key', key)
+      for (const k in this.options.query) {
+        query.append(k, this.options.query[k])
+      }
+      fetch(`${this.options.url}/connect/deltaSnapshot.do?${query.toString()}`, {
+        method: 'POST',
+        credentials: 'include',
+        mode: 'cors'
+      }).catch(e => {
+        delete this.deltaSnapshotPending[key]
+        console.warn('request delta snapshot error ', e)
+      })
+    }
+
     this._removeEventListener = (es, eventName, fn) => {
       if (!es) {
         return false
@@ -489,6 +679,7 @@ class Sse {
       if (this.isActive()) {
         this.flush()
       }
+      this.flushAck()
       this.state = Sse.STATE_CLOSED
       this.clearReconnectTimer()
       const connectionId = this.connectionId
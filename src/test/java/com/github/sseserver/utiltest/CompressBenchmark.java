@@ -0,0 +1,216 @@
+package com.github.sseserver.utiltest;
+
+import com.github.sseserver.local.SseEmitter;
+import com.github.sseserver.util.CompressOutputStream;
+import com.github.sseserver.util.DeflaterPool;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.StringHttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.async.StandardServletAsyncWebRequest;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.method.support.ModelAndViewContainer;
+import org.springframework.web.servlet.mvc.method.annotation.GithubSseEmitterReturnValueHandler;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.Deflater;
+
+/**
+ * SSE流式压缩: 每个事件一次flush, 对比线上字节数和每个事件的CPU时间
+ * 1. 直接写压缩流: 不压缩 / gzip(不同阈值) / deflate
+ * 2. 走真实的 GithubSseEmitterReturnValueHandler, emitter.send(name, data) 经过 HttpMessageConverter 序列化:
+ * 压缩后每个事件不能比不压缩的大
+ */
+public class CompressBenchmark {
+    private static final int EVENTS = 200000;
+
+    public static void main(String[] args) throws Exception {
+        byte[][] events = events(EVENTS);
+        long raw = 0;
+        for (byte[] event : events) {
+            raw += event.length;
+        }
+        System.out.printf("events=%,d avgEventBytes=%d%n", EVENTS, raw / EVENTS);
+
+        for (int i = 0; i < 2; i++) {
+            // 第一轮是预热
+            boolean print = i == 1;
+            run("identity", events, null, 0, Deflater.DEFAULT_COMPRESSION, print);
+            run("gzip min=0", events, CompressOutputStream.Encoding.GZIP, 0, Deflater.DEFAULT_COMPRESSION, print);
+            run("gzip min=128", events, CompressOutputStream.Encoding.GZIP, 128, Deflater.DEFAULT_COMPRESSION, print);
+            run("gzip min=128 L1", events, CompressOutputStream.Encoding.GZIP, 128, Deflater.BEST_SPEED, print);
+            run("gzip min=4096", events, CompressOutputStream.Encoding.GZIP, 4096, Deflater.DEFAULT_COMPRESSION, print);
+            run("deflate min=128", events, CompressOutputStream.Encoding.DEFLATE, 128, Deflater.DEFAULT_COMPRESSION, print);
+        }
+
+        for (boolean nonBlocking : new boolean[]{false, true}) {
+            GithubSseEmitterReturnValueHandler.nonBlocking = nonBlocking;
+            long identity = runHandler("handler identity", null, nonBlocking);
+            long gzip = runHandler("handler gzip", "gzip, deflate", nonBlocking);
+            if (gzip >= identity) {
+                throw new IllegalStateException("compressed " + gzip + " >= identity " + identity);
+            }
+        }
+    }
+
+    /**
+     * 走真实的handler, 非共享帧路径, 每个事件是多段的 (event:/data: 文本 + 对象 + 结尾)
+     *
+     * @return 线上字节数
+     */
+    private static long runHandler(String name, String acceptEncoding, boolean nonBlocking) throws Exception {
+        GithubSseEmitterReturnValueHandler.compress = acceptEncoding != null;
+        GithubSseEmitterReturnValueHandler handler = new GithubSseEmitterReturnValueHandler(() -> {
+            List<HttpMessageConverter<?>> list = new ArrayList<>();
+            list.add(new StringHttpMessageConverter(StandardCharsets.UTF_8));
+            list.add(new MappingJackson2HttpMessageConverter());
+            return list;
+        });
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setAsyncSupported(true);
+        if (acceptEncoding != null) {
+            request.addHeader(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+        }
+        CountingServletOutputStream wire = new CountingServletOutputStream();
+        HttpServletResponseWrapper response = new HttpServletResponseWrapper(new MockHttpServletResponse()) {
+            @Override
+            public ServletOutputStream getOutputStream() {
+                return wire;
+            }
+        };
+        ServletWebRequest webRequest = new ServletWebRequest(request, response);
+        WebAsyncUtils.getAsyncManager(webRequest).setAsyncWebRequest(new StandardServletAsyncWebRequest(request, response));
+        SseEmitter<Object> emitter = new SseEmitter<>(0L);
+        MethodParameter returnType = new MethodParameter(CompressBenchmark.class.getDeclaredMethod("runHandler", String.class, String.class, boolean.class), -1);
+        handler.handleReturnValue(emitter, returnType, new ModelAndViewContainer(), webRequest);
+
+        Random random = new Random(1);
+        int events = 20000;
+        for (int i = 0; i < events; i++) {
+            String eventName = random.nextBoolean() ? "unread-count" : "order-status";
+            Map<String, Object> body = new LinkedHashMap<>();
+            body.put("userId", random.nextInt(100000));
+            body.put("tenantId", random.nextInt(100));
+            body.put("orderId", "SO" + Math.abs(random.nextLong()));
+            body.put("status", random.nextBoolean() ? "PAID" : "SHIPPED");
+            body.put("timestamp", 1700000000000L + i);
+            emitter.send(eventName, body);
+        }
+        System.out.printf("%-18s nonBlocking=%-5s wireBytes=%,14d avgWireBytes=%6.1f flushes/event=%.2f%n",
+                name, nonBlocking, wire.count, (double) wire.count / events, (double) wire.flushes / events);
+        return wire.count;
+    }
+
+    private static void run(String name, byte[][] events, CompressOutputStream.Encoding encoding,
+                            int minSize, int level, boolean print) throws IOException {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        CountingOutputStream wire = new CountingOutputStream();
+        OutputStream out = wire;
+        DeflaterPool pool = new DeflaterPool(level, 1, 1);
+        if (encoding != null) {
+            out = CompressOutputStream.create(wire, encoding, pool, minSize);
+        }
+        long cpu = threadMXBean.getCurrentThreadCpuTime();
+        for (byte[] event : events) {
+            out.write(event);
+            out.flush();
+        }
+        if (out instanceof CompressOutputStream) {
+            ((CompressOutputStream) out).finish();
+        }
+        cpu = threadMXBean.getCurrentThreadCpuTime() - cpu;
+        if (print) {
+            System.out.printf("%-18s wireBytes=%,14d avgWireBytes=%6.1f cpu=%6d ns/event%n",
+                    name, wire.count, (double) wire.count / events.length, cpu / events.length);
+        }
+    }
+
+    /**
+     * 模拟业务的JSON事件, 大部分一两百字节, 偶尔有大的列表
+     */
+    private static byte[][] events(int count) {
+        Random random = new Random(1);
+        byte[][] events = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("id:").append(i).append('\n');
+            sb.append("event:").append(random.nextBoolean() ? "unread-count" : "order-status").append('\n');
+            sb.append("data:{\"userId\":").append(random.nextInt(100000))
+                    .append(",\"tenantId\":").append(random.nextInt(100))
+                    .append(",\"orderId\":\"SO").append(Math.abs(random.nextLong())).append('"')
+                    .append(",\"status\":\"").append(random.nextBoolean() ? "PAID" : "SHIPPED").append('"')
+                    .append(",\"timestamp\":").append(1700000000000L + i);
+            if (random.nextInt(20) == 0) {
+                sb.append(",\"items\":[");
+                int items = 20 + random.nextInt(40);
+                for (int j = 0; j < items; j++) {
+                    if (j > 0) {
+                        sb.append(',');
+                    }
+                    sb.append("{\"skuId\":").append(random.nextInt(100000))
+                            .append(",\"name\":\"商品").append(random.nextInt(1000)).append('"')
+                            .append(",\"quantity\":").append(1 + random.nextInt(5)).append('}');
+                }
+                sb.append(']');
+            }
+            sb.append("}\n\n");
+            events[i] = sb.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        return events;
+    }
+
+    private static class CountingServletOutputStream extends ServletOutputStream {
+        private long count;
+        private long flushes;
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.sseserver.utiltest;
+
+import com.github.sseserver.util.ConcurrentLongSet;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * 100万链接时, 业务维度与链接ID的关系表的堆占用对比
+ * 令牌(每个1个链接), 用户(每个2个链接), 租户(每个1000个链接), 频道(每个10万个链接)
+ * <p>
+ * 建议 -Xmx2g 运行
+ */
+public class ConcurrentLongSetFootprintTest {
+    private static final int CONNECTIONS = 1_000_000;
+
+    public static void main(String[] args) {
+        verify();
+
+        long[] ids = new long[CONNECTIONS];
+        Random random = new Random(1);
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = random.nextLong() & Long.MAX_VALUE;
+        }
+        String[][] keys = {
+                keys("token", CONNECTIONS),
+                keys("user", CONNECTIONS / 2),
+                keys("tenant", CONNECTIONS / 1000),
+                keys("channel", 10)
+        };
+
+        long boxed = footprint(ids, keys, () -> Collections.newSetFromMap(new ConcurrentHashMap<>(3)));
+        long primitive = footprint(ids, keys, ConcurrentLongSet::new);
+        System.out.printf("connections=%,d  Set<Long>(ConcurrentHashMap)=%,d MB  ConcurrentLongSet=%,d MB  (%.1f vs %.1f bytes/membership)%n",
+                CONNECTIONS, boxed >> 20, primitive >> 20,
+                (double) boxed / (CONNECTIONS * 4L), (double) primitive / (CONNECTIONS * 4L));
+    }
+
+    private static String[] keys(String prefix, int count) {
+        String[] keys = new String[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = prefix + i;
+        }
+        return keys;
+    }
+
+    private static long footprint(long[] ids, String[][] keys, Supplier<Set<Long>> setFactory) {
+        long before = usedHeap();
+        List<Map<String, Set<Long>>> indexes = new ArrayList<>();
+        for (String[] indexKeys : keys) {
+            Map<String, Set<Long>> index = new ConcurrentHashMap<>();
+            for (int i = 0; i < ids.length; i++) {
+                index.computeIfAbsent(indexKeys[i % indexKeys.length], k -> setFactory.get())
+                        .add(ids[i]);
+            }
+            indexes.add(index);
+        }
+        long after = usedHeap();
+        // 保持可达, 直到测量完
+        if (indexes.get(0).size() != keys[0].length) {
+            throw new IllegalStateException();
+        }
+        return after - before;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * 随机增删, 与 HashSet 比对
+     */
+    private static void verify() {
+        Random random = new Random(2);
+        for (int round = 0; round < 200; round++) {
+            ConcurrentLongSet set = new ConcurrentLongSet();
+            Set<Long> expect = new HashSet<>();
+            int bound = 1 + random.nextInt(200);
+            for (int i = 0; i < 5000; i++) {
+                long value = random.nextInt(bound);
+                boolean add = random.nextInt(3) != 0;
+                if ((add ? set.add(value) : set.remove(value)) != (add ? expect.add(value) : expect.remove(value))
+                        || set.size() != expect.size()
+                        || set.contains(value) != expect.contains(value)) {
+                    throw new IllegalStateException("round " + round + ", op " + i + ", value " + value);
+                }
+            }
+            if (!new HashSet<>(set).equals(expect)) {
+                throw new IllegalStateException("round " + round);
+            }
+        }
+        System.out.println("verify ok");
+    }
+}
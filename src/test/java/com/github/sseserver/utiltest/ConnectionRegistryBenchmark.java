@@ -0,0 +1,151 @@
+package com.github.sseserver.utiltest;
+
+import com.github.sseserver.local.ConnectionRegistry;
+import com.github.sseserver.local.SseEmitter;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 重连风暴下的上下线吞吐对比: 全局锁 vs 分片注册表
+ * 每个线程循环 上线(链接+令牌+用户+租户) -> 下线, 打印每秒上下线次数
+ */
+public class ConnectionRegistryBenchmark {
+    private static final int USERS = 10000;
+    private static final int CONNECTIONS_PER_THREAD = 2000;
+    private static final long DURATION_MS = 2000;
+    private static volatile long endTime;
+
+    public static void main(String[] args) throws InterruptedException {
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores * 2; threads <<= 1) {
+            // 预热
+            run(new MutexRegistry(), threads, 500);
+            run(new ShardedRegistry(), threads, 500);
+
+            long mutex = run(new MutexRegistry(), threads, DURATION_MS);
+            long sharded = run(new ShardedRegistry(), threads, DURATION_MS);
+            System.out.printf("threads=%-3d mutex=%,12d ops/s  sharded=%,12d ops/s  x%.2f%n",
+                    threads, mutex, sharded, (double) sharded / Math.max(1, mutex));
+        }
+    }
+
+    private static long run(Registry registry, int threads, long durationMs) throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> list = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            Thread thread = new Thread(() -> {
+                Random random = new Random(seed);
+                SseEmitter[] emitters = new SseEmitter[CONNECTIONS_PER_THREAD];
+                String[] userIds = new String[CONNECTIONS_PER_THREAD];
+                for (int i = 0; i < emitters.length; i++) {
+                    emitters[i] = new SseEmitter<>(0L);
+                    userIds[i] = String.valueOf(random.nextInt(USERS));
+                }
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long count = 0;
+                while (System.currentTimeMillis() < endTime) {
+                    for (int i = 0; i < emitters.length; i++) {
+                        SseEmitter emitter = emitters[i];
+                        String userId = userIds[i];
+                        registry.connect(emitter, "token" + userId, userId, String.valueOf(userId.length()));
+                        registry.disconnect(emitter, "token" + userId, userId, String.valueOf(userId.length()));
+                    }
+                    count += emitters.length;
+                }
+                ops.add(count);
+            });
+            thread.start();
+            list.add(thread);
+        }
+        Thread.sleep(100);
+        endTime = System.currentTimeMillis() + durationMs;
+        start.countDown();
+        for (Thread thread : list) {
+            thread.join();
+        }
+        return ops.sum() * 1000 / durationMs;
+    }
+
+    interface Registry {
+        void connect(SseEmitter emitter, String accessToken, String userId, String tenantId);
+
+        void disconnect(SseEmitter emitter, String accessToken, String userId, String tenantId);
+    }
+
+    /**
+     * 改造前 LocalConnectionServiceImpl 的做法
+     */
+    static class MutexRegistry implements Registry {
+        final Object mutex = new Object();
+        final Map<String, Set<Long>> accessToken2ConnectionIdMap = new ConcurrentHashMap<>();
+        final Map<String, Set<Long>> tenantId2ConnectionIdMap = new ConcurrentHashMap<>();
+        final Map<String, Set<Long>> userId2ConnectionIdMap = new ConcurrentHashMap<>();
+        final Map<Long, SseEmitter> connectionMap = new ConcurrentHashMap<>();
+
+        @Override
+        public void connect(SseEmitter emitter, String accessToken, String userId, String tenantId) {
+            long id = emitter.getId();
+            synchronized (mutex) {
+                connectionMap.put(id, emitter);
+                accessToken2ConnectionIdMap.computeIfAbsent(accessToken, o -> Collections.newSetFromMap(new ConcurrentHashMap<>(3)))
+                        .add(id);
+                tenantId2ConnectionIdMap.computeIfAbsent(tenantId, o -> Collections.newSetFromMap(new ConcurrentHashMap<>(3)))
+                        .add(id);
+                userId2ConnectionIdMap.computeIfAbsent(userId, o -> Collections.newSetFromMap(new ConcurrentHashMap<>(3)))
+                        .add(id);
+            }
+        }
+
+        @Override
+        public void disconnect(SseEmitter emitter, String accessToken, String userId, String tenantId) {
+            long id = emitter.getId();
+            synchronized (mutex) {
+                connectionMap.remove(id);
+                remove(accessToken2ConnectionIdMap, accessToken, id);
+                remove(userId2ConnectionIdMap, userId, id);
+                remove(tenantId2ConnectionIdMap, tenantId, id);
+            }
+        }
+
+        private static void remove(Map<String, Set<Long>> map, String key, long id) {
+            Set<Long> list = map.get(key);
+            if (list != null) {
+                list.remove(id);
+                if (list.isEmpty()) {
+                    map.remove(key);
+                }
+            }
+        }
+    }
+
+    static class ShardedRegistry implements Registry {
+        final ConnectionRegistry registry = new ConnectionRegistry();
+
+        @Override
+        public void connect(SseEmitter emitter, String accessToken, String userId, String tenantId) {
+            long id = emitter.getId();
+            registry.put(emitter);
+            registry.addIndex(ConnectionRegistry.Index.ACCESS_TOKEN, accessToken, id);
+            registry.addIndex(ConnectionRegistry.Index.TENANT_ID, tenantId, id);
+            registry.addIndex(ConnectionRegistry.Index.USER_ID, userId, id);
+        }
+
+        @Override
+        public void disconnect(SseEmitter emitter, String accessToken, String userId, String tenantId) {
+            long id = emitter.getId();
+            registry.remove(id);
+            registry.removeIndex(ConnectionRegistry.Index.ACCESS_TOKEN, accessToken, id);
+            registry.removeIndex(ConnectionRegistry.Index.USER_ID, userId, id);
+            registry.removeIndex(ConnectionRegistry.Index.TENANT_ID, tenantId, id);
+        }
+    }
+}
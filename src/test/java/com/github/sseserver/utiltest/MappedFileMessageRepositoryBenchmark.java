@@ -0,0 +1,154 @@
+package com.github.sseserver.utiltest;
+
+import com.github.sseserver.qos.AtLeastOnceMessage;
+import com.github.sseserver.qos.MappedFileMessageRepository;
+import com.github.sseserver.qos.Message;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 落盘消息仓库: 写入吞吐, 重启恢复耗时, 整理后的文件大小
+ * 每轮 多线程写入N条 -> 删掉一半 -> 关闭 -> 重新打开(恢复) -> 整理
+ * 最后检查多次重启接着写最后一个段, 不会每次开新段; 最后一条写了一半时也能接着写
+ */
+public class MappedFileMessageRepositoryBenchmark {
+    private static final int USERS = 10000;
+    private static final int THREADS = 4;
+
+    public static void main(String[] args) throws Exception {
+        for (int messages : new int[]{10000, 100000, 500000}) {
+            File directory = Files.createTempDirectory("sse-repository").toFile();
+            try {
+                run(directory, messages);
+            } finally {
+                delete(directory);
+            }
+        }
+        File directory = Files.createTempDirectory("sse-repository").toFile();
+        try {
+            restart(directory);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static void restart(File directory) throws Exception {
+        Random random = new Random(1);
+        int id = 0;
+        for (int i = 0; i < 5; i++) {
+            MappedFileMessageRepository repository = new MappedFileMessageRepository(directory);
+            repository.insert(newMessage(random, id++));
+            if (repository.getSegmentCount() != 1 || repository.size() != id) {
+                throw new IllegalStateException("restart " + i + " segments " + repository.getSegmentCount() + " size " + repository.size());
+            }
+            repository.close();
+        }
+        // 最后一条写了一半: 长度和一半内容写进去了, 校验和不对
+        File segment = Objects.requireNonNull(directory.listFiles((dir, name) -> name.endsWith(".log")))[0];
+        MappedFileMessageRepository repository = new MappedFileMessageRepository(directory);
+        repository.close();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            // 记录: 长度(int) + CRC32(int) + 内容, 长度=0是段结束
+            long end = 0;
+            int length;
+            while ((length = file.readInt()) > 0) {
+                end += 8 + length;
+                file.seek(end);
+            }
+            file.seek(end);
+            file.writeInt(200);
+            file.writeInt(12345);
+            file.write(new byte[100]);
+        }
+        repository = new MappedFileMessageRepository(directory);
+        repository.insert(newMessage(random, id++));
+        repository.close();
+        repository = new MappedFileMessageRepository(directory);
+        if (repository.getSegmentCount() != 1 || repository.size() != id) {
+            throw new IllegalStateException("torn tail segments " + repository.getSegmentCount() + " size " + repository.size());
+        }
+        repository.close();
+        System.out.printf("restart 7 times: segments=1 messages=%d%n", id);
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static void run(File directory, int messages) throws InterruptedException {
+        MappedFileMessageRepository writer = new MappedFileMessageRepository(directory);
+        List<String> idList = Collections.synchronizedList(new ArrayList<>(messages));
+        CountDownLatch latch = new CountDownLatch(THREADS);
+        long insertStart = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            int seed = t;
+            new Thread(() -> {
+                Random random = new Random(seed);
+                for (int i = seed; i < messages; i += THREADS) {
+                    idList.add(writer.insert(newMessage(random, i)));
+                }
+                latch.countDown();
+            }).start();
+        }
+        latch.await();
+        long insertNanos = System.nanoTime() - insertStart;
+
+        for (int i = 0; i < idList.size(); i += 2) {
+            writer.delete(idList.get(i));
+        }
+        int size = writer.size();
+        writer.close();
+
+        long recoverStart = System.nanoTime();
+        MappedFileMessageRepository repository = new MappedFileMessageRepository(directory);
+        long recoverNanos = System.nanoTime() - recoverStart;
+        if (repository.size() != size) {
+            throw new IllegalStateException("recover size " + repository.size() + " != " + size);
+        }
+
+        long diskBytes = diskBytes(directory);
+        long compactStart = System.nanoTime();
+        repository.compact();
+        long compactNanos = System.nanoTime() - compactStart;
+        repository.close();
+
+        System.out.printf("messages=%-8d insert=%,10d ops/s  recover=%,6dms (%d live)  compact=%,6dms  disk %,d -> %,d bytes%n",
+                messages,
+                messages * 1000_000_000L / insertNanos,
+                recoverNanos / 1000_000, size,
+                compactNanos / 1000_000,
+                diskBytes, diskBytes(directory));
+    }
+
+    private static Message newMessage(Random random, int i) {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("orderId", i);
+        body.put("status", "PAID");
+        body.put("amount", random.nextInt(100000));
+        AtLeastOnceMessage message = new AtLeastOnceMessage("order-change", body, Message.FILTER_USER_ID);
+        message.setId("bench-" + i);
+        message.setUserIdList(Collections.singletonList(random.nextInt(USERS)));
+        return message;
+    }
+
+    private static long diskBytes(File directory) {
+        long bytes = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                bytes += file.length();
+            }
+        }
+        return bytes;
+    }
+}
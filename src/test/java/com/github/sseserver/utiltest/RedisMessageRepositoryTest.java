@@ -0,0 +1,315 @@
+package com.github.sseserver.utiltest;
+
+import com.github.sseserver.qos.AtLeastOnceMessage;
+import com.github.sseserver.qos.Message;
+import com.github.sseserver.qos.MessageRepository;
+import com.github.sseserver.qos.RedisMessageRepository;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * 两台机器共用一个本地内存的redis替身, 测 RedisMessageRepository 的查询/删除广播/过期
+ */
+public class RedisMessageRepositoryTest {
+
+    public static void main(String[] args) throws InterruptedException {
+        LocalCommands redis = new LocalCommands();
+        RedisMessageRepository node1 = new RedisMessageRepository(redis, "sse:test:q:", true);
+        RedisMessageRepository node2 = new RedisMessageRepository(redis, "sse:test:q:", false);
+        List<String> node1Deleted = new CopyOnWriteArrayList<>();
+        List<String> node1Expired = new CopyOnWriteArrayList<>();
+        node1.addDeleteListener(message -> node1Deleted.add(message.getId()));
+        node1.addEvictListener((message, reason) -> node1Expired.add(message.getId() + ":" + reason));
+
+        // 1.批量写入一次往返, 另一台机器按用户查询一次往返
+        int pipelines = redis.pipelineCount.get();
+        node1.insert(Arrays.asList(
+                newMessage("m1", Message.FILTER_USER_ID, 1L, null, null),
+                newMessage("m2", Message.FILTER_USER_ID | Message.FILTER_TENANT_ID, 1L, 9, null),
+                newMessage("m3", Message.FILTER_LISTENER_NAME, null, null, "order"),
+                newMessage("m4", 0, null, null, null),
+                newMessage("m5", Message.FILTER_USER_ID, 2L, null, null)));
+        check(redis.pipelineCount.get() - pipelines == 1, "insert pipeline");
+
+        pipelines = redis.pipelineCount.get();
+        List<Message> select = node2.select(new Query(1L, 9, "order"));
+        check(redis.pipelineCount.get() - pipelines == 1, "select round trip");
+        check(ids(select).equals(Arrays.asList("m1", "m2", "m3", "m4")), "select user1 " + ids(select));
+        check(ids(node2.select(new Query(1L, 8, null))).equals(Arrays.asList("m1", "m4")), "tenant not match");
+        check(ids(node2.select(new Query(2L, null, null))).equals(Arrays.asList("m4", "m5")), "select user2");
+        check(ids(node2.list()).equals(Arrays.asList("m1", "m2", "m3", "m4", "m5")), "list");
+
+        // 2.body类型还原
+        Message m1 = node2.select(new Query(1L, null, null)).get(0);
+        check(m1.getBody() instanceof Body && ((Body) m1.getBody()).getName().equals("m1"), "body type " + m1.getBody());
+
+        // 3.别的机器删除, 通知到所有机器
+        Message delete = node2.delete("m1");
+        check(delete != null && delete.getId().equals("m1"), "delete");
+        check(node2.delete("m1") == null, "delete twice");
+        check(node1Deleted.equals(Collections.singletonList("m1")), "delete broadcast " + node1Deleted);
+        check(node2.delete(Arrays.asList("m2", "m5", "missing")).size() == 2, "batch delete");
+        check(ids(node1.list()).equals(Arrays.asList("m3", "m4")), "after delete " + ids(node1.list()));
+
+        // 4.过期: 查询时跳过并删掉, 定时扫描删掉没人查的
+        AtLeastOnceMessage expire1 = newMessage("e1", Message.FILTER_USER_ID, 3L, null, null);
+        expire1.setExpireTime(System.currentTimeMillis() + 50);
+        AtLeastOnceMessage expire2 = newMessage("e2", Message.FILTER_USER_ID, 4L, null, null);
+        expire2.setExpireTime(System.currentTimeMillis() + 50);
+        node1.insert(Arrays.asList(expire1, expire2));
+        check(ids(node2.select(new Query(3L, null, null))).contains("e1"), "before expire");
+        Thread.sleep(100);
+        check(!ids(node1.select(new Query(3L, null, null))).contains("e1"), "expired select");
+        check(node1Expired.equals(Collections.singletonList("e1:EXPIRED")), "expire notify " + node1Expired);
+        node1.setSweepInterval(0);
+        check(node1.deleteExpired() == 1, "sweep");
+        check(redis.keys("sse:test:q:m:*").size() == 2 && redis.keys("sse:test:q:i:u:*").isEmpty(), "sweep keys " + redis.keys("*"));
+
+        // 5.订阅的连接被关了 (比如在用完就归还的连接上订阅), 下次deleteExpired重新订阅, 又能收到别的机器的删除
+        node1.insert(Arrays.asList(newMessage("s1", Message.FILTER_USER_ID, 5L, null, null),
+                newMessage("s2", Message.FILTER_USER_ID, 5L, null, null)));
+        redis.closeSubscriptions();
+        node1Deleted.clear();
+        node2.delete("s1");
+        check(node1Deleted.isEmpty(), "subscription closed " + node1Deleted);
+        node1.deleteExpired();
+        check(redis.subscriptionCount() == 1, "resubscribe " + redis.subscriptionCount());
+        node2.delete("s2");
+        check(node1Deleted.equals(Collections.singletonList("s2")), "after resubscribe " + node1Deleted);
+
+        // 6.关闭仓库时取消订阅
+        node1.close();
+        check(redis.subscriptionCount() == 0, "close unsubscribe " + redis.subscriptionCount());
+        node1.deleteExpired();
+        check(redis.subscriptionCount() == 0, "no resubscribe after close " + redis.subscriptionCount());
+        System.out.println("RedisMessageRepositoryTest ok, keys=" + redis.keys("*"));
+    }
+
+    private static AtLeastOnceMessage newMessage(String id, int filters, Long userId, Integer tenantId, String listenerName) {
+        Body body = new Body();
+        body.setName(id);
+        AtLeastOnceMessage message = new AtLeastOnceMessage("test", body, filters);
+        message.setId(id);
+        message.setUserIdList(userId != null ? Collections.singletonList(userId) : null);
+        message.setTenantIdList(tenantId != null ? Collections.singletonList(tenantId) : null);
+        message.setListenerName(listenerName);
+        return message;
+    }
+
+    private static List<String> ids(List<Message> list) {
+        List<String> ids = new ArrayList<>();
+        for (Message message : list) {
+            ids.add(message.getId());
+        }
+        return ids;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    public static class Body {
+        private String name;
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class Query implements MessageRepository.Query {
+        private final Long userId;
+        private final Integer tenantId;
+        private final String listener;
+
+        private Query(Long userId, Integer tenantId, String listener) {
+            this.userId = userId;
+            this.tenantId = tenantId;
+            this.listener = listener;
+        }
+
+        @Override
+        public Serializable getTenantId() {
+            return tenantId;
+        }
+
+        @Override
+        public String getChannel() {
+            return null;
+        }
+
+        @Override
+        public String getAccessToken() {
+            return null;
+        }
+
+        @Override
+        public Serializable getUserId() {
+            return userId;
+        }
+
+        @Override
+        public Set<String> getListeners() {
+            return listener != null ? Collections.singleton(listener) : null;
+        }
+    }
+
+    /**
+     * 本地内存的redis替身, 命令结果的类型和spring的一样.
+     * 订阅和真的一样会断: {@link #closeSubscriptions()} 模拟订阅的连接被关掉
+     */
+    public static class LocalCommands implements RedisMessageRepository.Commands {
+        private final Map<String, Object> data = new ConcurrentHashMap<>();
+        private final Map<String, Long> expireMap = new ConcurrentHashMap<>();
+        private final Map<String, List<Consumer<byte[]>>> channelMap = new ConcurrentHashMap<>();
+        private final List<Runnable> onLostList = new CopyOnWriteArrayList<>();
+        private final AtomicInteger pipelineCount = new AtomicInteger();
+
+        @Override
+        public synchronized List<Object> pipeline(Consumer<RedisMessageRepository.Pipeline> commands) {
+            pipelineCount.incrementAndGet();
+            List<Object> results = new ArrayList<>();
+            List<Runnable> publishList = new ArrayList<>();
+            commands.accept(new RedisMessageRepository.Pipeline() {
+                @Override
+                public void hSet(byte[] key, byte[] field, byte[] value) {
+                    results.add(hash(key, true).put(string(field), value) == null);
+                }
+
+                @Override
+                public void hGet(byte[] key, byte[] field) {
+                    Map<String, byte[]> hash = hash(key, false);
+                    results.add(hash != null ? hash.get(string(field)) : null);
+                }
+
+                @Override
+                public void hVals(byte[] key) {
+                    Map<String, byte[]> hash = hash(key, false);
+                    results.add(hash != null ? new ArrayList<>(hash.values()) : new ArrayList<>());
+                }
+
+                @Override
+                public void hDel(byte[] key, byte[] field) {
+                    Map<String, byte[]> hash = hash(key, false);
+                    long count = hash != null && hash.remove(string(field)) != null ? 1L : 0L;
+                    if (hash != null && hash.isEmpty()) {
+                        data.remove(string(key));
+                    }
+                    results.add(count);
+                }
+
+                @Override
+                public void set(byte[] key, byte[] value, long ttlMillis) {
+                    data.put(string(key), value);
+                    if (ttlMillis > 0) {
+                        expireMap.put(string(key), System.currentTimeMillis() + ttlMillis);
+                    } else {
+                        expireMap.remove(string(key));
+                    }
+                    results.add(true);
+                }
+
+                @Override
+                public void get(byte[] key) {
+                    results.add(live(string(key)) ? data.get(string(key)) : null);
+                }
+
+                @Override
+                public void del(byte[] key) {
+                    boolean live = live(string(key));
+                    results.add(live && data.remove(string(key)) != null ? 1L : 0L);
+                }
+
+                @Override
+                public void publish(byte[] channel, byte[] message) {
+                    List<Consumer<byte[]>> listeners = channelMap.getOrDefault(string(channel), Collections.emptyList());
+                    publishList.add(() -> listeners.forEach(e -> e.accept(message)));
+                    results.add((long) listeners.size());
+                }
+            });
+            publishList.forEach(Runnable::run);
+            return results;
+        }
+
+        @Override
+        public void scan(String pattern, Consumer<byte[]> consumer) {
+            for (String key : keys(pattern)) {
+                consumer.accept(key.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        @Override
+        public AutoCloseable subscribe(byte[] channel, Consumer<byte[]> listener, Runnable onLost) {
+            List<Consumer<byte[]>> listeners = channelMap.computeIfAbsent(string(channel), e -> new CopyOnWriteArrayList<>());
+            listeners.add(listener);
+            onLostList.add(onLost);
+            return () -> {
+                listeners.remove(listener);
+                onLostList.remove(onLost);
+            };
+        }
+
+        /**
+         * 订阅的连接被关掉, 所有订阅都断了
+         */
+        public void closeSubscriptions() {
+            channelMap.values().forEach(List::clear);
+            List<Runnable> list = new ArrayList<>(onLostList);
+            onLostList.clear();
+            list.forEach(Runnable::run);
+        }
+
+        public int subscriptionCount() {
+            int count = 0;
+            for (List<Consumer<byte[]>> listeners : channelMap.values()) {
+                count += listeners.size();
+            }
+            return count;
+        }
+
+        public synchronized List<String> keys(String pattern) {
+            Pattern regex = Pattern.compile(pattern.replace("*", ".*"));
+            List<String> keys = new ArrayList<>();
+            for (String key : new TreeSet<>(data.keySet())) {
+                if (live(key) && regex.matcher(key).matches()) {
+                    keys.add(key);
+                }
+            }
+            return keys;
+        }
+
+        private boolean live(String key) {
+            Long expireAt = expireMap.get(key);
+            if (expireAt != null && System.currentTimeMillis() >= expireAt) {
+                data.remove(key);
+                expireMap.remove(key);
+                return false;
+            }
+            return data.containsKey(key);
+        }
+
+        private Map<String, byte[]> hash(byte[] key, boolean create) {
+            String k = string(key);
+            if (create) {
+                return (Map<String, byte[]>) data.computeIfAbsent(k, e -> new LinkedHashMap<>());
+            }
+            return live(k) ? (Map<String, byte[]>) data.get(k) : null;
+        }
+
+        private static String string(byte[] bytes) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.github.sseserver.utiltest;
+
+import com.github.sseserver.local.SseEmitter;
+import com.github.sseserver.local.SseFrame;
+import ch.qos.logback.classic.Level;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.StringHttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.async.StandardServletAsyncWebRequest;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.method.support.ModelAndViewContainer;
+import org.springframework.web.servlet.mvc.method.annotation.GithubSseEmitterReturnValueHandler;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 群发的分配率对比: SseEventBuilderFuture路径 vs 共享帧路径
+ * 每个链接走真实的 GithubSseEmitterReturnValueHandler, 写到丢弃的输出流, 打印每次发送分配的字节数
+ * (没有JMH, 用 com.sun.management.ThreadMXBean#getThreadAllocatedBytes 代替 -prof gc)
+ */
+public class SendAllocationBenchmark {
+    private static final int CONNECTIONS = 1000;
+    private static final int ROUNDS = 200;
+
+    public static void main(String[] args) throws Exception {
+        // debug日志的分配不算在内
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.INFO);
+        GithubSseEmitterReturnValueHandler handler = new GithubSseEmitterReturnValueHandler(() -> {
+            List<HttpMessageConverter<?>> list = new ArrayList<>();
+            list.add(new StringHttpMessageConverter(StandardCharsets.UTF_8));
+            list.add(new MappingJackson2HttpMessageConverter());
+            return list;
+        });
+        List<SseEmitter<Object>> emitters = new ArrayList<>(CONNECTIONS);
+        for (int i = 0; i < CONNECTIONS; i++) {
+            emitters.add(connect(handler));
+        }
+        Map<String, Object> body = new HashMap<>();
+        body.put("userId", 10086);
+        body.put("unread", 3);
+        body.put("tags", Arrays.asList("a", "b", "c"));
+
+        for (int i = 0; i < 3; i++) {
+            // 前两轮是预热
+            boolean print = i == 2;
+            run("future", emitters, body, false, print);
+            run("frame", emitters, body, true, print);
+        }
+    }
+
+    private static void run(String name, List<SseEmitter<Object>> emitters, Object body,
+                            boolean frame, boolean print) throws Exception {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId);
+        long time = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            if (frame) {
+                SseFrame sseFrame = new SseFrame("unread-count", body);
+                for (SseEmitter<Object> emitter : emitters) {
+                    emitter.send(sseFrame);
+                }
+            } else {
+                for (SseEmitter<Object> emitter : emitters) {
+                    emitter.send("unread-count", body);
+                }
+            }
+        }
+        time = System.nanoTime() - time;
+        allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocated;
+        if (print) {
+            long sends = (long) ROUNDS * emitters.size();
+            System.out.printf("%-8s sends=%,d  %,8d bytes/send  %,8d ns/send%n",
+                    name, sends, allocated / sends, time / sends);
+        }
+    }
+
+    private static SseEmitter<Object> connect(GithubSseEmitterReturnValueHandler handler) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setAsyncSupported(true);
+        MockHttpServletResponse mockResponse = new MockHttpServletResponse();
+        HttpServletResponseWrapper response = new HttpServletResponseWrapper(mockResponse) {
+            private final ServletOutputStream out = new NullServletOutputStream();
+
+            @Override
+            public ServletOutputStream getOutputStream() {
+                return out;
+            }
+        };
+        ServletWebRequest webRequest = new ServletWebRequest(request, response);
+        WebAsyncUtils.getAsyncManager(webRequest).setAsyncWebRequest(new StandardServletAsyncWebRequest(request, response));
+
+        SseEmitter<Object> emitter = new SseEmitter<>(0L);
+        MethodParameter returnType = new MethodParameter(SendAllocationBenchmark.class.getDeclaredMethod("connect", GithubSseEmitterReturnValueHandler.class), -1);
+        handler.handleReturnValue(emitter, returnType, new ModelAndViewContainer(), webRequest);
+        return emitter;
+    }
+
+    private static class NullServletOutputStream extends ServletOutputStream {
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}